@@ -20,6 +20,12 @@
 // The read and write methods throw DataIntegrityException if
 // there was a data integrity problem in the underlying DataStore.
 //
+// A read or write is handed to the underlying store as one range
+// (BlockStore.readBlocks/writeBlocks), so a store that can do better with
+// the whole span in hand gets the chance: BlockStoreAuthEnc updates or
+// checks the hash tree once for the span, and the devices move it in one
+// positional read or write.
+//
 
 public class ArrayStore {
 	private int        blockSize;
@@ -33,34 +39,18 @@ public class ArrayStore {
 	public void write(byte[] buf, int bufOffset, int storageOffset, int nbytes) 
 		throws DataIntegrityException {
 
-		while(nbytes > 0){
-			int blockNum = storageOffset / blockSize;
-			int blockOffset = storageOffset % blockSize;
-			int nbytesThisTime = nbytes;
-			if(nbytes > (blockSize-blockOffset)){
-				nbytesThisTime = blockSize-blockOffset;
-			}
-			bs.writeBlock(blockNum, buf, bufOffset, blockOffset, nbytesThisTime);
-			nbytes -= nbytesThisTime;
-			storageOffset += nbytesThisTime;
-			bufOffset += nbytesThisTime;
+		if(nbytes > 0){
+			bs.writeBlocks(storageOffset / blockSize, buf, bufOffset, 
+				storageOffset % blockSize, nbytes);
 		}
 	}
 
 	public void read(byte[] buf, int bufOffset, int storageOffset, int nbytes) 
 		throws DataIntegrityException {
 
-		while(nbytes > 0){
-			int blockNum = storageOffset / blockSize;
-			int blockOffset = storageOffset % blockSize;
-			int nbytesThisTime = nbytes;
-			if(nbytes > (blockSize-blockOffset)){
-				nbytesThisTime = blockSize-blockOffset;
-			}
-			bs.readBlock(blockNum, buf, bufOffset, blockOffset, nbytesThisTime);
-			nbytes -= nbytesThisTime;
-			storageOffset += nbytesThisTime;
-			bufOffset += nbytesThisTime;
+		if(nbytes > 0){
+			bs.readBlocks(storageOffset / blockSize, buf, bufOffset, 
+				storageOffset % blockSize, nbytes);
 		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,335 @@
+// This class is the common part of the block caches, CachingBlockStore and
+// OffHeapBlockCache: a BlockStore wrapper that keeps whole blocks in
+// memory, writes through to the wrapped store or (in write-back mode) only
+// marks the cached copy dirty, and passes the superblock straight through.
+// It checks arguments, keeps the counters, and decides when the wrapped
+// store is called.  A subclass decides where the blocks live and which one
+// to evict.
+//
+// The cache's lock guards only its own structures.  The wrapped store is
+// called with the lock released -- to read a block in on a miss, to write
+// back a dirty block that was evicted, and for a write-through write -- so
+// a slow device doesn't hold up hits, or misses on other blocks.  While
+// such a call is in progress its block is marked busy, and anyone else who
+// wants that block from the wrapped store, or wants to write through to it,
+// waits for the call to finish; so concurrent misses on one block read it
+// in once, and a block being written back can't be read in stale.  Room for
+// a block being read in is set aside before the lock is released.  flush
+// and format wait until no call is in progress, and keep the lock
+// throughout.
+//
+// Here is the API, beyond what BlockStore requires:
+//
+// cache.flush();
+//   Write every dirty block back to the wrapped store, in block order, then
+//   flush the wrapped store if it can be flushed.
+//
+// long n = cache.hits();
+// long n = cache.misses();
+// long n = cache.evictions();
+// long n = cache.writeBacks();
+//   Get the number of block accesses served from memory, the number that
+//   had to go to the wrapped store, the number of blocks evicted, and the
+//   number of dirty blocks written back, since the cache was made.
+//
+// A subclass provides
+//   copyOut(blockNum, buf, bufOffset, blockOffset, nbytes)
+//     Copy part of <blockNum> if it is cached, counting as a use of it.
+//     Returns whether it was.
+//   copyIn(blockNum, buf, bufOffset, blockOffset, nbytes)
+//     Copy into part of <blockNum> if it is cached, marking it dirty in
+//     write-back mode.  Returns whether it was.
+//   size()
+//     The number of blocks cached.
+//   evict()
+//     Take the block the policy picks out of the cache (which is not
+//     empty), and return it as an Evicted.
+//   install(blockNum, data, dirty)
+//     Cache <data> as the contents of <blockNum>, which is not cached, in
+//     room set aside for it.  <data> may be kept.
+//   writeBackAll()
+//     Write every dirty block back (see writeOut), in block order.
+//   clear()
+//     Forget every cached block, dirty or not.
+// all of which are called with the lock held.  Only writeBackAll calls the
+// wrapped store.
+
+import java.io.Flushable;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import java.io.IOException;
+
+
+public abstract class BlockCache implements BlockStore {
+	protected BlockStore wrappedStore;
+	protected int        blockSize;
+	protected int        capacity;
+	protected boolean    writeBack;
+
+	protected final ReentrantLock lock = new ReentrantLock();
+
+	// blocks the wrapped store is being called for, with the lock released;
+	// ioDone is signalled whenever one finishes
+	private final Set<Integer> busy = new HashSet<Integer>();
+	private final Condition    ioDone = lock.newCondition();
+	private int                reserved;   // room set aside for blocks being read in
+
+	// updated only under lock; volatile so the getters needn't take it
+	protected volatile long hits;
+	protected volatile long misses;
+	protected volatile long evictions;
+	protected volatile long writeBacks;
+
+	// A block evict() took out of the cache.  <data> holds its contents if
+	// it is dirty; if it is clean, <data> is null or a block-sized array
+	// that may be reused.
+	protected static class Evicted {
+		final int     blockNum;
+		final boolean dirty;
+		final byte[]  data;
+
+		protected Evicted(int blockNum, boolean dirty, byte[] data) {
+			this.blockNum = blockNum;
+			this.dirty = dirty;
+			this.data = data;
+		}
+	}
+
+	protected BlockCache(BlockStore bs, int capacity, boolean writeBack) {
+		wrappedStore = bs;
+		blockSize = bs.blockSize();
+		this.capacity = capacity;
+		this.writeBack = writeBack;
+	}
+
+	protected abstract boolean copyOut(int blockNum, byte[] buf, int bufOffset,
+		int blockOffset, int nbytes);
+
+	protected abstract boolean copyIn(int blockNum, byte[] buf, int bufOffset,
+		int blockOffset, int nbytes);
+
+	protected abstract int size();
+
+	protected abstract Evicted evict();
+
+	protected abstract void install(int blockNum, byte[] data, boolean dirty);
+
+	protected abstract void writeBackAll() throws DataIntegrityException;
+
+	protected abstract void clear();
+
+	public void format() throws DataIntegrityException {
+		lock.lock();
+		try {
+			// dirty blocks are simply dropped, since the store is being wiped
+			awaitIdle();
+			clear();
+			wrappedStore.format();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int blockSize() {    return blockSize;    }
+	public int superBlockSize() {    return wrappedStore.superBlockSize();    }
+
+	public long hits() {    return hits;    }
+	public long misses() {    return misses;    }
+	public long evictions() {    return evictions;    }
+	public long writeBacks() {    return writeBacks;    }
+
+	private void checkAccess(int blockNum, byte[] buf, int bufOffset,
+		int blockOffset, int nbytes) {
+
+		if( (blockNum < 0) || (bufOffset < 0) || (blockOffset < 0) || (nbytes < 0)
+			|| (bufOffset+nbytes > buf.length) || (blockOffset+nbytes > blockSize) ){
+			throw new ArrayIndexOutOfBoundsException();
+		}
+	}
+
+	public void readBlock(int blockNum, byte[] buf, int bufOffset,
+		int blockOffset, int nbytes) throws DataIntegrityException {
+
+		checkAccess(blockNum, buf, bufOffset, blockOffset, nbytes);
+
+		lock.lock();
+		try {
+			if(copyOut(blockNum, buf, bufOffset, blockOffset, nbytes)){
+				++hits;
+				return;
+			}
+			++misses;
+			claim(blockNum);
+			try {
+				while(! copyOut(blockNum, buf, bufOffset, blockOffset, nbytes)){
+					fetch(blockNum, true);
+				}
+			} finally {
+				release(blockNum);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void writeBlock(int blockNum, byte[] buf, int bufOffset,
+		int blockOffset, int nbytes) throws DataIntegrityException {
+
+		checkAccess(blockNum, buf, bufOffset, blockOffset, nbytes);
+
+		// the old contents are only needed if part of the block survives
+		boolean wholeBlock = (blockOffset == 0) && (nbytes == blockSize);
+		lock.lock();
+		try {
+			if(writeBack && copyIn(blockNum, buf, bufOffset, blockOffset, nbytes)){
+				++hits;
+				return;
+			}
+			claim(blockNum);
+			try {
+				// In write-through mode the wrapped store goes first, so a
+				// failed write leaves nothing behind in the cache.  The block
+				// stays claimed until the cached copy is updated too, so
+				// writes to it reach both in the same order.
+				if(! writeBack){
+					lock.unlock();
+					try {
+						wrappedStore.writeBlock(blockNum, buf, bufOffset, blockOffset, nbytes);
+					} finally {
+						lock.lock();
+					}
+					if(copyIn(blockNum, buf, bufOffset, blockOffset, nbytes)){
+						++hits;
+						return;
+					}
+				}
+				++misses;
+				while(! copyIn(blockNum, buf, bufOffset, blockOffset, nbytes)){
+					fetch(blockNum, ! wholeBlock);
+				}
+			} finally {
+				release(blockNum);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void claim(int blockNum) {
+		// Mark <blockNum> busy, first waiting until nobody else has it.
+		while(busy.contains(blockNum)){
+			ioDone.awaitUninterruptibly();
+		}
+		busy.add(blockNum);
+	}
+
+	private void release(int blockNum) {
+		busy.remove(blockNum);
+		ioDone.signalAll();
+	}
+
+	private void fetch(int blockNum, boolean fill) throws DataIntegrityException {
+		// Cache <blockNum>, with its current contents if <fill> is set and
+		// garbage otherwise.  The caller holds the lock and has claimed the
+		// block, which is not cached.  If there is no room and nothing to
+		// evict, as every slot is set aside for blocks being read in, just
+		// wait for one of them; the caller looks again.  Returns with the
+		// lock held.
+		if( (size() == 0) && (reserved >= capacity) ){
+			ioDone.awaitUninterruptibly();
+			return;
+		}
+		Evicted victim = null;
+		if(size() + reserved >= capacity){
+			victim = evict();
+			++evictions;
+		}
+		boolean writeVictim = (victim != null) && victim.dirty;
+		byte[] data = ((victim != null) && ! writeVictim) ? victim.data : null;
+		++reserved;
+		if(writeVictim){
+			busy.add(victim.blockNum);
+		}
+
+		// nothing is cached for a block that fails to read, and a dirty
+		// block that can't be written back is cached again, in its place
+		boolean written = false;
+		boolean read = false;
+		lock.unlock();
+		try {
+			if(writeVictim){
+				wrappedStore.writeBlock(victim.blockNum, victim.data, 0, 0, blockSize);
+				written = true;
+				data = victim.data;
+			}
+			if(data == null){
+				data = new byte[blockSize];
+			}
+			if(fill){
+				wrappedStore.readBlock(blockNum, data, 0, 0, blockSize);
+			}
+			read = true;
+		} finally {
+			lock.lock();
+			--reserved;
+			if(writeVictim){
+				if(written){
+					++writeBacks;
+				}else{
+					install(victim.blockNum, victim.data, true);
+				}
+				release(victim.blockNum);
+			}
+			if(read){
+				install(blockNum, data, false);
+			}
+			ioDone.signalAll();
+		}
+	}
+
+	private void awaitIdle() {
+		// Wait, with the lock held, until no block is busy.
+		while(! busy.isEmpty()){
+			ioDone.awaitUninterruptibly();
+		}
+	}
+
+	public void writeSuperBlock(byte[] buf, int bufOffset, int blockOffset,
+		int nbytes) throws DataIntegrityException {
+
+		wrappedStore.writeSuperBlock(buf, bufOffset, blockOffset, nbytes);
+	}
+
+	public void readSuperBlock(byte[] buf, int bufOffset, int blockOffset,
+		int nbytes) throws DataIntegrityException {
+
+		wrappedStore.readSuperBlock(buf, bufOffset, blockOffset, nbytes);
+	}
+
+	public void flush() throws DataIntegrityException {
+		lock.lock();
+		try {
+			// dirty blocks on their way out of the cache go first
+			awaitIdle();
+			writeBackAll();
+			if(wrappedStore instanceof Flushable){
+				try {
+					((Flushable)wrappedStore).flush();
+				} catch(IOException x) {
+					x.printStackTrace();
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	protected void writeOut(int blockNum, byte[] data) throws DataIntegrityException {
+		// Write a whole dirty block back to the wrapped store.
+		wrappedStore.writeBlock(blockNum, data, 0, 0, blockSize);
+		++writeBacks;
+	}
+}
@@ -3,6 +3,8 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 public class BlockDevice implements BlockStore {
 	private static final int BlockSize = 4096;
@@ -68,14 +70,30 @@ public class BlockDevice implements BlockStore {
 	private void writeEntireFile(String filename, byte[] buf, int bufOffset, 
 		int nbytes) throws FileNotFoundException, IOException {
 
-		FileOutputStream fos;
+		FileOutputStream fos = openForWrite(filename);
+		fos.write(buf, bufOffset, nbytes);
+		fos.close();
+	}
+
+	private FileOutputStream openForWrite(String filename) 
+		throws FileNotFoundException {
+
 		try {
-			fos = new FileOutputStream(filename);
+			return new FileOutputStream(filename);
 		}catch(FileNotFoundException x){
 			createDirectoryParents(filename);
-			fos = new FileOutputStream(filename);
+			return new FileOutputStream(filename);
+		}
+	}
+
+	private void writeEntireFile(String filename, ByteBuffer buf) 
+		throws FileNotFoundException, IOException {
+
+		FileOutputStream fos = openForWrite(filename);
+		FileChannel channel = fos.getChannel();
+		while(buf.hasRemaining()){
+			channel.write(buf);
 		}
-		fos.write(buf, bufOffset, nbytes);
 		fos.close();
 	}
 
@@ -107,6 +125,28 @@ public class BlockDevice implements BlockStore {
 		fis.close();
 	}
 
+	private void readFromFile(String filename, ByteBuffer buf, int fileOffset) 
+		throws FileNotFoundException, IOException {
+
+		FileInputStream fis;
+		try {
+			fis = new FileInputStream(filename);
+		} catch (FileNotFoundException x) {
+			writeEntireFile(filename, zeroBlockBytes, 0, BlockSize);
+			fis = new FileInputStream(filename);
+		}
+		FileChannel channel = fis.getChannel();
+		long start = fileOffset - buf.position();
+		while(buf.hasRemaining()){
+			if(channel.read(buf, start+buf.position()) < 0){
+				while(buf.hasRemaining()){
+					buf.put((byte)0);
+				}
+			}
+		}
+		fis.close();
+	}
+
 	private void destroyDirectoryContents(String pathPrefix) {
 		File dir = new File(pathPrefix);
 		if(dir != null){
@@ -150,6 +190,39 @@ public class BlockDevice implements BlockStore {
 		}
 	}
 
+	// The ByteBuffer versions move whole blocks between the caller's buffer
+	// and the block's file through a FileChannel.  A partial write still has
+	// to read, patch and rewrite the whole file.
+	public void writeBlock(int blockNum, ByteBuffer buf, int blockOffset) {
+		try {
+			if( (blockOffset==0) && (buf.remaining()==BlockSize) ){
+				writeEntireFile(pathForBlock(blockNum), buf);
+			}else{
+				int nbytes = buf.remaining();
+				byte[] mybuf = new byte[nbytes];
+				buf.get(mybuf);
+				writePartialFile(pathForBlock(blockNum), mybuf, 0, blockOffset, 
+					nbytes, BlockSize);
+			}
+		} catch(FileNotFoundException x) {
+			x.printStackTrace();
+		} catch(IOException x) {
+			x.printStackTrace();
+		}
+	}
+
+	public void readBlock(int blockNum, ByteBuffer buf, int blockOffset) {
+		try {
+			assert blockOffset >= 0;
+			assert (blockOffset+buf.remaining()) <= BlockSize;
+			readFromFile(pathForBlock(blockNum), buf, blockOffset);
+		} catch(FileNotFoundException x) {
+			x.printStackTrace();
+		} catch(IOException x) {
+			x.printStackTrace();
+		}
+	}
+
 	public void writeSuperBlock(byte[] buf, int bufOffset, int blockOffset, 
 		int nbytes) {
 
@@ -1,3 +1,5 @@
+import java.nio.ByteBuffer;
+
 
 public interface BlockStore {
 	// Interface for a "block store" functionality that provides persistent
@@ -37,6 +39,125 @@ public interface BlockStore {
 	public void readBlock(int blockNum, byte[] buf, int bufOffset, 
 		int blockOffset, int nbytes) throws DataIntegrityException;
 
+	// Write data to an ordinary block from a ByteBuffer.  The buf.remaining()
+	// bytes starting at buf.position() will be written to bytes (blockOffset)
+	// thru (blockOffset+buf.remaining()-1), and the buffer's position
+	// advances past them.  Throws the same exceptions as the byte[] version.
+	// Stores that can move the data without copying it into an array, such
+	// as a device writing a direct buffer straight to its file, override
+	// this; the default passes a heap buffer's backing array to the byte[]
+	// version and copies anything else into a temporary array.
+	public default void writeBlock(int blockNum, ByteBuffer buf, 
+		int blockOffset) throws DataIntegrityException {
+
+		int nbytes = buf.remaining();
+		if(buf.hasArray()){
+			writeBlock(blockNum, buf.array(), buf.arrayOffset()+buf.position(), 
+				blockOffset, nbytes);
+			buf.position(buf.position()+nbytes);
+		}else{
+			byte[] tmp = new byte[nbytes];
+			buf.duplicate().get(tmp);
+			writeBlock(blockNum, tmp, 0, blockOffset, nbytes);
+			buf.position(buf.position()+nbytes);
+		}
+	}
+
+	// Read data from an ordinary block into a ByteBuffer.  Bytes (blockOffset)
+	// thru (blockOffset+buf.remaining()-1) of the block will be copied into
+	// the buffer starting at buf.position(), and the buffer's position
+	// advances past them.  Throws the same exceptions as the byte[] version.
+	// As with writeBlock, the default bridges to the byte[] version.
+	public default void readBlock(int blockNum, ByteBuffer buf, 
+		int blockOffset) throws DataIntegrityException {
+
+		int nbytes = buf.remaining();
+		if(buf.hasArray()){
+			readBlock(blockNum, buf.array(), buf.arrayOffset()+buf.position(), 
+				blockOffset, nbytes);
+			buf.position(buf.position()+nbytes);
+		}else{
+			byte[] tmp = new byte[nbytes];
+			readBlock(blockNum, tmp, 0, blockOffset, nbytes);
+			buf.put(tmp);
+		}
+	}
+
+	// Write a run of data that starts at byte <blockOffset> (which must be
+	// inside the block) of block <firstBlockNum> and continues into the
+	// following blocks as needed: buf[bufOffset] thru
+	// buf[bufOffset+nbytes-1] end up exactly where a sequence of writeBlock
+	// calls, one per block, would put them.  Stores that can do better with
+	// the whole range in hand (one positional write, one pass over a hash
+	// tree) override this; the default is that sequence of calls.
+	public default void writeBlocks(int firstBlockNum, byte[] buf, 
+		int bufOffset, int blockOffset, int nbytes) throws DataIntegrityException {
+
+		int blockSize = blockSize();
+		if( (blockOffset < 0) || (blockOffset >= blockSize) ){
+			throw new ArrayIndexOutOfBoundsException();
+		}
+		int blockNum = firstBlockNum;
+		while(nbytes > 0){
+			int nbytesThisTime = Math.min(nbytes, blockSize-blockOffset);
+			writeBlock(blockNum, buf, bufOffset, blockOffset, nbytesThisTime);
+			nbytes -= nbytesThisTime;
+			bufOffset += nbytesThisTime;
+			blockNum++;
+			blockOffset = 0;
+		}
+	}
+
+	// Read a run of data, laid out as for writeBlocks, into
+	// buf[bufOffset] thru buf[bufOffset+nbytes-1].
+	public default void readBlocks(int firstBlockNum, byte[] buf, 
+		int bufOffset, int blockOffset, int nbytes) throws DataIntegrityException {
+
+		int blockSize = blockSize();
+		if( (blockOffset < 0) || (blockOffset >= blockSize) ){
+			throw new ArrayIndexOutOfBoundsException();
+		}
+		int blockNum = firstBlockNum;
+		while(nbytes > 0){
+			int nbytesThisTime = Math.min(nbytes, blockSize-blockOffset);
+			readBlock(blockNum, buf, bufOffset, blockOffset, nbytesThisTime);
+			nbytes -= nbytesThisTime;
+			bufOffset += nbytesThisTime;
+			blockNum++;
+			blockOffset = 0;
+		}
+	}
+
+	// Gather: for each i, write the remaining bytes of bufs[i] to the start
+	// of block blockNums[i], as writeBlock(blockNums[i], bufs[i], 0) would.
+	// The blocks need not be consecutive or in order, but a block should not
+	// appear twice.  A store may coalesce and reorder the writes, so if one
+	// of them fails, any of the others may or may not have happened.
+	public default void writeBlocks(int[] blockNums, ByteBuffer[] bufs) 
+		throws DataIntegrityException {
+
+		if(blockNums.length != bufs.length){
+			throw new ArrayIndexOutOfBoundsException();
+		}
+		for(int i=0; i<blockNums.length; ++i){
+			writeBlock(blockNums[i], bufs[i], 0);
+		}
+	}
+
+	// Scatter: for each i, fill the remaining bytes of bufs[i] from the
+	// start of block blockNums[i], as readBlock(blockNums[i], bufs[i], 0)
+	// would.
+	public default void readBlocks(int[] blockNums, ByteBuffer[] bufs) 
+		throws DataIntegrityException {
+
+		if(blockNums.length != bufs.length){
+			throw new ArrayIndexOutOfBoundsException();
+		}
+		for(int i=0; i<blockNums.length; ++i){
+			readBlock(blockNums[i], bufs[i], 0);
+		}
+	}
+
 	// Get the size of the superblock on the store.
 	public int superBlockSize();
 
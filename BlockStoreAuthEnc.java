@@ -2,13 +2,87 @@
 // integrity of all the data it holds.  The constructor takes a BlockStore
 // (which doesn't guarantee confidentiality and integrity).
 //
+// Integrity comes from a hash tree laid over the blocks: block n is the
+// parent of blocks 2n+1 and 2n+2, each block's header holds the hash of its
+// own contents plus its children's hashes, and the root hash lives in the
+// superblock.  Hashes that have been checked against the root are kept in
+// memory (the "verified cache"), so a read only hashes its way up to the
+// first verified ancestor, and reads of ordinary blocks never write to the
+// device.
+//
+// There is a second integrity mode, MODE_BLOCK_MAC, for hosts that are
+// trusted not to roll the whole device back.  There each block's header
+// holds a MAC over its block number, write counter and ciphertext, and
+// freshness comes from a table of every block's counter kept in memory.  A
+// checksum of that table sits in the superblock, where the root hash would
+// be, and is checked when the store is opened.  Reads and writes then take
+// a constant number of device accesses instead of a walk up the tree.
+//
+// Any number of threads may use the store at once.  The tree is cut at
+// level STRIPE_LEVEL into NUM_STRIPES subtrees ("stripes"), each with its
+// own read/write lock and its own part of the verified cache, so blocks in
+// different subtrees are read and written in parallel, and reads within a
+// subtree run in parallel with each other.  The nodes above the cut and the
+// hashes of the subtree roots make up the top of the tree.  They are
+// checked against the root hash once, kept in memory, and changed only
+// under topLock.  A writer does all the work inside its subtrees first and
+// takes topLock only at the end, to publish its subtree roots' new hashes
+// and mark the top nodes above them dirty.  Then it releases its locks and
+// waits for a group commit: whichever waiting thread finds no commit in
+// progress re-hashes every dirty top node once and writes the root hash,
+// covering all the writers that queued up meanwhile, so under load there
+// is far less than one superblock write per write.  A write returns only
+// once the root hash that covers it is on the device.  Reads of the top
+// blocks themselves wait for (or carry out) the pending commit first.
+// Locks are always taken in the order stripes (ascending), then topLock,
+// then commitLock.
+// In MODE_BLOCK_MAC a block's stripe is its number modulo NUM_STRIPES, and
+// the counter table has a lock of its own.
+// All of these are java.util.concurrent locks, never monitors, since some
+// are held across device I/O; a virtual thread blocked on the device under
+// one of them gives its carrier thread back.  Nor is anything kept per
+// thread: the block-sized working buffers an operation needs come from a
+// small pool, so a server with a virtual thread per client doesn't hold a
+// set of them for each client.
+//
+// A long readBlocks is also spread over several cores.  Its blocks are
+// fetched in one device call, then hashed on the common ForkJoinPool, level
+// by level up to the first nodes whose hashes are known, so that the
+// interior nodes the blocks share are each hashed and checked once.  Only
+// once all of that has checked out are the blocks decrypted, again in
+// parallel, into the caller's buffer.
+//
+// Here is the API, beyond what BlockStore requires:
+//
+// BlockStoreAuthEnc bs = new BlockStoreAuthEnc(dev, prg);
+// BlockStoreAuthEnc bs = new BlockStoreAuthEnc(dev, prg, verifiedCacheNodes);
+// BlockStoreAuthEnc bs = new BlockStoreAuthEnc(dev, prg, verifiedCacheNodes, mode);
+//   Open the store kept on <dev>.  A store that was set up before keeps the
+//   mode recorded in its superblock; a freshly formatted <dev> is set up in
+//   <mode>, which is MODE_MERKLE_TREE unless given.
+//
+// long n = bs.rootCommits();
+//   Get the number of times the root hash has been written since the store
+//   was opened.
+//
 // YOU WILL MODIFY THIS FILE.  The code we have provided here does not
 // actually do anything to provide confidentiality and integrity.  You have
 // to fix that.
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.io.FileNotFoundException;
-import java.nio.ByteBuffer;
 
 public class BlockStoreAuthEnc implements BlockStore {
     private BlockStore    dev;
@@ -24,40 +98,167 @@ public class BlockStoreAuthEnc implements BlockStore {
     private final int NONCE_BASE_OFFSET_BYTES = 32;
     private final int ROOT_HASH_OFFSET_BYTES = 64;
     private final int TREE_HASH_KEY_OFFSET_BYTES = 96;
+    private final int MODE_OFFSET_BYTES = 128;
+    private final int NUM_TRACKED_OFFSET_BYTES = 136;
+    private final int HEADER_SIZE_BYTES = HASH_SIZE_BYTES*5;
     private byte[] zeroHash;
     private final byte[] zeroArr;
-    private final byte[] emptyBlockData;
+
+    // hashes of tree nodes that have been authenticated against the root
+    // are cached per stripe; each stripe gets an equal share of the limit
+    public static final int DEFAULT_VERIFIED_CACHE_NODES = 1 << 16;
+    private final int maxVerifiedNodes;
+    private final int maxStripeNodes;
+
+    // the subtrees rooted at level STRIPE_LEVEL, and the top of the tree
+    // above them: the top nodes' hashes (down to and including the subtree
+    // roots), and the contents of the top nodes proper, all authenticated
+    private static final int STRIPE_LEVEL = 6;
+    private static final int NUM_STRIPES = 1 << STRIPE_LEVEL;
+    private static final int FIRST_STRIPE_ROOT = NUM_STRIPES - 1;
+    private static final int NUM_TOP_NODES = 2*NUM_STRIPES - 1;
+    private final Stripe[] stripes = new Stripe[NUM_STRIPES];
+    private final ReentrantReadWriteLock topLock = new ReentrantReadWriteLock();
+    private final byte[][] topHashes = new byte[NUM_TOP_NODES][HASH_SIZE_BYTES];
+    private final byte[][] topData;
+    private final byte[] topWriteInstances = new byte[FIRST_STRIPE_ROOT*COUNTER_SIZE_BYTES];
+    private volatile boolean topLoaded;
+
+    // group commit of the top of the tree; see awaitCommit.  Each write
+    // publishes one update of the top, numbered by topUpdates and flagged
+    // in topDirty (both guarded by topLock); the rest is guarded by
+    // commitLock.
+    private final boolean[] topDirty = new boolean[FIRST_STRIPE_ROOT];
+    private long topUpdates;
+    private final ReentrantLock commitLock = new ReentrantLock();
+    private final Condition commitDone = commitLock.newCondition();
+    private long committedUpdates;
+    private boolean committing;
+    private long rootCommits;
+
+    private static class Stripe {
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+        // verified hashes of the nodes in this subtree, below its root
+        final Map<Integer, byte[]> verified = new ConcurrentHashMap<Integer, byte[]>();
+
+        // write instances of blocks whose verified hash covers them, so a
+        // whole-block overwrite can increment the counter without re-reading it
+        final Map<Integer, Long> verifiedCounters = new ConcurrentHashMap<Integer, Long>();
+    }
+
+    // integrity modes; the mode of a store is kept in its superblock
+    public static final int MODE_MERKLE_TREE = 0;
+    public static final int MODE_BLOCK_MAC = 1;
+    private int mode;
+
+    // MODE_BLOCK_MAC only: the write counter of every block below
+    // numTracked (zero for blocks never written), and the checksum of the
+    // table that is anchored in the superblock; see counterTerm.  All three
+    // are guarded by macLock.
+    private long[] counters = new long[0];
+    private int numTracked;
+    private final byte[] countersChecksum = new byte[HASH_SIZE_BYTES];
+    private final ReentrantLock macLock = new ReentrantLock();
+
+    // the store's secrets; see loadSecrets.  Every Scratch builds its own
+    // nonce and tree-hash PRFs from these (see takeScratch()), so that
+    // hashing doesn't serialize the threads.
+    private PRF keyDeriver;
+    private volatile byte[] keyOfNonces;
+    private volatile byte[] treeHashKey;
+
+    // recently used per-block encryption keys, least recently used first
+    public static final int BLOCK_KEY_CACHE_SIZE = 4096;
+    private final Map<Integer, byte[]> blockKeys = 
+        new LinkedHashMap<Integer, byte[]>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+                return size() > BLOCK_KEY_CACHE_SIZE;
+            }
+        };
 
 
     public BlockStoreAuthEnc(BlockStore underStore, PRGen thePrg) 
     throws DataIntegrityException {
+        this(underStore, thePrg, DEFAULT_VERIFIED_CACHE_NODES);
+    }
+
+    public BlockStoreAuthEnc(BlockStore underStore, PRGen thePrg, 
+        int verifiedCacheNodes) throws DataIntegrityException {
+        this(underStore, thePrg, verifiedCacheNodes, MODE_MERKLE_TREE);
+    }
+
+    public BlockStoreAuthEnc(BlockStore underStore, PRGen thePrg, 
+        int verifiedCacheNodes, int newStoreMode) throws DataIntegrityException {
+        if (newStoreMode != MODE_MERKLE_TREE && newStoreMode != MODE_BLOCK_MAC) {
+            throw new IllegalArgumentException("unknown mode " + newStoreMode);
+        }
         dev = underStore;
         prg = thePrg;
+        maxVerifiedNodes = verifiedCacheNodes;
+        maxStripeNodes = verifiedCacheNodes / NUM_STRIPES;
+        mode = newStoreMode;
+        zeroArr = new byte[HASH_SIZE_BYTES];
+        for (int i = 0; i < NUM_STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+        topData = new byte[FIRST_STRIPE_ROOT][this.blockSize()];
 
+        // Pick up the secrets of a store that was set up before; a freshly
+        // formatted device has an all-zero superblock, so it gets new ones.
         byte[] keyOfKeys = new byte[HASH_SIZE_BYTES];
         byte[] keyOfNonces = new byte[HASH_SIZE_BYTES];
         byte[] treeHashKey = new byte[HASH_SIZE_BYTES];
-        thePrg.nextBytes(keyOfKeys);
-        thePrg.nextBytes(keyOfNonces);
-        thePrg.nextBytes(treeHashKey);
-        emptyBlockData = new byte[this.blockSize()];
+        dev.readSuperBlock(keyOfKeys, 0, 0, HASH_SIZE_BYTES);
+        dev.readSuperBlock(keyOfNonces, 0, NONCE_BASE_OFFSET_BYTES, HASH_SIZE_BYTES);
+        dev.readSuperBlock(treeHashKey, 0, TREE_HASH_KEY_OFFSET_BYTES, HASH_SIZE_BYTES);
+        if (Arrays.equals(keyOfKeys, zeroArr) && Arrays.equals(keyOfNonces, zeroArr)
+            && Arrays.equals(treeHashKey, zeroArr)) {
+            newSecrets();
+        } else {
+            // stores from before the mode was recorded read as mode 0
+            byte[] modeBytes = new byte[COUNTER_SIZE_BYTES];
+            dev.readSuperBlock(modeBytes, 0, MODE_OFFSET_BYTES, COUNTER_SIZE_BYTES);
+            mode = (int) LongUtils.bytesToLong(modeBytes, 0);
+            if (mode != MODE_MERKLE_TREE && mode != MODE_BLOCK_MAC) {
+                throw new DataIntegrityException();
+            }
+            loadSecrets(keyOfKeys, keyOfNonces, treeHashKey);
+            if (mode == MODE_BLOCK_MAC) {
+                loadCounters();
+            }
+        }
+    }
 
-        // compute hash of empty children
-        PRF hasher = new PRF(treeHashKey);
-        byte[] emptyData = new byte[this.blockSize() + COUNTER_SIZE_BYTES + (2*HASH_SIZE_BYTES)];
-        this.zeroHash = hasher.eval(emptyData);
+    public int mode() {
+        return mode;
+    }
 
-        byte[] hash = new byte[HASH_SIZE_BYTES];
-        zeroArr = new byte[HASH_SIZE_BYTES];
-        dev.writeSuperBlock(keyOfKeys, 0, 0, HASH_SIZE_BYTES);
-        dev.writeSuperBlock(keyOfNonces, 0, NONCE_BASE_OFFSET_BYTES, HASH_SIZE_BYTES);
-        dev.writeSuperBlock(hash, 0, ROOT_HASH_OFFSET_BYTES, HASH_SIZE_BYTES);
-        dev.writeSuperBlock(treeHashKey, 0, TREE_HASH_KEY_OFFSET_BYTES, HASH_SIZE_BYTES);
+    public long rootCommits() {
+        commitLock.lock();
+        try {
+            return rootCommits;
+        } finally {
+            commitLock.unlock();
+        }
     }
 
     public void format() throws DataIntegrityException {
-        dev.format();
+        // nothing else may use the store while it is being reset
+        lockStripes(-1L);
+        topLock.writeLock().lock();
+        try {
+            dev.format();
+            newSecrets();
+        } finally {
+            topLock.writeLock().unlock();
+            unlockStripes(-1L);
+        }
+    }
 
+    private void newSecrets() throws DataIntegrityException {
+        // Generate fresh keys for an empty store and record them, along with
+        // an empty root hash, in the superblock.
         byte[] keyOfKeys = new byte[HASH_SIZE_BYTES];
         byte[] keyOfNonces = new byte[HASH_SIZE_BYTES];
         byte[] treeHashKey = new byte[HASH_SIZE_BYTES];
@@ -65,16 +266,127 @@ public class BlockStoreAuthEnc implements BlockStore {
         prg.nextBytes(keyOfNonces);
         prg.nextBytes(treeHashKey);
 
-        // compute hash of empty children
-        PRF hasher = new PRF(treeHashKey);
-        byte[] emptyData = new byte[this.blockSize() + COUNTER_SIZE_BYTES + (2*HASH_SIZE_BYTES)];
-        this.zeroHash = hasher.eval(emptyData);
-
         byte[] hash = new byte[HASH_SIZE_BYTES];
+        byte[] modeSlot = new byte[HASH_SIZE_BYTES];
+        LongUtils.longToBytes(mode, modeSlot, 0);
         dev.writeSuperBlock(keyOfKeys, 0, 0, HASH_SIZE_BYTES);
         dev.writeSuperBlock(keyOfNonces, 0, NONCE_BASE_OFFSET_BYTES, HASH_SIZE_BYTES);
         dev.writeSuperBlock(hash, 0, ROOT_HASH_OFFSET_BYTES, HASH_SIZE_BYTES);
         dev.writeSuperBlock(treeHashKey, 0, TREE_HASH_KEY_OFFSET_BYTES, HASH_SIZE_BYTES);
+        dev.writeSuperBlock(modeSlot, 0, MODE_OFFSET_BYTES, HASH_SIZE_BYTES);
+        loadSecrets(keyOfKeys, keyOfNonces, treeHashKey);
+        macLock.lock();
+        try {
+            counters = new long[0];
+            numTracked = 0;
+            Arrays.fill(countersChecksum, (byte)0);
+        } finally {
+            macLock.unlock();
+        }
+
+        // an empty tree is all zeroes, top included
+        for (int node = 0; node < NUM_TOP_NODES; node++) {
+            Arrays.fill(topHashes[node], (byte)0);
+        }
+        for (int node = 0; node < FIRST_STRIPE_ROOT; node++) {
+            Arrays.fill(topData[node], (byte)0);
+        }
+        Arrays.fill(topWriteInstances, (byte)0);
+        Arrays.fill(topDirty, false);
+        commitLock.lock();
+        try {
+            committedUpdates = topUpdates;
+        } finally {
+            commitLock.unlock();
+        }
+        topLoaded = true;
+    }
+
+    private void loadSecrets(byte[] keyOfKeys, byte[] keyOfNonces, 
+        byte[] treeHashKey) {
+        // Keep the store's secrets in memory, so the hot paths never go back
+        // to the superblock for them.
+        synchronized (blockKeys) {
+            keyDeriver = new PRF(keyOfKeys);
+            blockKeys.clear();
+        }
+        this.keyOfNonces = keyOfNonces;
+        this.treeHashKey = treeHashKey;
+
+        // compute hash of empty children
+        byte[] emptyData = new byte[this.blockSize() + COUNTER_SIZE_BYTES + (2*HASH_SIZE_BYTES)];
+        this.zeroHash = new PRF(treeHashKey).eval(emptyData);
+
+        for (Stripe st : stripes) {
+            st.verified.clear();
+            st.verifiedCounters.clear();
+        }
+        topLoaded = false;
+    }
+
+    private void loadCounters() throws DataIntegrityException {
+        // MODE_BLOCK_MAC: rebuild the counter table from the block headers,
+        // and check it against the checksum in the superblock.
+        byte[] buf = new byte[HASH_SIZE_BYTES];
+        dev.readSuperBlock(buf, 0, NUM_TRACKED_OFFSET_BYTES, COUNTER_SIZE_BYTES);
+        long tracked = LongUtils.bytesToLong(buf, 0);
+        if (tracked < 0 || tracked > Integer.MAX_VALUE) {
+            throw new DataIntegrityException();
+        }
+        numTracked = (int) tracked;
+        counters = new long[numTracked];
+        Arrays.fill(countersChecksum, (byte)0);
+
+        Scratch s = takeScratch();
+        try {
+            for (int blockNum = 0; blockNum < numTracked; blockNum++) {
+                dev.readBlock(blockNum, buf, 0, COUNTER_OFFSET_BYTES, COUNTER_SIZE_BYTES);
+                counters[blockNum] = LongUtils.bytesToLong(buf, 0);
+                if (counters[blockNum] < 0) {
+                    throw new DataIntegrityException();
+                }
+                if (counters[blockNum] != 0) {
+                    counterTerm(s, blockNum, counters[blockNum]);
+                    xorInto(countersChecksum, s.hash);
+                }
+            }
+        } finally {
+            releaseScratch(s);
+        }
+        dev.readSuperBlock(buf, 0, ROOT_HASH_OFFSET_BYTES, HASH_SIZE_BYTES);
+        if (!Arrays.equals(buf, countersChecksum)) {
+            throw new DataIntegrityException();
+        }
+    }
+
+    private void ensureTopLoaded(Scratch s) throws DataIntegrityException {
+        // MODE_MERKLE_TREE: the first operation on an opened store reads the
+        // top of the tree into memory and checks it against the root hash.
+        // From then on the top hashes are only ever taken from memory.
+        if (topLoaded) return;
+        topLock.writeLock().lock();
+        try {
+            if (topLoaded) return;
+            for (int node = 0; node < FIRST_STRIPE_ROOT; node++) {
+                dev.readBlock(node, topData[node], 0, BLOCK_STORAGE_OFFSET_BYTES, this.blockSize());
+                dev.readBlock(node, topWriteInstances, node*COUNTER_SIZE_BYTES,
+                    COUNTER_OFFSET_BYTES, COUNTER_SIZE_BYTES);
+            }
+            for (int node = FIRST_STRIPE_ROOT; node < NUM_TOP_NODES; node++) {
+                dev.readBlock(node, topHashes[node], 0, 0, HASH_SIZE_BYTES);
+            }
+            for (int node = FIRST_STRIPE_ROOT-1; node >= 0; node--) {
+                nodeHash(s, topData[node], 0, topWriteInstances, node*COUNTER_SIZE_BYTES,
+                    topHashes[2*node+1], topHashes[2*node+2], topHashes[node]);
+            }
+            dev.readSuperBlock(s.superHash, 0, ROOT_HASH_OFFSET_BYTES, HASH_SIZE_BYTES);
+            if (!Arrays.equals(s.superHash, topHashes[0])) {
+                throw new DataIntegrityException();
+            }
+            topLoaded = true;
+        } finally {
+            topLock.writeLock().unlock();
+        }
     }
 
     public int blockSize() {
@@ -82,99 +394,799 @@ public class BlockStoreAuthEnc implements BlockStore {
     }
 
     public int superBlockSize() {
-        return dev.superBlockSize() - (HASH_SIZE_BYTES*4);
+        return dev.superBlockSize() - HEADER_SIZE_BYTES;
     }
 
     public void readSuperBlock(byte[] buf, int bufOffset, int blockOffset, 
         int nbytes) throws DataIntegrityException {
-        dev.readSuperBlock(buf, bufOffset, blockOffset + (HASH_SIZE_BYTES*4), nbytes);
+        dev.readSuperBlock(buf, bufOffset, blockOffset + HEADER_SIZE_BYTES, nbytes);
     }
 
     public void writeSuperBlock(byte[] buf, int bufOffset, int blockOffset, 
         int nbytes) throws DataIntegrityException {
-        dev.writeSuperBlock(buf, bufOffset, blockOffset + (HASH_SIZE_BYTES*4), nbytes);
+        dev.writeSuperBlock(buf, bufOffset, blockOffset + HEADER_SIZE_BYTES, nbytes);
+    }
+
+    // Working buffers for one operation at a time, so that reads and writes
+    // don't allocate their block-sized arrays on every call.  See
+    // takeScratch.
+    private class Scratch {
+        final byte[] data = new byte[blockSize()];
+        final byte[] plain = new byte[blockSize()];
+        final byte[] writeInstance = new byte[COUNTER_SIZE_BYTES];
+        final byte[] nodeData = new byte[blockSize()];
+        final byte[] nodeWriteInstance = new byte[COUNTER_SIZE_BYTES];
+        final byte[] nonce = new byte[HASH_SIZE_BYTES];
+        final byte[] hash = new byte[HASH_SIZE_BYTES];
+        final byte[] superHash = new byte[HASH_SIZE_BYTES];
+
+        // the caller's data, for ByteBuffers that have no backing array
+        final byte[] transfer = new byte[blockSize()];
+
+        // this Scratch's PRFs, and the tree-hash key they were built for
+        byte[] prfKey;
+        PRF nonceDeriver;
+        PRF treeHasher;
+
+        // MODE_BLOCK_MAC: a whole block as stored on the device, and the
+        // fixed-size prefix of what a MAC covers
+        final byte[] raw = new byte[dev.blockSize()];
+        final byte[] macInput = new byte[1 + 4 + COUNTER_SIZE_BYTES];
+
+        // hashes computed or read during one verifyPath, waiting to be added
+        // to the verified cache: two children, then a node and a sibling
+        // per level of a tree at most 32 levels deep
+        final int[] pendingNodes = new int[2 + 2*32];
+        final byte[][] pendingHashes = new byte[2 + 2*32][HASH_SIZE_BYTES];
+        int numPending;
+
+        // buffers for writeBlocks and readBlocks, kept only while they are
+        // small
+        byte[] batchData = new byte[blockSize()];
+        byte[] batchWriteInstances = new byte[COUNTER_SIZE_BYTES];
+        int[] dirtyNodes = new int[2 + 2*32];
+        byte[][] oldHashes = new byte[2 + 2*32][HASH_SIZE_BYTES];
+        byte[] batchRaw = new byte[dev.blockSize()];
+
+        byte[] batchData(int numBlocks) {
+            if (batchData.length >= numBlocks*blockSize()) return batchData;
+            byte[] ret = new byte[numBlocks*blockSize()];
+            if (numBlocks <= MAX_RETAINED_BATCH_BLOCKS) batchData = ret;
+            return ret;
+        }
+
+        byte[] batchWriteInstances(int numBlocks) {
+            if (batchWriteInstances.length >= numBlocks*COUNTER_SIZE_BYTES) return batchWriteInstances;
+            byte[] ret = new byte[numBlocks*COUNTER_SIZE_BYTES];
+            if (numBlocks <= MAX_RETAINED_BATCH_BLOCKS) batchWriteInstances = ret;
+            return ret;
+        }
+
+        byte[] batchRaw(int numBlocks) {
+            // whole blocks as stored on the device
+            if (batchRaw.length >= numBlocks*dev.blockSize()) return batchRaw;
+            byte[] ret = new byte[numBlocks*dev.blockSize()];
+            if (numBlocks <= MAX_RETAINED_BATCH_BLOCKS) batchRaw = ret;
+            return ret;
+        }
+
+        int[] dirtyNodes(int numBlocks) {
+            // a run of n blocks has fewer than 2n+64 ancestors, counting itself
+            if (dirtyNodes.length >= 2*numBlocks + 2*32) return dirtyNodes;
+            int[] ret = new int[2*numBlocks + 2*32];
+            if (numBlocks <= MAX_RETAINED_BATCH_BLOCKS) dirtyNodes = ret;
+            return ret;
+        }
+
+        byte[][] oldHashes(int numBlocks) {
+            // one hash per entry of dirtyNodes(numBlocks)
+            if (oldHashes.length >= 2*numBlocks + 2*32) return oldHashes;
+            byte[][] ret = new byte[2*numBlocks + 2*32][HASH_SIZE_BYTES];
+            if (numBlocks <= MAX_RETAINED_BATCH_BLOCKS) oldHashes = ret;
+            return ret;
+        }
+    }
+
+    private static final int MAX_RETAINED_BATCH_BLOCKS = 16;
+
+    // readBlocks works through long runs a piece at a time, and spreads the
+    // hashing and decryption of pieces of at least PARALLEL_READ_MIN_BLOCKS
+    // blocks over readPool
+    public static final int MAX_READ_RANGE_BLOCKS = 1024;
+    public static final int PARALLEL_READ_MIN_BLOCKS = 16;
+    private static final int PARALLEL_GRAIN_BLOCKS = 4;
+    private static final ForkJoinPool readPool = ForkJoinPool.commonPool();
+
+    // Scratches not in use.  Every operation takes one and hands it back
+    // when done.  When the pool is empty a new one is made, and one handed
+    // back to a full pool is dropped, so however many threads use the store
+    // it keeps at most MAX_POOLED_SCRATCHES of them.
+    private static final int MAX_POOLED_SCRATCHES = 
+        2 * Runtime.getRuntime().availableProcessors();
+    private final BlockingQueue<Scratch> scratchPool = 
+        new ArrayBlockingQueue<Scratch>(MAX_POOLED_SCRATCHES);
+
+    private Scratch takeScratch() {
+        // Buffers for this caller alone, with PRFs for the current secrets.
+        // Give them back with releaseScratch.
+        Scratch s = scratchPool.poll();
+        if (s == null) {
+            s = new Scratch();
+        }
+        if (s.prfKey != treeHashKey) {
+            s.nonceDeriver = new PRF(keyOfNonces);
+            s.treeHasher = new PRF(treeHashKey);
+            s.prfKey = treeHashKey;
+        }
+        return s;
+    }
+
+    private void releaseScratch(Scratch s) {
+        scratchPool.offer(s);
+    }
+
+    private int stripeIndex(int node) {
+        // The stripe of <node>, which must be at or below level STRIPE_LEVEL:
+        // the index of its ancestor on that level.
+        int level = 31 - Integer.numberOfLeadingZeros(node + 1);
+        return ((node + 1) >>> (level - STRIPE_LEVEL)) - NUM_STRIPES;
+    }
+
+    private Stripe stripeOf(int node) {
+        return stripes[stripeIndex(node)];
+    }
+
+    private void lockStripes(long mask) {
+        // Lock the stripes whose bits are set in <mask> for writing, in
+        // ascending order.
+        for (int i = 0; i < NUM_STRIPES; i++) {
+            if ((mask & (1L << i)) != 0) {
+                stripes[i].lock.writeLock().lock();
+            }
+        }
+    }
+
+    private void unlockStripes(long mask) {
+        for (int i = NUM_STRIPES-1; i >= 0; i--) {
+            if ((mask & (1L << i)) != 0) {
+                stripes[i].lock.writeLock().unlock();
+            }
+        }
+    }
+
+    private void readLockStripes(long mask) {
+        // As lockStripes, but for reading.
+        for (int i = 0; i < NUM_STRIPES; i++) {
+            if ((mask & (1L << i)) != 0) {
+                stripes[i].lock.readLock().lock();
+            }
+        }
+    }
+
+    private void readUnlockStripes(long mask) {
+        for (int i = NUM_STRIPES-1; i >= 0; i--) {
+            if ((mask & (1L << i)) != 0) {
+                stripes[i].lock.readLock().unlock();
+            }
+        }
+    }
+
+    private void nodeHash(Scratch s, byte[] encryptedData, int dataOffset,
+        byte[] writeInstance, int writeInstanceOffset, 
+        byte[] leftChildHash, byte[] rightChildHash, byte[] hash) {
+        // Hash of one tree node, into <hash>.  The hash of an empty node
+        // (all-zero data and counter, empty children) is stored as all
+        // zeroes, so that a freshly formatted device is a valid tree.
+        s.treeHasher.update(encryptedData, dataOffset, this.blockSize());
+        s.treeHasher.update(writeInstance, writeInstanceOffset, COUNTER_SIZE_BYTES);
+        s.treeHasher.update(leftChildHash, 0, HASH_SIZE_BYTES);
+        s.treeHasher.eval(rightChildHash, 0, HASH_SIZE_BYTES, hash, 0);
+        if (Arrays.equals(hash, zeroHash)) {
+            Arrays.fill(hash, (byte)0);
+        }
+    }
+
+    private void macInput(Scratch s, int domain, int blockNum, long counter) {
+        // The fields a block MAC or a counter-table term starts with; the
+        // leading <domain> byte keeps the two kinds of input apart.
+        s.macInput[0] = (byte)domain;
+        s.macInput[1] = (byte)(blockNum >>> 24);
+        s.macInput[2] = (byte)(blockNum >>> 16);
+        s.macInput[3] = (byte)(blockNum >>> 8);
+        s.macInput[4] = (byte)blockNum;
+        LongUtils.longToBytes(counter, s.macInput, 5);
+    }
+
+    private void blockMac(Scratch s, int blockNum, long counter, 
+        byte[] encryptedData, int dataOffset, byte[] mac) {
+        // MODE_BLOCK_MAC: the tag of one write instance of a block, into <mac>.
+        macInput(s, 1, blockNum, counter);
+        s.treeHasher.update(s.macInput, 0, s.macInput.length);
+        s.treeHasher.eval(encryptedData, dataOffset, this.blockSize(), mac, 0);
+    }
+
+    private void counterTerm(Scratch s, int blockNum, long counter) {
+        // MODE_BLOCK_MAC: the counter-table checksum is the XOR of this term,
+        // into s.hash, over every block that has been written, so changing
+        // one counter costs two terms rather than a pass over the table.
+        macInput(s, 2, blockNum, counter);
+        s.treeHasher.eval(s.macInput, 0, s.macInput.length, s.hash, 0);
+    }
+
+    private static void xorInto(byte[] acc, byte[] term) {
+        for (int i = 0; i < acc.length; i++) {
+            acc[i] ^= term[i];
+        }
+    }
+
+    private long counter(int blockNum) {
+        macLock.lock();
+        try {
+            return (blockNum < numTracked) ? counters[blockNum] : 0;
+        } finally {
+            macLock.unlock();
+        }
+    }
+
+    private byte[] blockKey(int blockNum) {
+        // The encryption key of <blockNum>, derived from the key of keys.
+        synchronized (blockKeys) {
+            byte[] key = blockKeys.get(blockNum);
+            if (key == null) {
+                byte[] blockNumBytes = new byte[4];
+                blockNumBytes[0] = (byte)(blockNum >>> 24);
+                blockNumBytes[1] = (byte)(blockNum >>> 16);
+                blockNumBytes[2] = (byte)(blockNum >>> 8);
+                blockNumBytes[3] = (byte)blockNum;
+                key = keyDeriver.eval(blockNumBytes);
+                blockKeys.put(blockNum, key);
+            }
+            return key;
+        }
+    }
+
+    private byte[] nonce(Scratch s, byte[] writeInstance, int writeInstanceOffset) {
+        // The nonce for one write instance of a block, derived from the key
+        // of nonces.  Valid until the next call with <s>.
+        s.nonceDeriver.eval(writeInstance, writeInstanceOffset, COUNTER_SIZE_BYTES, s.nonce, 0);
+        return s.nonce;
+    }
+
+    private byte[] knownHash(Stripe st, int node) {
+        // The authenticated hash of <node>, or null if we don't have one.
+        // The top of the tree is always known.
+        if (node < NUM_TOP_NODES) {
+            return topHashes[node];
+        }
+        return st.verified.get(node);
+    }
+
+    private byte[] childHash(Scratch s, Stripe st, int node) throws DataIntegrityException {
+        // The hash of <node>: the authenticated copy if we have one, otherwise
+        // whatever the device holds, recorded as pending so that it joins the
+        // verified cache if the path it is part of checks out.
+        byte[] hash = knownHash(st, node);
+        if (hash == null) {
+            int k = s.numPending++;
+            s.pendingNodes[k] = node;
+            hash = s.pendingHashes[k];
+            dev.readBlock(node, hash, 0, 0, HASH_SIZE_BYTES);
+        }
+        return hash;
+    }
+
+    private void setVerified(Stripe st, int node, byte[] hash) {
+        byte[] known = knownHash(st, node);
+        if (known != null) {
+            System.arraycopy(hash, 0, known, 0, HASH_SIZE_BYTES);
+        } else {
+            st.verified.put(node, hash.clone());
+        }
+    }
+
+    private void trimVerifiedCache(Stripe st) {
+        // Dropping the stripe's whole cache keeps it closed under parents
+        // and siblings (see verifyPath), which evicting single entries would
+        // not.  Only called with the stripe locked for writing, at the start
+        // of a public operation, never in the middle.
+        if (st.verified.size() > maxStripeNodes) {
+            st.verified.clear();
+            st.verifiedCounters.clear();
+        }
+    }
+
+    private void verifyPath(Scratch s, Stripe st, int blockNum, byte[] encryptedData,
+        int dataOffset, byte[] writeInstance, int writeInstanceOffset) 
+        throws DataIntegrityException {
+        // Check that the given contents of <blockNum>, which is in stripe
+        // <st>, are authentic: hash up the tree until we reach a node whose
+        // hash is already known to be good, which at the latest is the root
+        // of the stripe.  Nothing is written to the device.
+        //
+        // On success every node on the path, the siblings used along the way
+        // and the children of <blockNum> are added to the verified cache.  So
+        // whenever a node is in the cache, its parent and its sibling are too.
+        s.numPending = 0;
+        byte[] leftChildHash = childHash(s, st, blockNum*2+1);
+        byte[] rightChildHash = childHash(s, st, blockNum*2+2);
+        int k = s.numPending++;
+        s.pendingNodes[k] = blockNum;
+        byte[] hash = s.pendingHashes[k];
+        nodeHash(s, encryptedData, dataOffset, writeInstance, writeInstanceOffset,
+            leftChildHash, rightChildHash, hash);
+
+        int node = blockNum;
+        while (true) {
+            byte[] known = knownHash(st, node);
+            if (known != null) {
+                if (!Arrays.equals(known, hash)) {
+                    throw new DataIntegrityException();
+                }
+                s.pendingNodes[k] = -1;
+                break;
+            }
+
+            // climb to the parent, combining our hash with the sibling's
+            int parent = (node-1) / 2;
+            int sibling = (node % 2 == 1) ? node+1 : node-1;
+            byte[] siblingHash = childHash(s, st, sibling);
+            dev.readBlock(parent, s.nodeData, 0, BLOCK_STORAGE_OFFSET_BYTES, this.blockSize());
+            dev.readBlock(parent, s.nodeWriteInstance, 0, COUNTER_OFFSET_BYTES, COUNTER_SIZE_BYTES);
+            k = s.numPending++;
+            s.pendingNodes[k] = parent;
+            byte[] parentHash = s.pendingHashes[k];
+            if (node % 2 == 1) {
+                nodeHash(s, s.nodeData, 0, s.nodeWriteInstance, 0, hash, siblingHash, parentHash);
+            } else {
+                nodeHash(s, s.nodeData, 0, s.nodeWriteInstance, 0, siblingHash, hash, parentHash);
+            }
+            hash = parentHash;
+            node = parent;
+        }
+
+        for (int i = 0; i < s.numPending; i++) {
+            if (s.pendingNodes[i] >= 0) {
+                st.verified.put(s.pendingNodes[i], s.pendingHashes[i].clone());
+            }
+        }
+        st.verifiedCounters.put(blockNum,
+            LongUtils.bytesToLong(writeInstance, writeInstanceOffset));
+    }
+
+    private void verifyTopNode(Scratch s, int node, byte[] encryptedData,
+        int dataOffset, byte[] writeInstance, int writeInstanceOffset) 
+        throws DataIntegrityException {
+        // Check the given contents of a node in the top of the tree against
+        // its hash in memory.  The caller holds topLock.
+        nodeHash(s, encryptedData, dataOffset, writeInstance, writeInstanceOffset,
+            topHashes[2*node+1], topHashes[2*node+2], s.hash);
+        if (!Arrays.equals(s.hash, topHashes[node])) {
+            throw new DataIntegrityException();
+        }
     }
 
     public void readBlock(int blockNum, byte[] buf, int bufOffset, 
         int blockOffset, int nbytes) throws DataIntegrityException {
-        if (blockOffset + nbytes > this.blockSize()) {
+        if (blockNum < 0 || blockOffset + nbytes > this.blockSize()) {
             throw new StudentArrayIndexOutOfBoundsException("that part of block doesn't exist");
         }
         if (bufOffset + nbytes > buf.length) {
             throw new StudentArrayIndexOutOfBoundsException("input buf not large enough");
         }
 
-        System.out.println("reading block " + blockNum);
+        long start = Instrumentation.start();
+        boolean succeeded = false;
+        Scratch s = takeScratch();
+        try {
+            if (mode == MODE_BLOCK_MAC) {
+                Stripe st = stripes[blockNum % NUM_STRIPES];
+                st.lock.readLock().lock();
+                try {
+                    macReadBlock(s, blockNum, buf, bufOffset, blockOffset, nbytes);
+                } finally {
+                    st.lock.readLock().unlock();
+                }
+            } else {
+                treeReadBlock(s, blockNum, buf, bufOffset, blockOffset, nbytes);
+            }
+            succeeded = true;
+        } finally {
+            releaseScratch(s);
+            Instrumentation.record(Instrumentation.OpBlockRead, start, succeeded);
+        }
+    }
 
-        // get write instance and data of block
-        byte[] writeInstance = new byte[COUNTER_SIZE_BYTES];
-        dev.readBlock(blockNum, writeInstance, 0, COUNTER_OFFSET_BYTES, COUNTER_SIZE_BYTES);
-        byte[] encryptedData = new byte[this.blockSize()];
-        dev.readBlock(blockNum, encryptedData, 0, BLOCK_STORAGE_OFFSET_BYTES, this.blockSize());
+    private void treeReadBlock(Scratch s, int blockNum, byte[] buf, int bufOffset, 
+        int blockOffset, int nbytes) throws DataIntegrityException {
+        ensureTopLoaded(s);
+        if (blockNum < FIRST_STRIPE_ROOT) {
+            // the top hashes must be up to date before we check against them
+            topLock.readLock().lock();
+            while (topDirty[0]) {
+                long ticket = topUpdates;
+                topLock.readLock().unlock();
+                awaitCommit(s, ticket);
+                topLock.readLock().lock();
+            }
+            try {
+                dev.readBlock(blockNum, s.writeInstance, 0, COUNTER_OFFSET_BYTES, COUNTER_SIZE_BYTES);
+                dev.readBlock(blockNum, s.data, 0, BLOCK_STORAGE_OFFSET_BYTES, this.blockSize());
+                verifyTopNode(s, blockNum, s.data, 0, s.writeInstance, 0);
+                decrypt(s, blockNum, s.data, 0, s.writeInstance, 0, buf, bufOffset, blockOffset, nbytes);
+            } finally {
+                topLock.readLock().unlock();
+            }
+            return;
+        }
 
-        // get the key for the hasher
-        byte[] treeHashKey = new byte[HASH_SIZE_BYTES];
-        dev.readSuperBlock(treeHashKey, 0, TREE_HASH_KEY_OFFSET_BYTES, HASH_SIZE_BYTES);
+        // trimming needs the stripe to ourselves, so it is done up front
+        Stripe st = stripeOf(blockNum);
+        if (st.verified.size() > maxStripeNodes) {
+            st.lock.writeLock().lock();
+            try {
+                trimVerifiedCache(st);
+            } finally {
+                st.lock.writeLock().unlock();
+            }
+        }
+        st.lock.readLock().lock();
+        try {
+            // get write instance and data of block
+            dev.readBlock(blockNum, s.writeInstance, 0, COUNTER_OFFSET_BYTES, COUNTER_SIZE_BYTES);
+            dev.readBlock(blockNum, s.data, 0, BLOCK_STORAGE_OFFSET_BYTES, this.blockSize());
 
-        // make copy of our data (so we still have our )
-        byte[] encryptedDataCopy = new byte[encryptedData.length];
-        System.arraycopy(encryptedData, 0, encryptedDataCopy, 0, encryptedData.length);
+            verifyPath(s, st, blockNum, s.data, 0, s.writeInstance, 0);
+            decrypt(s, blockNum, s.data, 0, s.writeInstance, 0, buf, bufOffset, blockOffset, nbytes);
+        } finally {
+            st.lock.readLock().unlock();
+        }
+    }
 
-        int tempBlockNum = blockNum;
-        byte[] hash = new byte[HASH_SIZE_BYTES];
-        while (true) {
-            dev.readBlock(tempBlockNum, encryptedDataCopy, 0, BLOCK_STORAGE_OFFSET_BYTES, this.blockSize());
-            dev.readBlock(tempBlockNum, writeInstance, 0, COUNTER_OFFSET_BYTES, COUNTER_SIZE_BYTES);
-            
-            PRF hasher = new PRF(treeHashKey);
-            byte[] leftChildHash = new byte[HASH_SIZE_BYTES];
-            byte[] rightChildHash = new byte[HASH_SIZE_BYTES];
-            dev.readBlock(tempBlockNum*2+1, leftChildHash, 0, 0, HASH_SIZE_BYTES);
-            dev.readBlock(tempBlockNum*2+2, rightChildHash, 0, 0, HASH_SIZE_BYTES);
-            hasher.update(encryptedDataCopy);
-            hasher.update(writeInstance);
-            hasher.update(leftChildHash);
-            hash = hasher.eval(rightChildHash);
+    private void macReadBlock(Scratch s, int blockNum, byte[] buf, int bufOffset, 
+        int blockOffset, int nbytes) throws DataIntegrityException {
+        // MODE_BLOCK_MAC: one device read, checked against the counter table
+        // and the block's MAC.  A block that was never written reads as zeroes.
+        long counter = counter(blockNum);
+        if (counter == 0) {
+            Arrays.fill(buf, bufOffset, bufOffset + nbytes, (byte)0);
+            return;
+        }
+        dev.readBlock(blockNum, s.raw, 0, 0, s.raw.length);
+        macOpen(s, blockNum, counter, s.raw, 0, buf, bufOffset, blockOffset, nbytes);
+    }
 
-            if (Arrays.equals(hash, zeroHash)) {
-                System.arraycopy(zeroArr, 0, hash, 0, hash.length);
+    private void macOpen(Scratch s, int blockNum, long counter, byte[] raw, int rawOffset,
+        byte[] buf, int bufOffset, int blockOffset, int nbytes) throws DataIntegrityException {
+        // Check the copy of <blockNum> stored at raw[rawOffset] against the
+        // counter table and its MAC, then decrypt the part that was asked for.
+        if (LongUtils.bytesToLong(raw, rawOffset + COUNTER_OFFSET_BYTES) != counter) {
+            throw new DataIntegrityException();
+        }
+        blockMac(s, blockNum, counter, raw, rawOffset + BLOCK_STORAGE_OFFSET_BYTES, s.hash);
+        for (int i = 0; i < HASH_SIZE_BYTES; i++) {
+            if (raw[rawOffset + i] != s.hash[i]) {
+                throw new DataIntegrityException();
             }
+        }
+        decrypt(s, blockNum, raw, rawOffset + BLOCK_STORAGE_OFFSET_BYTES, 
+            raw, rawOffset + COUNTER_OFFSET_BYTES, buf, bufOffset, blockOffset, nbytes);
+    }
 
-            dev.writeBlock(tempBlockNum, hash, 0, 0, HASH_SIZE_BYTES);
+    private void decrypt(Scratch s, int blockNum, byte[] encryptedData, int dataOffset, 
+        byte[] writeInstance, int writeInstanceOffset, 
+        byte[] buf, int bufOffset, int blockOffset, int nbytes) {
+        // if block is empty, no need to decrypt
+        boolean empty = true;
+        for (int i = 0; i < this.blockSize() && empty; i++) {
+            empty = (encryptedData[dataOffset+i] == 0);
+        }
+        if (empty) {
+            System.arraycopy(encryptedData, dataOffset + blockOffset, buf, bufOffset, nbytes);
+            return;
+        }
 
-            if (tempBlockNum == 0) break;
+        // not empty, so decrypt with nonce; a whole block is decrypted
+        // straight into the caller's buffer, which may be <encryptedData>
+        StreamCipher cipher = new StreamCipher(blockKey(blockNum), 
+            nonce(s, writeInstance, writeInstanceOffset));
+        if (blockOffset == 0 && nbytes == this.blockSize()) {
+            cipher.cryptBytes(encryptedData, dataOffset, buf, bufOffset, nbytes);
+        } else {
+            cipher.cryptBytes(encryptedData, dataOffset, s.plain, 0, blockOffset + nbytes);
+            System.arraycopy(s.plain, blockOffset, buf, bufOffset, nbytes);
+        }
+    }
 
-            tempBlockNum = (tempBlockNum-1) / 2;
+    // Read a run of consecutive blocks, laid out as for writeBlocks.  The
+    // blocks come from the device in one call per MAX_READ_RANGE_BLOCKS.
+    // A short run is checked in order, so the path verified for the first
+    // block is shared by the rest: each later block is usually a sibling or
+    // cousin of one already checked, and stops at a parent that is now in
+    // the verified cache.  A longer one is checked and decrypted in
+    // parallel (see parallelReadRange).  The handful of blocks in the top of
+    // the tree are read one at a time.  If any block fails its check,
+    // nothing of the run is left in <buf>.
+    public void readBlocks(int firstBlockNum, byte[] buf, int bufOffset, 
+        int blockOffset, int nbytes) throws DataIntegrityException {
+        if (firstBlockNum < 0 || blockOffset < 0 || blockOffset >= this.blockSize()) {
+            throw new StudentArrayIndexOutOfBoundsException("that part of block doesn't exist");
         }
+        if (bufOffset < 0 || nbytes < 0 || bufOffset + nbytes > buf.length) {
+            throw new StudentArrayIndexOutOfBoundsException("input buf not large enough");
+        }
+        if (nbytes == 0) return;
+        long start = Instrumentation.start();
+        boolean succeeded = false;
+        Scratch s = takeScratch();
+        try {
+            int blockSize = this.blockSize();
+            int numBlocks = (blockOffset + nbytes + blockSize - 1) / blockSize;
+            int i = 0;
+            if (mode == MODE_MERKLE_TREE) {
+                ensureTopLoaded(s);
+                for (; i < numBlocks && firstBlockNum + i < FIRST_STRIPE_ROOT; i++) {
+                    int lo = (i == 0) ? blockOffset : 0;
+                    int hi = Math.min(blockSize, blockOffset + nbytes - i*blockSize);
+                    treeReadBlock(s, firstBlockNum + i, buf, 
+                        bufOffset + i*blockSize + lo - blockOffset, lo, hi - lo);
+                }
+            }
+            for (; i < numBlocks; i += MAX_READ_RANGE_BLOCKS) {
+                readRange(s, firstBlockNum, i, Math.min(numBlocks, i + MAX_READ_RANGE_BLOCKS),
+                    buf, bufOffset, blockOffset, nbytes);
+            }
+            succeeded = true;
+        } catch (DataIntegrityException x) {
+            Arrays.fill(buf, bufOffset, bufOffset + nbytes, (byte)0);
+            throw x;
+        } finally {
+            releaseScratch(s);
+            Instrumentation.record(Instrumentation.OpBlockRead, start, succeeded);
+        }
+    }
 
-        byte[] superHash = new byte[HASH_SIZE_BYTES];
-        dev.readSuperBlock(superHash, 0, ROOT_HASH_OFFSET_BYTES, HASH_SIZE_BYTES);
+    private void readRange(Scratch s, int firstBlockNum, int from, int to,
+        byte[] buf, int bufOffset, int blockOffset, int nbytes) throws DataIntegrityException {
+        // The body of readBlocks for blocks <from> thru <to>-1 of the run,
+        // none of which is in the top of the tree.
+        int blockSize = this.blockSize();
+        int devBlockSize = dev.blockSize();
+        int count = to - from;
+        long mask = 0;
+        for (int i = from; i < to && mask != -1L; i++) {
+            int blockNum = firstBlockNum + i;
+            mask |= 1L << ((mode == MODE_BLOCK_MAC) ? blockNum % NUM_STRIPES : stripeIndex(blockNum));
+        }
+        if (mode == MODE_MERKLE_TREE) {
+            // as in treeReadBlock, trimming is done up front
+            for (int i = 0; i < NUM_STRIPES; i++) {
+                Stripe st = stripes[i];
+                if ((mask & (1L << i)) != 0 && st.verified.size() > maxStripeNodes) {
+                    st.lock.writeLock().lock();
+                    try {
+                        trimVerifiedCache(st);
+                    } finally {
+                        st.lock.writeLock().unlock();
+                    }
+                }
+            }
+        }
+        readLockStripes(mask);
+        try {
+            byte[] raw = s.batchRaw(count);
+            dev.readBlocks(firstBlockNum + from, raw, 0, 0, count*devBlockSize);
+            if (count >= PARALLEL_READ_MIN_BLOCKS) {
+                parallelReadRange(firstBlockNum, from, to, raw, buf, bufOffset, blockOffset, nbytes);
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                int blockNum = firstBlockNum + i;
+                int rawOffset = (i - from)*devBlockSize;
+                int lo = (i == 0) ? blockOffset : 0;
+                int hi = Math.min(blockSize, blockOffset + nbytes - i*blockSize);
+                int outOffset = bufOffset + i*blockSize + lo - blockOffset;
+                if (mode == MODE_BLOCK_MAC) {
+                    long counter = counter(blockNum);
+                    if (counter == 0) {
+                        Arrays.fill(buf, outOffset, outOffset + hi - lo, (byte)0);
+                    } else {
+                        macOpen(s, blockNum, counter, raw, rawOffset, buf, outOffset, lo, hi - lo);
+                    }
+                } else {
+                    verifyPath(s, stripeOf(blockNum), blockNum, raw, rawOffset + BLOCK_STORAGE_OFFSET_BYTES,
+                        raw, rawOffset + COUNTER_OFFSET_BYTES);
+                    decrypt(s, blockNum, raw, rawOffset + BLOCK_STORAGE_OFFSET_BYTES,
+                        raw, rawOffset + COUNTER_OFFSET_BYTES, buf, outOffset, lo, hi - lo);
+                }
+            }
+        } finally {
+            readUnlockStripes(mask);
+        }
+    }
 
-        if (!Arrays.equals(superHash, hash)) {
-            throw new DataIntegrityException();
+    private void parallelReadRange(final int firstBlockNum, final int from, int to, 
+        final byte[] raw, final byte[] buf, final int bufOffset, final int blockOffset, 
+        final int nbytes) throws DataIntegrityException {
+        // readRange for a long run, with its stripes locked by this thread
+        // and its device blocks in <raw>.  The work is done on readPool; this
+        // thread's locks cover it, since we wait for all of it to finish.
+        if (mode == MODE_MERKLE_TREE) {
+            verifyRange(firstBlockNum + from, firstBlockNum + to - 1, raw);
         }
+        final int blockSize = this.blockSize();
+        final int devBlockSize = dev.blockSize();
+        parallelFor(from, to, new IndexTask() {
+            public void run(Scratch s, int i) throws DataIntegrityException {
+                int blockNum = firstBlockNum + i;
+                int rawOffset = (i - from)*devBlockSize;
+                int lo = (i == 0) ? blockOffset : 0;
+                int hi = Math.min(blockSize, blockOffset + nbytes - i*blockSize);
+                int outOffset = bufOffset + i*blockSize + lo - blockOffset;
+                if (mode == MODE_BLOCK_MAC) {
+                    long counter = counter(blockNum);
+                    if (counter == 0) {
+                        Arrays.fill(buf, outOffset, outOffset + hi - lo, (byte)0);
+                    } else {
+                        macOpen(s, blockNum, counter, raw, rawOffset, buf, outOffset, lo, hi - lo);
+                    }
+                } else {
+                    decrypt(s, blockNum, raw, rawOffset + BLOCK_STORAGE_OFFSET_BYTES,
+                        raw, rawOffset + COUNTER_OFFSET_BYTES, buf, outOffset, lo, hi - lo);
+                }
+            }
+        });
+    }
 
-        // get key
-        byte[] keyOfKeys = new byte[HASH_SIZE_BYTES];
-        dev.readSuperBlock(keyOfKeys, 0, 0, HASH_SIZE_BYTES);
-        byte[] decryptorKey = (new PRF(keyOfKeys)).eval(ByteBuffer.allocate(4).putInt(blockNum).array());
+    private void verifyRange(final int first, final int last, final byte[] raw) 
+        throws DataIntegrityException {
+        // Check blocks <first> thru <last>, none in the top of the tree, whose
+        // device copies are in <raw>.  Like verifyPath for every block at
+        // once: hash the blocks and their ancestors up to the first nodes
+        // whose hashes are known, each node once, deepest level first and
+        // each level in parallel, then compare with the known hashes.  On
+        // success everything hashed or read joins the verified cache.  The
+        // caller holds the blocks' stripes.
+        final int devBlockSize = dev.blockSize();
 
-        // get nonce by getting the key needed to generate nonce
-        byte[] keyOfNonces = new byte[HASH_SIZE_BYTES];
-        dev.readSuperBlock(keyOfNonces, 0, NONCE_BASE_OFFSET_BYTES, HASH_SIZE_BYTES);
-        byte[] nonce = (new PRF(keyOfNonces)).eval(writeInstance);
+        // the nodes to hash, each with room for its hash
+        final Map<Integer, byte[]> hashes = new HashMap<Integer, byte[]>();
+        int[] nodes = new int[2*(last - first + 1) + 2*32];
+        int numNodes = 0;
+        for (int node = first; node <= last; node++) {
+            hashes.put(node, new byte[HASH_SIZE_BYTES]);
+            nodes[numNodes++] = node;
+        }
+        for (int k = 0; k < numNodes; k++) {
+            int node = nodes[k];
+            int parent = (node - 1) / 2;
+            if (knownHash(stripeOf(node), node) == null && !hashes.containsKey(parent)) {
+                hashes.put(parent, new byte[HASH_SIZE_BYTES]);
+                nodes[numNodes++] = parent;
+            }
+        }
+        Arrays.sort(nodes, 0, numNodes);
 
-        // if block is empty, no need to decrypt
-        if (Arrays.equals(emptyBlockData, encryptedData)) {
-            System.arraycopy(encryptedData, blockOffset, buf, bufOffset, nbytes);
-            return;
+        // hashes read from the device for children outside that set
+        final Map<Integer, byte[]> readHashes = new ConcurrentHashMap<Integer, byte[]>();
+        final int[] sorted = nodes;
+        int end = numNodes;
+        while (end > 0) {
+            int level = level(sorted[end-1]);
+            int begin = end - 1;
+            while (begin > 0 && level(sorted[begin-1]) == level) {
+                begin--;
+            }
+            parallelFor(begin, end, new IndexTask() {
+                public void run(Scratch s, int k) throws DataIntegrityException {
+                    int node = sorted[k];
+                    Stripe st = stripeOf(node);
+                    byte[] data = raw;
+                    int dataOffset = (node - first)*devBlockSize + BLOCK_STORAGE_OFFSET_BYTES;
+                    byte[] writeInstance = raw;
+                    int writeInstanceOffset = (node - first)*devBlockSize + COUNTER_OFFSET_BYTES;
+                    if (node < first || node > last) {
+                        dev.readBlock(node, s.nodeData, 0, BLOCK_STORAGE_OFFSET_BYTES, blockSize());
+                        dev.readBlock(node, s.nodeWriteInstance, 0, COUNTER_OFFSET_BYTES, COUNTER_SIZE_BYTES);
+                        data = s.nodeData;
+                        dataOffset = 0;
+                        writeInstance = s.nodeWriteInstance;
+                        writeInstanceOffset = 0;
+                    }
+                    nodeHash(s, data, dataOffset, writeInstance, writeInstanceOffset,
+                        inputHash(st, 2*node+1, hashes, readHashes),
+                        inputHash(st, 2*node+2, hashes, readHashes), hashes.get(node));
+                }
+            });
+            end = begin;
+        }
+
+        boolean[] known = new boolean[numNodes];
+        for (int k = 0; k < numNodes; k++) {
+            byte[] knownHash = knownHash(stripeOf(sorted[k]), sorted[k]);
+            if (knownHash != null && !Arrays.equals(knownHash, hashes.get(sorted[k]))) {
+                throw new DataIntegrityException();
+            }
+            known[k] = (knownHash != null);
+        }
+        for (int k = 0; k < numNodes; k++) {
+            if (!known[k]) {
+                stripeOf(sorted[k]).verified.put(sorted[k], hashes.get(sorted[k]));
+            }
+        }
+        for (Map.Entry<Integer, byte[]> e : readHashes.entrySet()) {
+            stripeOf(e.getKey()).verified.putIfAbsent(e.getKey(), e.getValue());
+        }
+        for (int node = first; node <= last; node++) {
+            stripeOf(node).verifiedCounters.put(node, 
+                LongUtils.bytesToLong(raw, (node - first)*devBlockSize + COUNTER_OFFSET_BYTES));
+        }
+    }
+
+    private byte[] inputHash(Stripe st, int child, Map<Integer, byte[]> hashes,
+        Map<Integer, byte[]> readHashes) throws DataIntegrityException {
+        // verifyRange: the hash of <child> to use when hashing its parent.
+        byte[] hash = hashes.get(child);
+        if (hash == null) {
+            hash = knownHash(st, child);
+        }
+        if (hash == null) {
+            hash = new byte[HASH_SIZE_BYTES];
+            dev.readBlock(child, hash, 0, 0, HASH_SIZE_BYTES);
+            readHashes.put(child, hash);
         }
+        return hash;
+    }
+
+    private static int level(int node) {
+        return 31 - Integer.numberOfLeadingZeros(node + 1);
+    }
+
+    // One step of a parallelFor, with working buffers of its own in <s>.
+    private interface IndexTask {
+        void run(Scratch s, int i) throws DataIntegrityException;
+    }
 
-        // not empty, so decrypt with nonce
-        StreamCipher cipher = new StreamCipher(decryptorKey, nonce);
-        byte[] decryptedData = new byte[encryptedData.length];
-        cipher.cryptBytes(encryptedData, 0, decryptedData, 0, encryptedData.length);
-        System.arraycopy(decryptedData, blockOffset, buf, bufOffset, nbytes);
+    private void parallelFor(int from, int to, final IndexTask task) 
+        throws DataIntegrityException {
+        // Run task.run(s, i) for every i from <from> to <to>-1 on readPool,
+        // splitting the range in halves down to PARALLEL_GRAIN_BLOCKS.  Each
+        // piece of the range takes one Scratch for its steps.
+        class Split extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+            final int lo, hi;
+            Split(int lo, int hi) {
+                this.lo = lo;
+                this.hi = hi;
+            }
+            protected void compute() {
+                if (hi - lo <= PARALLEL_GRAIN_BLOCKS) {
+                    Scratch s = takeScratch();
+                    try {
+                        for (int i = lo; i < hi; i++) {
+                            task.run(s, i);
+                        }
+                    } catch (DataIntegrityException x) {
+                        throw new RuntimeException(x);
+                    } finally {
+                        releaseScratch(s);
+                    }
+                    return;
+                }
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new Split(lo, mid), new Split(mid, hi));
+            }
+        }
+        try {
+            readPool.invoke(new Split(from, to));
+        } catch (RuntimeException x) {
+            // the pool may hand back a copy of the exception, wrapping ours
+            for (Throwable t = x; t != null; t = t.getCause()) {
+                if (t instanceof DataIntegrityException) {
+                    throw (DataIntegrityException)t;
+                }
+            }
+            throw x;
+        }
     }
 
     public void writeBlock(int blockNum, byte[] buf, int bufOffset, 
@@ -182,86 +1194,468 @@ public class BlockStoreAuthEnc implements BlockStore {
         if (blockOffset + nbytes > this.blockSize()) {
             throw new StudentArrayIndexOutOfBoundsException("that part of block doesn't exist");
         }
-        if (bufOffset + nbytes > buf.length) {
+        writeBlocks(blockNum, buf, bufOffset, blockOffset, nbytes);
+    }
+
+    // The ByteBuffer versions.  The cipher works on byte arrays, so a heap
+    // buffer's own array is encrypted from or decrypted into directly, and
+    // any other buffer is staged through a pooled transfer block
+    // rather than a fresh array.
+    public void readBlock(int blockNum, ByteBuffer buf, int blockOffset) 
+        throws DataIntegrityException {
+        int nbytes = buf.remaining();
+        if (buf.hasArray()) {
+            readBlock(blockNum, buf.array(), buf.arrayOffset() + buf.position(), 
+                blockOffset, nbytes);
+            buf.position(buf.position() + nbytes);
+            return;
+        }
+        if (blockOffset < 0 || blockOffset + nbytes > this.blockSize()) {
+            throw new StudentArrayIndexOutOfBoundsException("that part of block doesn't exist");
+        }
+        Scratch s = takeScratch();
+        try {
+            readBlock(blockNum, s.transfer, 0, blockOffset, nbytes);
+            buf.put(s.transfer, 0, nbytes);
+        } finally {
+            releaseScratch(s);
+        }
+    }
+
+    public void writeBlock(int blockNum, ByteBuffer buf, int blockOffset) 
+        throws DataIntegrityException {
+        int nbytes = buf.remaining();
+        if (buf.hasArray()) {
+            writeBlock(blockNum, buf.array(), buf.arrayOffset() + buf.position(), 
+                blockOffset, nbytes);
+            buf.position(buf.position() + nbytes);
+            return;
+        }
+        if (blockOffset < 0 || blockOffset + nbytes > this.blockSize()) {
+            throw new StudentArrayIndexOutOfBoundsException("that part of block doesn't exist");
+        }
+        Scratch s = takeScratch();
+        try {
+            buf.duplicate().get(s.transfer, 0, nbytes);
+            writeBlocks(blockNum, s.transfer, 0, blockOffset, nbytes);
+        } finally {
+            releaseScratch(s);
+        }
+        buf.position(buf.position() + nbytes);
+    }
+
+    // Write a run of consecutive blocks in one batch.  The contents of 
+    // buf[bufOffset] thru buf[bufOffset+nbytes-1] are written starting at
+    // byte <blockOffset> of block <firstBlockNum>, continuing into the
+    // following blocks as needed, exactly as a sequence of writeBlock calls
+    // would.  The difference is that every tree node affected by the batch
+    // is re-hashed exactly once, bottom-up, and the root hash in the
+    // superblock is written once at the end.  The whole batch is atomic
+    // with respect to other threads.
+    public void writeBlocks(int firstBlockNum, byte[] buf, int bufOffset, 
+        int blockOffset, int nbytes) throws DataIntegrityException {
+        if (firstBlockNum < 0 || blockOffset < 0 || blockOffset >= this.blockSize()) {
+            throw new StudentArrayIndexOutOfBoundsException("that part of block doesn't exist");
+        }
+        if (bufOffset < 0 || nbytes < 0 || bufOffset + nbytes > buf.length) {
             throw new StudentArrayIndexOutOfBoundsException("input buf not large enough");
         }
+        if (nbytes == 0) return;
+        long start = Instrumentation.start();
+        boolean succeeded = false;
+        Scratch s = takeScratch();
+        try {
+            if (mode == MODE_BLOCK_MAC) {
+                macWriteBlocks(s, firstBlockNum, buf, bufOffset, blockOffset, nbytes);
+            } else {
+                treeWriteBlocks(s, firstBlockNum, buf, bufOffset, blockOffset, nbytes);
+            }
+            succeeded = true;
+        } finally {
+            releaseScratch(s);
+            Instrumentation.record(Instrumentation.OpBlockWrite, start, succeeded);
+        }
+    }
 
-        // write data
-        System.out.println("writing block " + blockNum);
+    private void treeWriteBlocks(Scratch s, int firstBlockNum, byte[] buf, 
+        int bufOffset, int blockOffset, int nbytes) throws DataIntegrityException {
+        ensureTopLoaded(s);
 
-        // update hash
-        // get key
-        byte[] keyOfKeys = new byte[HASH_SIZE_BYTES];
-        dev.readSuperBlock(keyOfKeys, 0, 0, HASH_SIZE_BYTES);
-        byte[] encryptorKey = (new PRF(keyOfKeys)).eval(ByteBuffer.allocate(4).putInt(blockNum).array());
+        int blockSize = this.blockSize();
+        int numBlocks = (blockOffset + nbytes + blockSize - 1) / blockSize;
+        int lastBlockNum = firstBlockNum + numBlocks - 1;
 
-        // get nonce, first by getting the key needed to generate nonce,
-        //  then by getting the write instance from the block storage,
-        //  then generating the nonce from those two things
-        byte[] keyOfNonces = new byte[HASH_SIZE_BYTES];
-        dev.readSuperBlock(keyOfNonces, 0, NONCE_BASE_OFFSET_BYTES, HASH_SIZE_BYTES);
+        // Lock every stripe the batch touches.  Batches that write blocks in
+        // the top of the tree hold topLock throughout; the others take it
+        // only once they get to re-hashing the top.
+        long mask = 0;
+        for (int blockNum = Math.max(firstBlockNum, FIRST_STRIPE_ROOT);
+            blockNum <= lastBlockNum && mask != -1L; blockNum++) {
+            mask |= 1L << stripeIndex(blockNum);
+        }
+        long ticket;
+        lockStripes(mask);
+        try {
+            for (int i = 0; i < NUM_STRIPES; i++) {
+                if ((mask & (1L << i)) != 0) {
+                    trimVerifiedCache(stripes[i]);
+                }
+            }
+            if (firstBlockNum < FIRST_STRIPE_ROOT) {
+                // the top blocks are checked against up-to-date hashes
+                topLock.writeLock().lock();
+                commitTop(s);
+            }
+            ticket = treeWriteLocked(s, firstBlockNum, numBlocks,
+                buf, bufOffset, blockOffset, nbytes);
+        } finally {
+            if (topLock.isWriteLockedByCurrentThread()) {
+                topLock.writeLock().unlock();
+            }
+            unlockStripes(mask);
+        }
+        awaitCommit(s, ticket);
+    }
 
-        // get and increment write instance number
-        byte[] writeInstance = new byte[COUNTER_SIZE_BYTES];
-        dev.readBlock(blockNum, writeInstance, 0, COUNTER_OFFSET_BYTES, COUNTER_SIZE_BYTES);
-        long writeInstanceLong = LongUtils.bytesToLong(writeInstance, 0);
-        writeInstanceLong++;
-        byte[] incrementedWriteInstance = new byte[COUNTER_SIZE_BYTES];
-        LongUtils.longToBytes(writeInstanceLong, incrementedWriteInstance, 0);
-
-        // get nonce from incremented write instance
-        byte[] nonce = (new PRF(keyOfNonces)).eval(incrementedWriteInstance);
-
-        // needs to handle only partial writes!
-        // decrypt current block first
-        byte[] currBlockBytes = new byte[this.blockSize()];
-        this.readBlock(blockNum, currBlockBytes, 0, 0, this.blockSize());
-        // now we can edit decrypted contents and then reencrypt
-        System.arraycopy(buf, bufOffset, currBlockBytes, blockOffset, nbytes);
-
-        // encrypt with new nonce and data changes
-        // AuthEncryptor encryptor = new AuthEncryptor(encryptorKey);
-        // byte[] encryptedData = encryptor.encrypt(currBlockBytes, nonce, false);
-        StreamCipher cipher = new StreamCipher(encryptorKey, nonce);
-        byte[] encryptedData = new byte[currBlockBytes.length];
-        cipher.cryptBytes(currBlockBytes, 0, encryptedData, 0, currBlockBytes.length);
-
-        // write new block data
-        dev.writeBlock(blockNum, encryptedData, 0, BLOCK_STORAGE_OFFSET_BYTES, this.blockSize());
-        dev.writeBlock(blockNum, incrementedWriteInstance, 0, COUNTER_OFFSET_BYTES, COUNTER_SIZE_BYTES);
-
-        // recompute hash and update tree!!
-        byte[] treeHashKey = new byte[HASH_SIZE_BYTES];
-        dev.readSuperBlock(treeHashKey, 0, TREE_HASH_KEY_OFFSET_BYTES, HASH_SIZE_BYTES);
+    private long treeWriteLocked(Scratch s, int firstBlockNum, int numBlocks,
+        byte[] buf, int bufOffset, int blockOffset, int nbytes)
+        throws DataIntegrityException {
+        // The body of treeWriteBlocks, with the stripes locked.  Takes
+        // topLock if it isn't held yet, and returns the number of the update
+        // of the top that has to be committed.
+        int blockSize = this.blockSize();
+        byte[] blockData = s.batchData(numBlocks);
+        byte[] writeInstances = s.batchWriteInstances(numBlocks);
 
-        int tempBlockNum = blockNum;
-        // update the tree
-        byte[] hash = new byte[HASH_SIZE_BYTES];
+        // First authenticate every block we are about to change, before any
+        // of them is modified: a block's old contents are needed when it is
+        // only partly overwritten, and its write instance must be genuine
+        // before we increment it.  This leaves every path, sibling and child
+        // we need below in the verified cache.
+        //
+        // A block that is overwritten entirely doesn't need its old contents,
+        // only its write instance.  If the counter is already known to be
+        // authentic we use it as is; otherwise we still verify the block,
+        // but skip decrypting it.  (The top of the tree always has authentic
+        // counters in memory, but with the verified cache turned off we check
+        // the device's copy all the same.)
+        int endOffset = blockOffset + nbytes;
+        for (int i = 0; i < numBlocks; i++) {
+            int blockNum = firstBlockNum + i;
+            boolean wholeBlock = (i > 0 || blockOffset == 0) 
+                && (i < numBlocks-1 || endOffset % blockSize == 0);
+            Stripe st = (blockNum < FIRST_STRIPE_ROOT) ? null : stripeOf(blockNum);
+            if (wholeBlock) {
+                if (st == null && maxVerifiedNodes > 0) {
+                    System.arraycopy(topWriteInstances, blockNum*COUNTER_SIZE_BYTES,
+                        writeInstances, i*COUNTER_SIZE_BYTES, COUNTER_SIZE_BYTES);
+                    continue;
+                }
+                Long knownWriteInstance = (st == null) ? null : st.verifiedCounters.get(blockNum);
+                if (knownWriteInstance != null) {
+                    LongUtils.longToBytes(knownWriteInstance, writeInstances, i*COUNTER_SIZE_BYTES);
+                    continue;
+                }
+            }
+            dev.readBlock(blockNum, writeInstances, i*COUNTER_SIZE_BYTES, 
+                COUNTER_OFFSET_BYTES, COUNTER_SIZE_BYTES);
+            dev.readBlock(blockNum, blockData, i*blockSize, 
+                BLOCK_STORAGE_OFFSET_BYTES, blockSize);
+            if (st == null) {
+                verifyTopNode(s, blockNum, blockData, i*blockSize,
+                    writeInstances, i*COUNTER_SIZE_BYTES);
+            } else {
+                verifyPath(s, st, blockNum, blockData, i*blockSize,
+                    writeInstances, i*COUNTER_SIZE_BYTES);
+            }
+
+            // decrypt current block (needs to handle partial writes!)
+            if (!wholeBlock) {
+                decrypt(s, blockNum, blockData, i*blockSize, writeInstances, i*COUNTER_SIZE_BYTES, 
+                    blockData, i*blockSize, 0, blockSize);
+            }
+        }
+
+        // Now merge in the new bytes, encrypt each block under a fresh nonce
+        // (from its incremented write instance) and write it out.
+        System.arraycopy(buf, bufOffset, blockData, blockOffset, nbytes);
+        for (int i = 0; i < numBlocks; i++) {
+            int blockNum = firstBlockNum + i;
+            long writeInstanceLong = LongUtils.bytesToLong(writeInstances, i*COUNTER_SIZE_BYTES) + 1;
+            LongUtils.longToBytes(writeInstanceLong, writeInstances, i*COUNTER_SIZE_BYTES);
+            StreamCipher cipher = new StreamCipher(blockKey(blockNum), 
+                nonce(s, writeInstances, i*COUNTER_SIZE_BYTES));
+            cipher.cryptBytes(blockData, i*blockSize, blockData, i*blockSize, blockSize);
+
+            dev.writeBlock(blockNum, blockData, i*blockSize, BLOCK_STORAGE_OFFSET_BYTES, blockSize);
+            dev.writeBlock(blockNum, writeInstances, i*COUNTER_SIZE_BYTES, 
+                COUNTER_OFFSET_BYTES, COUNTER_SIZE_BYTES);
+            if (blockNum < FIRST_STRIPE_ROOT) {
+                System.arraycopy(blockData, i*blockSize, topData[blockNum], 0, blockSize);
+                System.arraycopy(writeInstances, i*COUNTER_SIZE_BYTES,
+                    topWriteInstances, blockNum*COUNTER_SIZE_BYTES, COUNTER_SIZE_BYTES);
+            } else {
+                stripeOf(blockNum).verifiedCounters.put(blockNum, writeInstanceLong);
+            }
+        }
+
+        // Collect the blocks and all their ancestors.  The parents of a run
+        // of consecutive nodes are themselves a run, so we can go up level
+        // by level; the runs may overlap once they reach the top levels.
+        int[] dirtyNodes = s.dirtyNodes(numBlocks);
+        int numDirty = 0;
+        int lo = firstBlockNum;
+        int hi = firstBlockNum + numBlocks - 1;
         while (true) {
+            for (int node = lo; node <= hi; node++) {
+                dirtyNodes[numDirty++] = node;
+            }
+            if (lo == 0) break;
+            lo = (lo-1) / 2;
+            hi = (hi-1) / 2;
+        }
+        Arrays.sort(dirtyNodes, 0, numDirty);
+        int numDistinct = 0;
+        for (int i = 0; i < numDirty; i++) {
+            if (numDistinct == 0 || dirtyNodes[numDistinct-1] != dirtyNodes[i]) {
+                dirtyNodes[numDistinct++] = dirtyNodes[i];
+            }
+        }
+        numDirty = numDistinct;
 
-            dev.readBlock(tempBlockNum, encryptedData, 0, BLOCK_STORAGE_OFFSET_BYTES, this.blockSize());
-            dev.readBlock(tempBlockNum, incrementedWriteInstance, 0, COUNTER_OFFSET_BYTES, COUNTER_SIZE_BYTES);
+        // Re-hash every dirty node once.  Children always have higher numbers
+        // than their parent, so going in descending order means a node's
+        // children are final by the time we get to it.  Clean children and
+        // siblings were all verified above, so they are served from the
+        // cache.  The nodes inside the stripes come first; topLock is taken
+        // when we reach the subtree roots, and the top proper is left to the
+        // group commit.
+        //
+        // An ancestor outside the batch has to be read back from the device,
+        // and that copy is checked before it goes into the new hash: hashed
+        // with its children's old hashes (kept in oldHashes as each dirty
+        // node is replaced), it must give the ancestor's own old hash.
+        byte[][] oldHashes = s.oldHashes(numBlocks);
+        byte[] hash = s.hash;
+        for (int i = numDirty-1; i >= 0; i--) {
+            int node = dirtyNodes[i];
+            if (node < NUM_TOP_NODES && !topLock.isWriteLockedByCurrentThread()) {
+                topLock.writeLock().lock();
+            }
+            if (node < FIRST_STRIPE_ROOT) {
+                topDirty[node] = true;
+                continue;
+            }
 
-            // get children hashes
-            byte[] leftChildHash = new byte[HASH_SIZE_BYTES];
-            byte[] rightChildHash = new byte[HASH_SIZE_BYTES];
-            dev.readBlock(tempBlockNum*2+1, leftChildHash, 0, 0, HASH_SIZE_BYTES);
-            dev.readBlock(tempBlockNum*2+2, rightChildHash, 0, 0, HASH_SIZE_BYTES);
+            byte[] data = s.nodeData;
+            int dataOffset = 0;
+            byte[] writeInstance = s.nodeWriteInstance;
+            int writeInstanceOffset = 0;
+            if (node >= firstBlockNum && node < firstBlockNum + numBlocks) {
+                data = blockData;
+                dataOffset = (node - firstBlockNum)*blockSize;
+                writeInstance = writeInstances;
+                writeInstanceOffset = (node - firstBlockNum)*COUNTER_SIZE_BYTES;
+            }
+            // every dirty node is on the path of a block verified above
+            Stripe st = stripeOf(node);
+            byte[] known = knownHash(st, node);
+            if (known == null) {
+                throw new DataIntegrityException();
+            }
+            if (data == s.nodeData) {
+                dev.readBlock(node, s.nodeData, 0, BLOCK_STORAGE_OFFSET_BYTES, blockSize);
+                dev.readBlock(node, s.nodeWriteInstance, 0, COUNTER_OFFSET_BYTES, COUNTER_SIZE_BYTES);
+                nodeHash(s, s.nodeData, 0, s.nodeWriteInstance, 0,
+                    oldHash(st, node*2+1, dirtyNodes, numDirty, oldHashes),
+                    oldHash(st, node*2+2, dirtyNodes, numDirty, oldHashes), hash);
+                if (!Arrays.equals(known, hash)) {
+                    // the nodes below were already replaced; forget them, so
+                    // that reads check them against the stripe root again
+                    st.verified.clear();
+                    st.verifiedCounters.clear();
+                    throw new DataIntegrityException();
+                }
+            }
+            System.arraycopy(known, 0, oldHashes[i], 0, HASH_SIZE_BYTES);
+            nodeHash(s, data, dataOffset, writeInstance, writeInstanceOffset,
+                cleanChildHash(st, node*2+1), cleanChildHash(st, node*2+2), hash);
+            dev.writeBlock(node, hash, 0, 0, HASH_SIZE_BYTES);
+            setVerified(st, node, hash);
+        }
 
-            PRF hasher = new PRF(treeHashKey);
-            hasher.update(encryptedData);
-            hasher.update(incrementedWriteInstance);
-            hasher.update(leftChildHash);
-            hash = hasher.eval(rightChildHash);
+        return ++topUpdates;
+    }
 
-            // write hash
-            dev.writeBlock(tempBlockNum, hash, 0, 0, HASH_SIZE_BYTES);
+    private byte[] oldHash(Stripe st, int child, int[] dirtyNodes, int numDirty,
+        byte[][] oldHashes) throws DataIntegrityException {
+        // treeWriteLocked: the authenticated hash <child> had before this
+        // write, whether or not the write has replaced it yet.
+        int i = Arrays.binarySearch(dirtyNodes, 0, numDirty, child);
+        if (i >= 0) {
+            return oldHashes[i];
+        }
+        return cleanChildHash(st, child);
+    }
 
-            if (tempBlockNum == 0) break;
+    private byte[] cleanChildHash(Stripe st, int child) throws DataIntegrityException {
+        // treeWriteLocked: the hash of a child of a dirty node, which is
+        // either dirty itself and already re-hashed, or was verified before
+        // anything was changed.  Never read from the device.
+        byte[] hash = knownHash(st, child);
+        if (hash == null) {
+            throw new DataIntegrityException();
+        }
+        return hash;
+    }
 
-            tempBlockNum = (tempBlockNum-1) / 2;
+    private void commitTop(Scratch s) throws DataIntegrityException {
+        // Re-hash every dirty node in the top proper, once, write out their
+        // hashes and the new root hash, and mark every update so far as
+        // committed.  The caller holds topLock for writing.
+        if (topDirty[0]) {
+            for (int node = FIRST_STRIPE_ROOT-1; node >= 0; node--) {
+                if (!topDirty[node]) continue;
+                nodeHash(s, topData[node], 0, topWriteInstances, node*COUNTER_SIZE_BYTES,
+                    topHashes[2*node+1], topHashes[2*node+2], topHashes[node]);
+                dev.writeBlock(node, topHashes[node], 0, 0, HASH_SIZE_BYTES);
+                topDirty[node] = false;
+            }
+            dev.writeSuperBlock(topHashes[0], 0, ROOT_HASH_OFFSET_BYTES, HASH_SIZE_BYTES);
+        }
+        commitLock.lock();
+        try {
+            if (committedUpdates < topUpdates) {
+                committedUpdates = topUpdates;
+                rootCommits++;
+            }
+            commitDone.signalAll();
+        } finally {
+            commitLock.unlock();
         }
+    }
 
-        dev.writeSuperBlock(hash, 0, ROOT_HASH_OFFSET_BYTES, HASH_SIZE_BYTES);
+    private void awaitCommit(Scratch s, long ticket) throws DataIntegrityException {
+        // Block until update <ticket> of the top of the tree has been
+        // committed.  If no commit is in progress we carry one out ourselves,
+        // for every update published so far; otherwise we wait for the one
+        // that is running, which may or may not cover us.  Holds no lock
+        // on entry.
+        boolean interrupted = false;
+        try {
+            while (true) {
+                commitLock.lock();
+                try {
+                    if (committedUpdates >= ticket) return;
+                    if (committing) {
+                        try {
+                            commitDone.await();
+                        } catch (InterruptedException x) {
+                            interrupted = true;
+                        }
+                        continue;
+                    }
+                    committing = true;
+                } finally {
+                    commitLock.unlock();
+                }
+                try {
+                    topLock.writeLock().lock();
+                    try {
+                        commitTop(s);
+                    } finally {
+                        topLock.writeLock().unlock();
+                    }
+                } finally {
+                    commitLock.lock();
+                    try {
+                        committing = false;
+                        commitDone.signalAll();
+                    } finally {
+                        commitLock.unlock();
+                    }
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void macWriteBlocks(Scratch s, int firstBlockNum, byte[] buf, 
+        int bufOffset, int blockOffset, int nbytes) throws DataIntegrityException {
+        // MODE_BLOCK_MAC: each block is written with one device write of its
+        // MAC, counter and ciphertext.  A block that is only partly
+        // overwritten is read (and checked) first; the counter table's new
+        // checksum goes to the superblock once, at the end.
+        int blockSize = this.blockSize();
+        int endOffset = blockOffset + nbytes;
+        int numBlocks = (endOffset + blockSize - 1) / blockSize;
+        int lastBlockNum = firstBlockNum + numBlocks - 1;
+
+        long mask = 0;
+        for (int blockNum = firstBlockNum; blockNum <= lastBlockNum && mask != -1L; blockNum++) {
+            mask |= 1L << (blockNum % NUM_STRIPES);
+        }
+        lockStripes(mask);
+        try {
+            boolean grew = false;
+            int bufPos = bufOffset;
+            for (int i = 0; i < numBlocks; i++) {
+                int blockNum = firstBlockNum + i;
+                int start = (i == 0) ? blockOffset : 0;
+                int end = (i == numBlocks-1) ? endOffset - i*blockSize : blockSize;
+                if (start != 0 || end != blockSize) {
+                    macReadBlock(s, blockNum, s.data, 0, 0, blockSize);
+                }
+                System.arraycopy(buf, bufPos, s.data, start, end - start);
+                bufPos += end - start;
+
+                long oldCounter = counter(blockNum);
+                long newCounter = oldCounter + 1;
+                LongUtils.longToBytes(newCounter, s.raw, COUNTER_OFFSET_BYTES);
+                StreamCipher cipher = new StreamCipher(blockKey(blockNum),
+                    nonce(s, s.raw, COUNTER_OFFSET_BYTES));
+                cipher.cryptBytes(s.data, 0, s.raw, BLOCK_STORAGE_OFFSET_BYTES, blockSize);
+                blockMac(s, blockNum, newCounter, s.raw, BLOCK_STORAGE_OFFSET_BYTES, s.hash);
+                System.arraycopy(s.hash, 0, s.raw, 0, HASH_SIZE_BYTES);
+                dev.writeBlock(blockNum, s.raw, 0, 0, s.raw.length);
+
+                macLock.lock();
+                try {
+                    if (blockNum >= counters.length) {
+                        counters = Arrays.copyOf(counters,
+                            Math.max(lastBlockNum + 1, 2*counters.length));
+                    }
+                    if (oldCounter != 0) {
+                        counterTerm(s, blockNum, oldCounter);
+                        xorInto(countersChecksum, s.hash);
+                    }
+                    counterTerm(s, blockNum, newCounter);
+                    xorInto(countersChecksum, s.hash);
+                    counters[blockNum] = newCounter;
+                    if (blockNum >= numTracked) {
+                        numTracked = blockNum + 1;
+                        grew = true;
+                    }
+                } finally {
+                    macLock.unlock();
+                }
+            }
+
+            macLock.lock();
+            try {
+                if (grew) {
+                    LongUtils.longToBytes(numTracked, s.writeInstance, 0);
+                    dev.writeSuperBlock(s.writeInstance, 0, NUM_TRACKED_OFFSET_BYTES, COUNTER_SIZE_BYTES);
+                }
+                dev.writeSuperBlock(countersChecksum, 0, ROOT_HASH_OFFSET_BYTES, HASH_SIZE_BYTES);
+            } finally {
+                macLock.unlock();
+            }
+        } finally {
+            unlockStripes(mask);
+        }
     }
 }
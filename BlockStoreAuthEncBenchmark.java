@@ -0,0 +1,106 @@
+// Measure how BlockStoreAuthEnc's write throughput scales with the number
+// of writing threads.  Invoke as
+//     java BlockStoreAuthEncBenchmark [numBlocks [writesPerThread [scratchFile]]]
+// numBlocks defaults to 4096, writesPerThread to 200, and scratchFile to
+// "benchDevices/authenc.img".  For each thread count the store is formatted
+// and filled, then every thread overwrites random whole blocks.  Writes to
+// blocks in different subtrees of the hash tree only meet when they commit
+// the root hash, so on a machine with enough cores the throughput should
+// grow with the thread count until the device or the commits saturate.
+// The last column is the number of root hash commits per write; writers
+// that finish together share a group commit, so it drops below one as
+// threads are added.
+
+import java.util.Random;
+
+
+public class BlockStoreAuthEncBenchmark {
+	private static final int[] ThreadCounts = { 1, 2, 4, 8, 16 };
+
+	public static void main(String[] args) throws Exception {
+		int numBlocks = 4096;
+		int writesPerThread = 200;
+		String path = "benchDevices/authenc.img";
+		if(args.length > 0){
+			numBlocks = Integer.parseInt(args[0]);
+		}
+		if(args.length > 1){
+			writesPerThread = Integer.parseInt(args[1]);
+		}
+		if(args.length > 2){
+			path = args[2];
+		}
+
+		byte[] prgSeed = new byte[PRGen.KEY_SIZE_BYTES];
+		byte[] randBytes = TrueRandomness.get();
+		for(int i=0; i<TrueRandomness.NumBytes; ++i) {
+			prgSeed[i] = randBytes[i];
+		}
+		PRGen prg = new PRGen(prgSeed);
+		FileBlockDevice dev = new FileBlockDevice(path);
+
+		System.out.printf("%d processors, %d blocks, %d writes per thread\n",
+			Runtime.getRuntime().availableProcessors(), numBlocks, writesPerThread);
+		System.out.printf("%8s %12s %9s %9s\n", "threads", "writes", "speedup",
+			"commits");
+		double base = 0;
+		for(int numThreads : ThreadCounts){
+			dev.format();
+			BlockStoreAuthEnc bs = new BlockStoreAuthEnc(dev, prg);
+			fill(bs, numBlocks);
+			long commits = bs.rootCommits();
+			double rate = run(bs, numBlocks, numThreads, writesPerThread);
+			commits = bs.rootCommits() - commits;
+			if(base == 0){
+				base = rate;
+			}
+			System.out.printf("%8d %10.0f/s %8.2fx %9.2f\n", numThreads, rate,
+				rate/base, commits / (double)(numThreads*writesPerThread));
+		}
+		dev.close();
+	}
+
+	private static void fill(BlockStoreAuthEnc bs, int numBlocks)
+	throws DataIntegrityException {
+		// write every block once, in batches, so that the tree is full size
+		int batch = 64;
+		byte[] buf = new byte[batch*bs.blockSize()];
+		new Random(1).nextBytes(buf);
+		for(int bn=0; bn<numBlocks; bn+=batch){
+			int n = Math.min(batch, numBlocks-bn);
+			bs.writeBlocks(bn, buf, 0, 0, n*bs.blockSize());
+		}
+	}
+
+	private static double run(final BlockStoreAuthEnc bs, final int numBlocks,
+		int numThreads, final int writesPerThread) throws InterruptedException {
+		// Return the total whole-block writes/second of <numThreads> threads.
+		Thread[] threads = new Thread[numThreads];
+		for(int t=0; t<numThreads; ++t){
+			final int seed = t;
+			threads[t] = new Thread() {
+				public void run() {
+					Random rand = new Random(seed);
+					byte[] buf = new byte[bs.blockSize()];
+					rand.nextBytes(buf);
+					try {
+						for(int i=0; i<writesPerThread; ++i){
+							bs.writeBlock(rand.nextInt(numBlocks), buf, 0, 0, buf.length);
+						}
+					}catch(DataIntegrityException x){
+						x.printStackTrace();
+					}
+				}
+			};
+		}
+		long start = System.nanoTime();
+		for(Thread th : threads){
+			th.start();
+		}
+		for(Thread th : threads){
+			th.join();
+		}
+		long elapsed = System.nanoTime() - start;
+		return numThreads*(double)writesPerThread / (elapsed / 1e9);
+	}
+}
@@ -0,0 +1,77 @@
+// Compare the raw throughput of the BlockStore backends at whole-block
+// (4 KiB) granularity, for sequential and random access.  Invoke as
+//     java BlockStoreBenchmark [numBlocks [scratchDir]]
+// numBlocks defaults to 4096 (16 MiB of data); scratchDir defaults to
+// "benchDevices".  Every backend gets a fresh, formatted device under
+// scratchDir.  Timings include the page cache, so the numbers measure
+// per-access overhead rather than disk speed.
+
+import java.io.Flushable;
+import java.util.Random;
+
+import java.io.IOException;
+
+
+public class BlockStoreBenchmark {
+	public static void main(String[] args)
+	throws IOException, DataIntegrityException {
+		int numBlocks = 4096;
+		String dir = "benchDevices";
+		if(args.length > 0){
+			numBlocks = Integer.parseInt(args[0]);
+		}
+		if(args.length > 1){
+			dir = args[1];
+		}
+
+		System.out.printf("%-18s %12s %12s %12s %12s\n", "backend",
+			"seq write", "seq read", "rand write", "rand read");
+		run("BlockDevice", new BlockDevice(dir + "/dir"), numBlocks);
+		run("FileBlockDevice", new FileBlockDevice(dir + "/file.img"), numBlocks);
+		run("MappedBlockDevice", new MappedBlockDevice(dir + "/mmap.img"),
+			numBlocks);
+	}
+
+	private static void run(String name, BlockStore bs, int numBlocks)
+	throws IOException, DataIntegrityException {
+		bs.format();
+		byte[] buf = new byte[bs.blockSize()];
+		new Random(1).nextBytes(buf);
+
+		int[] sequential = new int[numBlocks];
+		int[] random = new int[numBlocks];
+		Random rand = new Random(42);
+		for(int i=0; i<numBlocks; ++i){
+			sequential[i] = i;
+			random[i] = rand.nextInt(numBlocks);
+		}
+
+		// warm up, and make sure every block exists before it is read
+		pass(bs, sequential, buf, true);
+
+		double seqWrite = pass(bs, sequential, buf, true);
+		double seqRead = pass(bs, sequential, buf, false);
+		double randWrite = pass(bs, random, buf, true);
+		double randRead = pass(bs, random, buf, false);
+		if(bs instanceof Flushable){
+			((Flushable)bs).flush();
+		}
+		System.out.printf("%-18s %9.0f/s %9.0f/s %9.0f/s %9.0f/s\n", name,
+			seqWrite, seqRead, randWrite, randRead);
+	}
+
+	private static double pass(BlockStore bs, int[] blockNums, byte[] buf,
+		boolean write) throws DataIntegrityException {
+		// Access each block in <blockNums>, in order; return accesses/second.
+		long start = System.nanoTime();
+		for(int bn : blockNums){
+			if(write){
+				bs.writeBlock(bn, buf, 0, 0, buf.length);
+			}else{
+				bs.readBlock(bn, buf, 0, 0, buf.length);
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		return blockNums.length / (elapsed / 1e9);
+	}
+}
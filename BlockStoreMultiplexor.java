@@ -22,6 +22,69 @@
 //     Add a new BlockStore to <bsm>, and return a pointer to it.  The
 //     new BlockStore will not be formatted, so you might want to 
 //     call format on it next.
+//
+// There are two layouts for the blocks of a sub-store, recorded in the
+// wrapped store's superblock.  The original one (LayoutChain) chains the
+// data blocks into a tree with four pointers at the end of each data
+// block, so block N is about log4(N) pointer reads away.  The one used for
+// newly set up stores (LayoutWide) keeps the pointers in separate index
+// blocks that are full of them, three levels deep, so any block is three
+// pointer reads away and data blocks hold data only.  A store set up with
+// one layout keeps it.
+//
+//  BlockStoreMultiplexor bsm = BlockStoreMultiplexor(BlockStore ws, int layout);
+//    Like the constructor above, but if <ws> is freshly formatted, set it
+//    up with the given layout.
+//
+//  bsm.growSubStore(int index, int numBlocks);
+//    Make sure blocks 0 thru numBlocks-1 of the <index>'th BlockStore exist,
+//    allocating and linking all the missing ones in one pass.  Blocks are
+//    otherwise allocated one at a time, on first access.
+//
+// Free blocks are handed out from ranges reserved AllocChunk blocks at a
+// time, and the superblock records only the end of the reserved range, so
+// it is written once per range rather than once per block.  Blocks past
+// that mark have never been written and so read as zeroes, which lets
+// LayoutWide skip initializing new data blocks.  Reserved blocks that are
+// still unused when the multiplexor goes away are not handed out again.
+//
+//  bsm.truncate(int index, int numBlocks);
+//    Give back every block of the <index>'th BlockStore from <numBlocks> on,
+//    along with the pointer blocks that only they needed.  Those blocks
+//    read as zeroes if they are used again.
+//
+//  bsm.deleteSubStore(int index);
+//    Give back all the blocks of the <index>'th BlockStore and zero its
+//    superblock.  The store keeps its index (so other stores keep theirs)
+//    and is left empty, ready for reuse.
+//
+//  int n = bsm.numFreeBlocks();
+//    Get the number of blocks that have been given back and not reused.
+//
+// Blocks that are given back are recorded in a free-block bitmap, kept in
+// bitmap pages that are found through a directory block named in the
+// superblock, and are created as they are first needed.  The allocator
+// always reuses the lowest-numbered free block before taking a new one,
+// which keeps the wrapped store (and any hash tree over it) small.  A
+// block is unlinked before it is marked free, and marked in use before it
+// is linked, so a crash can only leak blocks, never hand one out twice.
+//
+// A multiplexor and its sub-stores may be used from many threads at once,
+// provided the wrapped store carries out each call atomically.  All
+// allocation and freeing goes through one short critical section (allocLock);
+// creating sub-stores is serialized by storesLock.  Each sub-store
+// has a read/write lock over its pointer blocks and caches: reads and writes
+// of blocks whose location is cached hold it shared, so they run in
+// parallel, while anything that may change the pointers (first access to a
+// block, grow, truncate, delete) holds it exclusively.  Locks are always
+// taken in the order sub-store, then storesLock, then allocLock.  They are
+// all explicit locks rather than monitors, because each may be held while
+// the wrapped store does I/O, which would pin a virtual thread's carrier.
+//
+// Each sub-store remembers where its master block is, and which block of
+// the wrapped store holds each of its blocks, once it has looked them up.
+// Blocks never move once allocated, so these translations stay valid; a
+// lookup only walks the pointer blocks for a block it has not seen yet.
 
 // The BlockStores returned by getSubStore and newSubStore behave just
 // like regular BlockStores.  The point of this class is that you start out
@@ -29,8 +92,13 @@
 // give you as many BlockStores as you want.
 
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import java.io.FileNotFoundException;
 
@@ -41,28 +109,65 @@ public class BlockStoreMultiplexor {
 
 	private BlockStore        wrappedStore;
 	private List<Multiplexed> stores;
+	private final ReentrantLock storesLock = new ReentrantLock();  // serializes newSubStore
 	private int               firstFreeBlock;
+  private int               reservedBlocks; // end of the reserved range, as recorded in the superblock
+  private static final int  AllocChunk = 64;
+  private BitSet            freeBlocks = new BitSet();  // blocks given back and not reused yet
+  private int               bitmapDir;      // directory of bitmap pages, 0 if there is none yet
+  private int[]             bitmapPages;    // 1 + block of each bitmap page, 0 if there is none yet
+  private int               bitsPerPage;
+  private final ReentrantLock allocLock = new ReentrantLock();  // guards the allocator state above
   private int               msbSize = 64;   // size of superblock exposed to multiplexed stores
   private int               mPtrSize = 8;   // size of a block-pointer
   private int               mNumPtrs;       // number of block-pointers in a metablock
   private int               dPtrSize = mPtrSize;  // size of a datablock-pointer
   private int               dNumPtrs = 4;   // number of block-pointers in a data block
   private int               dbSize;
+  private int               maxCachedBlocks = 1 << 20;  // per-substore translation cache limit
+
+  public static final int   LayoutChain = 0;
+  public static final int   LayoutWide = 1;
+  private int               layout;
+  private int               iNumPtrs;       // number of block-pointers in an index block
+  private byte[]            indexBlockTemplate;
     
   public BlockStoreMultiplexor(BlockStore ws) throws DataIntegrityException {
+    this(ws, LayoutWide);
+  }
+
+  public BlockStoreMultiplexor(BlockStore ws, int newLayout) 
+  throws DataIntegrityException {
     wrappedStore = ws;
 
-    byte[] buf = new byte[16];
-    wrappedStore.readSuperBlock(buf, 0, wrappedStore.superBlockSize()-16, 16);
-    long numStores = LongUtils.bytesToLong(buf, 0);
+    byte[] buf = new byte[32];
+    wrappedStore.readSuperBlock(buf, 0, wrappedStore.superBlockSize()-32, 32);
+    bitmapDir = (int) LongUtils.bytesToLong(buf, 0);
+    layout = (int) LongUtils.bytesToLong(buf, 8);
+    long numStores = LongUtils.bytesToLong(buf, 16);
     stores = new Vector<Multiplexed>();
     for(int i=0; i<numStores; ++i){
       stores.add(new Multiplexed(i));
     }
-    firstFreeBlock = (int) LongUtils.bytesToLong(buf, 8);
+    firstFreeBlock = (int) LongUtils.bytesToLong(buf, 24);
+    reservedBlocks = firstFreeBlock;
+    if(firstFreeBlock == 0){
+      // freshly formatted, so we get to pick the layout
+      layout = newLayout;
+      LongUtils.longToBytes((long)layout, buf, 0);
+      wrappedStore.writeSuperBlock(buf, 0, wrappedStore.superBlockSize()-24, 8);
+    }
+    if(layout != LayoutChain && layout != LayoutWide){
+      throw new DataIntegrityException();
+    }
 
     mNumPtrs = (wrappedStore.blockSize()-(msbSize+dPtrSize)) / mPtrSize;
-    dbSize = wrappedStore.blockSize()-(dPtrSize*dNumPtrs);
+    if(layout == LayoutWide){
+      dbSize = wrappedStore.blockSize();
+    }else{
+      dbSize = wrappedStore.blockSize()-(dPtrSize*dNumPtrs);
+    }
+    iNumPtrs = wrappedStore.blockSize() / mPtrSize;
 
     byte[] minusOne = new byte[8];
     LongUtils.longToBytes((long)(-1), minusOne, 0);
@@ -89,21 +194,170 @@ public class BlockStoreMultiplexor {
       dataBlockTemplate = buf;
     }
 
+    indexBlockTemplate = new byte[wrappedStore.blockSize()];
+    Arrays.fill(indexBlockTemplate, 0, iNumPtrs*mPtrSize, (byte)-1);
+
     if(firstFreeBlock == 0){
       wrappedStore.writeBlock(0, masterBlockTemplate, 0, 0, 
         wrappedStore.blockSize());
     }
+    loadFreeBlocks();
   }
 
-  private int allocateBlock() throws DataIntegrityException {
-    int ret = firstFreeBlock;
-    ++firstFreeBlock;
+  private void loadFreeBlocks() throws DataIntegrityException {
+    bitsPerPage = wrappedStore.blockSize()*8;
+    bitmapPages = new int[iNumPtrs];
+    if(bitmapDir == 0){
+      return;
+    }
+    byte[] ptrs = new byte[iNumPtrs*mPtrSize];
+    wrappedStore.readBlock(bitmapDir, ptrs, 0, 0, ptrs.length);
+    byte[] page = new byte[wrappedStore.blockSize()];
+    for(int i=0; i<iNumPtrs; ++i){
+      int pageBlock = (int) LongUtils.bytesToLong(ptrs, i*mPtrSize);
+      if(pageBlock == -1){
+        continue;
+      }
+      bitmapPages[i] = pageBlock+1;
+      wrappedStore.readBlock(pageBlock, page, 0, 0, page.length);
+      BitSet bits = BitSet.valueOf(page);
+      for(int b=bits.nextSetBit(0); b>=0; b=bits.nextSetBit(b+1)){
+        freeBlocks.set(i*bitsPerPage + b);
+      }
+    }
+  }
 
+  public int numFreeBlocks() {
+    allocLock.lock();
+    try {
+      return freeBlocks.cardinality();
+    } finally {
+      allocLock.unlock();
+    }
+  }
+
+  private void writeFreeBits(int lo, int hi) throws DataIntegrityException {
+    // Bring the bitmap pages up to date for blocks <lo> thru <hi>-1, one
+    // write per page.  Bit n%8 of byte n/8 of a page is set iff block n
+    // (counting from the start of the page) is free.
+    for(int page=lo/bitsPerPage; page<=(hi-1)/bitsPerPage; ++page){
+      int pageStart = page*bitsPerPage;
+      int byteLo = (Math.max(lo, pageStart) - pageStart) / 8;
+      int byteHi = (Math.min(hi, pageStart+bitsPerPage) - pageStart + 7) / 8;
+      byte[] bytes = Arrays.copyOf(freeBlocks.get(pageStart + byteLo*8, 
+        pageStart + byteHi*8).toByteArray(), byteHi-byteLo);
+      wrappedStore.writeBlock(bitmapPage(page), bytes, 0, byteLo, bytes.length);
+    }
+  }
+
+  private int bitmapPage(int page) throws DataIntegrityException {
+    // The block holding bitmap page <page>, creating it if need be.  New
+    // pages come from never-used blocks, which read as zeroes (none free).
+    if(bitmapPages[page] != 0){
+      return bitmapPages[page]-1;
+    }
     byte[] buf = new byte[8];
-    LongUtils.longToBytes((long)firstFreeBlock, buf, 0);
-    wrappedStore.writeSuperBlock(buf, 0, wrappedStore.superBlockSize()-8, 8);
+    if(bitmapDir == 0){
+      int dir = allocateBlocks(1);
+      wrappedStore.writeBlock(dir, indexBlockTemplate, 0, 0, 
+        indexBlockTemplate.length);
+      LongUtils.longToBytes((long)dir, buf, 0);
+      wrappedStore.writeSuperBlock(buf, 0, wrappedStore.superBlockSize()-32, 8);
+      bitmapDir = dir;
+    }
+    int pageBlock = allocateBlocks(1);
+    LongUtils.longToBytes((long)pageBlock, buf, 0);
+    wrappedStore.writeBlock(bitmapDir, buf, 0, page*mPtrSize, mPtrSize);
+    bitmapPages[page] = pageBlock+1;
+    return pageBlock;
+  }
+
+  private void releaseBlocks(BlockList released) throws DataIntegrityException {
+    // Mark the given blocks, which nothing points to any more, as free.
+    // Blocks beyond what the bitmap can describe are simply leaked.
+    if(released.size == 0){
+      return;
+    }
+    int limit = iNumPtrs*bitsPerPage;
+    int lo = Integer.MAX_VALUE;
+    int hi = 0;
+    allocLock.lock();
+    try {
+      for(int i=0; i<released.size; ++i){
+        int bn = released.blocks[i];
+        if(bn < limit){
+          freeBlocks.set(bn);
+          lo = Math.min(lo, bn);
+          hi = Math.max(hi, bn+1);
+        }
+      }
+      if(lo < hi){
+        writeFreeBits(lo, hi);
+      }
+    } finally {
+      allocLock.unlock();
+    }
+  }
 
-    return ret;
+  // a growable list of block numbers
+  private static class BlockList {
+    int[] blocks = new int[16];
+    int   size;
+
+    void add(int bn) {
+      if(size == blocks.length){
+        blocks = Arrays.copyOf(blocks, 2*size);
+      }
+      blocks[size++] = bn;
+    }
+  }
+
+  public int layout() {
+    return layout;
+  }
+
+  private int allocateBlock() throws DataIntegrityException {
+    return allocateBlock(false);
+  }
+
+  private int allocateBlock(boolean zeroed) throws DataIntegrityException {
+    // Allocate a block, preferring the lowest free one.  If <zeroed>, the
+    // block must read as zeroes, so a reused one gets cleared.
+    int bn;
+    allocLock.lock();
+    try {
+      bn = freeBlocks.nextSetBit(0);
+      if(bn < 0){
+        return allocateBlocks(1);
+      }
+      freeBlocks.clear(bn);
+      writeFreeBits(bn, bn+1);
+    } finally {
+      allocLock.unlock();
+    }
+    if(zeroed){
+      wrappedStore.writeBlock(bn, new byte[wrappedStore.blockSize()], 0, 0, 
+        wrappedStore.blockSize());
+    }
+    return bn;
+  }
+
+  private int allocateBlocks(int n) throws DataIntegrityException {
+    // Allocate <n> consecutive never-used blocks; return the first.
+    allocLock.lock();
+    try {
+      if(firstFreeBlock+n > reservedBlocks){
+        reservedBlocks = firstFreeBlock + Math.max(n, AllocChunk);
+        byte[] buf = new byte[8];
+        LongUtils.longToBytes((long)reservedBlocks, buf, 0);
+        wrappedStore.writeSuperBlock(buf, 0, wrappedStore.superBlockSize()-8, 8);
+      }
+      int ret = firstFreeBlock;
+      firstFreeBlock += n;
+      return ret;
+    } finally {
+      allocLock.unlock();
+    }
   }
 
   public int numSubStores() throws DataIntegrityException {
@@ -114,31 +368,121 @@ public class BlockStoreMultiplexor {
     return stores.get(idx);
   }
 
+  public void growSubStore(int idx, int numBlocks) throws DataIntegrityException {
+    stores.get(idx).grow(numBlocks);
+  }
+
+  public void truncate(int idx, int numBlocks) throws DataIntegrityException {
+    if(numBlocks < 0){
+      throw new ArrayIndexOutOfBoundsException();
+    }
+    stores.get(idx).truncate(numBlocks);
+  }
+
+  public void deleteSubStore(int idx) throws DataIntegrityException {
+    Multiplexed st = stores.get(idx);
+    st.lock.writeLock().lock();
+    try {
+      st.truncate(0);
+      st.format();
+    } finally {
+      st.lock.writeLock().unlock();
+    }
+  }
+
   public BlockStore newSubStore() throws DataIntegrityException {
-    int storeNum = stores.size();
+    storesLock.lock();
+    try {
+      int storeNum = stores.size();
+      Multiplexed newStore = new Multiplexed(storeNum);
+      int masterBlockNum = allocateBlock();
+      wrappedStore.writeBlock(masterBlockNum, masterBlockTemplate, 0, 0, 
+        wrappedStore.blockSize());
+      newStore.writeMasterPointer(masterBlockNum);
+      newStore.masterBlock = masterBlockNum;
 
-	 // write new number of stores to superblock
-    byte[] buf = new byte[8];
-    LongUtils.longToBytes((long)(storeNum+1), buf, 0);
-    wrappedStore.writeSuperBlock(buf, 0, wrappedStore.superBlockSize()-16, 8);
+      // write new number of stores to superblock, and only then let other
+      // threads see the new store
+      byte[] buf = new byte[8];
+      LongUtils.longToBytes((long)(storeNum+1), buf, 0);
+      wrappedStore.writeSuperBlock(buf, 0, wrappedStore.superBlockSize()-16, 8);
+      stores.add(newStore);
 
-    Multiplexed newStore = new Multiplexed(storeNum);
-    stores.add(newStore);
-    int masterBlockNum = allocateBlock();
-    wrappedStore.writeBlock(masterBlockNum, masterBlockTemplate, 0, 0, 
-      wrappedStore.blockSize());
-    newStore.writeMasterPointer(masterBlockNum);
+      return newStore;
+    } finally {
+      storesLock.unlock();
+    }
+  }
 
-    return newStore;
+  boolean checkStructure() throws DataIntegrityException {
+    // For testing: check that no block is used twice, by two stores or as
+    // two different things, and that no block in use is also free or past
+    // the allocated range.  The multiplexor must not be in use meanwhile.
+    BlockList used = new BlockList();
+    if(bitmapDir != 0){
+      used.add(bitmapDir);
+    }
+    for(int page : bitmapPages){
+      if(page != 0){
+        used.add(page-1);
+      }
+    }
+    for(Multiplexed st : stores){
+      st.collectBlocks(used);
+    }
+    BitSet seen = new BitSet();
+    for(int i=0; i<used.size; ++i){
+      int bn = used.blocks[i];
+      if(bn < 0 || bn >= firstFreeBlock || seen.get(bn) || freeBlocks.get(bn)){
+        return false;
+      }
+      seen.set(bn);
+    }
+    return true;
   }
 
   class Multiplexed implements BlockStore {
     private int storeNum;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile int masterBlock = -1;  // -1 until looked up
+    private int rootBlock = -1;             // block the master block points to, -1 until looked up
+    private int[] midIndex = new int[0];    // LayoutWide: 1 + second-level index blocks, 0 if unknown
+    private int[] leafIndex = new int[0];   // LayoutWide: 1 + third-level index blocks, 0 if unknown
+    private int[] translation = new int[0]; // 1 + wrapped block of each block, 0 if unknown
 
     Multiplexed(int sn) throws DataIntegrityException {
       storeNum = sn;
     }
 
+    private int masterBlockNum() throws DataIntegrityException {
+      if(masterBlock == -1){
+        masterBlock = getMasterBlockNum(storeNum, 0);
+      }
+      return masterBlock;
+    }
+
+    private int cachedDataBlock(int blockNum) {
+      if(blockNum < translation.length){
+        return translation[blockNum]-1;
+      }
+      return -1;
+    }
+
+    private void cacheDataBlock(int blockNum, int realBlockNum) {
+      if(blockNum >= maxCachedBlocks){
+        return;
+      }
+      if(blockNum >= translation.length){
+        int newLength = Math.max(16, translation.length);
+        while(newLength <= blockNum){
+          newLength *= 2;
+        }
+        translation = Arrays.copyOf(translation, 
+          Math.min(newLength, maxCachedBlocks));
+      }
+      translation[blockNum] = realBlockNum+1;
+    }
+
     private void writeMasterPointer(int masterBlockNum) 
     throws DataIntegrityException {
 
@@ -197,13 +541,21 @@ public class BlockStoreMultiplexor {
       }
     }
 
-    private int getDBRec(int num, int baseBlock) 
+    private int getDBRec(int num, int baseBlock, int baseNum, int stride) 
     throws DataIntegrityException {
+      // <baseBlock> holds block <baseNum> of this store, and <num> is the
+      // index of the block we want within the subtree rooted there.  The
+      // block at <slot> of a node holds block baseNum + stride*(1+slot).
       if(num == 0){
         return baseBlock;
       }else{
         int slot = (num-1) % dNumPtrs;
         int newNum = (num-1) / dNumPtrs;
+        int childNum = baseNum + stride*(1+slot);
+        int cached = cachedDataBlock(childNum);
+        if(cached != -1){
+          return getDBRec(newNum, cached, childNum, stride*dNumPtrs);
+        }
 
         byte[] slotContents = new byte[dPtrSize];
         wrappedStore.readBlock(baseBlock, slotContents, 0, 
@@ -220,12 +572,290 @@ public class BlockStoreMultiplexor {
           wrappedStore.writeBlock(baseBlock, slotContents, 0, 
           wrappedStore.blockSize()-dPtrSize*(dNumPtrs-slot), dPtrSize);
         }
-        return getDBRec(newNum, newBase);
+        cacheDataBlock(childNum, newBase);
+        return getDBRec(newNum, newBase, childNum, stride*dNumPtrs);
       }
     }
 
     private int getDataBlockNum(int blockNum) throws DataIntegrityException {
-      int mblock = getMasterBlockNum(storeNum, 0);
+      int cached = cachedDataBlock(blockNum);
+      if(cached != -1){
+        return cached;
+      }
+      int realBlockNum;
+      if(layout == LayoutWide){
+        realBlockNum = getIndexed(blockNum);
+      }else{
+        realBlockNum = getDBRec(blockNum, rootBlockNum(), 0, 1);
+      }
+      cacheDataBlock(blockNum, realBlockNum);
+      return realBlockNum;
+    }
+
+    private int getIndexed(int blockNum) throws DataIntegrityException {
+      // LayoutWide: the root index block points to second-level index
+      // blocks, which point to third-level ones, which point to data blocks.
+      long p = iNumPtrs;
+      if(blockNum < 0 || blockNum >= p*p*p){
+        throw new ArrayIndexOutOfBoundsException();
+      }
+      int leaf = leafIndexBlock(blockNum / iNumPtrs);
+      return followPointer(leaf, blockNum % iNumPtrs, null);
+    }
+
+    private int leafIndexBlock(int leafNum) throws DataIntegrityException {
+      // LayoutWide: the third-level index block for blocks
+      // leafNum*iNumPtrs thru (leafNum+1)*iNumPtrs-1.
+      int leaf = (leafNum < leafIndex.length) ? leafIndex[leafNum]-1 : -1;
+      if(leaf == -1){
+        int midNum = leafNum / iNumPtrs;
+        int mid = (midNum < midIndex.length) ? midIndex[midNum]-1 : -1;
+        if(mid == -1){
+          mid = followPointer(rootBlockNum(), midNum, indexBlockTemplate);
+          if(midNum >= midIndex.length){
+            midIndex = Arrays.copyOf(midIndex, 
+              Math.min(Math.max(2*midIndex.length, midNum+1), iNumPtrs));
+          }
+          midIndex[midNum] = mid+1;
+        }
+        leaf = followPointer(mid, leafNum % iNumPtrs, indexBlockTemplate);
+        if(leafNum >= leafIndex.length){
+          leafIndex = Arrays.copyOf(leafIndex, 
+            Math.min(Math.max(2*leafIndex.length, leafNum+1), iNumPtrs*iNumPtrs));
+        }
+        leafIndex[leafNum] = leaf+1;
+      }
+      return leaf;
+    }
+
+    private void grow(int numBlocks) throws DataIntegrityException {
+      lock.writeLock().lock();
+      try {
+        growLocked(numBlocks);
+      } finally {
+        lock.writeLock().unlock();
+      }
+    }
+
+    private void growLocked(int numBlocks) throws DataIntegrityException {
+      if(layout != LayoutWide){
+        for(int bn=0; bn<numBlocks; ++bn){
+          getDataBlockNum(bn);
+        }
+        return;
+      }
+      long p = iNumPtrs;
+      if(numBlocks < 0 || numBlocks > p*p*p){
+        throw new ArrayIndexOutOfBoundsException();
+      }
+
+      // Fill one third-level index block at a time: read its pointers,
+      // allocate a run of blocks for the missing ones, write them back.
+      byte[] slots = new byte[iNumPtrs*mPtrSize];
+      for(int lo=0; lo<numBlocks; lo+=iNumPtrs){
+        int count = Math.min(iNumPtrs, numBlocks-lo);
+        int leaf = leafIndexBlock(lo / iNumPtrs);
+        wrappedStore.readBlock(leaf, slots, 0, 0, count*mPtrSize);
+        int missing = 0;
+        for(int i=0; i<count; ++i){
+          if(LongUtils.bytesToLong(slots, i*mPtrSize) == -1){
+            ++missing;
+          }
+        }
+        // free blocks are reused one by one; the rest come as one run
+        // (if other threads take the free ones first, we get new ones)
+        int reused = Math.min(missing, numFreeBlocks());
+        int next = (missing > reused) ? allocateBlocks(missing-reused) : -1;
+        for(int i=0; i<count; ++i){
+          int realBlockNum = (int) LongUtils.bytesToLong(slots, i*mPtrSize);
+          if(realBlockNum == -1){
+            realBlockNum = (reused-- > 0) ? allocateBlock(true) : next++;
+            LongUtils.longToBytes((long)realBlockNum, slots, i*mPtrSize);
+          }
+          cacheDataBlock(lo+i, realBlockNum);
+        }
+        if(missing > 0){
+          wrappedStore.writeBlock(leaf, slots, 0, 0, count*mPtrSize);
+        }
+      }
+    }
+
+    private void truncate(int numBlocks) throws DataIntegrityException {
+      lock.writeLock().lock();
+      try {
+        truncateLocked(numBlocks);
+      } finally {
+        lock.writeLock().unlock();
+      }
+    }
+
+    private void truncateLocked(int numBlocks) throws DataIntegrityException {
+      // Unlink everything from block <numBlocks> on, then free it.
+      int mblock = masterBlockNum();
+      byte[] ptrBuf = new byte[dPtrSize];
+      int rootOffset = wrappedStore.blockSize()-(msbSize+dPtrSize);
+      wrappedStore.readBlock(mblock, ptrBuf, 0, rootOffset, dPtrSize);
+      int root = (int) LongUtils.bytesToLong(ptrBuf, 0);
+      if(root == -1){
+        return;
+      }
+
+      BlockList released = new BlockList();
+      if(layout == LayoutWide){
+        truncateIndex(root, 0, 0, (long)iNumPtrs*iNumPtrs, numBlocks, released);
+      }else{
+        truncateChain(root, 0, 1, numBlocks, released);
+      }
+      if(numBlocks == 0){
+        LongUtils.longToBytes((long)-1, ptrBuf, 0);
+        wrappedStore.writeBlock(mblock, ptrBuf, 0, rootOffset, dPtrSize);
+        released.add(root);
+      }
+
+      // forget translations that may now be wrong
+      rootBlock = -1;
+      midIndex = new int[0];
+      leafIndex = new int[0];
+      if(numBlocks < translation.length){
+        translation = Arrays.copyOf(translation, numBlocks);
+      }
+      releaseBlocks(released);
+    }
+
+    private void truncateIndex(int indexBlock, int level, long base, long span, 
+      int numBlocks, BlockList released) throws DataIntegrityException {
+      // LayoutWide: <indexBlock> is at <level> (0 for the root), and its
+      // slot s covers blocks base+s*span thru base+(s+1)*span-1.
+      byte[] ptrs = new byte[iNumPtrs*mPtrSize];
+      wrappedStore.readBlock(indexBlock, ptrs, 0, 0, ptrs.length);
+      int firstCut = iNumPtrs;
+      for(int slot=0; slot<iNumPtrs; ++slot){
+        int child = (int) LongUtils.bytesToLong(ptrs, slot*mPtrSize);
+        long childBase = base + slot*span;
+        if(child == -1 || childBase+span <= numBlocks){
+          continue;
+        }
+        if(childBase >= numBlocks){
+          if(level < 2){
+            releaseIndex(child, level+1, released);
+          }
+          released.add(child);
+          LongUtils.longToBytes((long)-1, ptrs, slot*mPtrSize);
+          firstCut = Math.min(firstCut, slot);
+        }else{
+          truncateIndex(child, level+1, childBase, span/iNumPtrs, numBlocks, 
+            released);
+        }
+      }
+      if(firstCut < iNumPtrs){
+        wrappedStore.writeBlock(indexBlock, ptrs, firstCut*mPtrSize, 
+          firstCut*mPtrSize, (iNumPtrs-firstCut)*mPtrSize);
+      }
+    }
+
+    private void releaseIndex(int indexBlock, int level, BlockList released) 
+    throws DataIntegrityException {
+      // LayoutWide: add everything below <indexBlock> to <released>.
+      byte[] ptrs = new byte[iNumPtrs*mPtrSize];
+      wrappedStore.readBlock(indexBlock, ptrs, 0, 0, ptrs.length);
+      for(int slot=0; slot<iNumPtrs; ++slot){
+        int child = (int) LongUtils.bytesToLong(ptrs, slot*mPtrSize);
+        if(child != -1){
+          if(level < 2){
+            releaseIndex(child, level+1, released);
+          }
+          released.add(child);
+        }
+      }
+    }
+
+    private void truncateChain(int block, int num, long stride, int numBlocks, 
+      BlockList released) throws DataIntegrityException {
+      // LayoutChain: <block> holds block <num>, whose child at slot s holds
+      // block num+stride*(1+s).  Every block in a subtree has a higher
+      // number than the subtree's root.
+      int ptrOffset = wrappedStore.blockSize()-dPtrSize*dNumPtrs;
+      byte[] ptrs = new byte[dPtrSize*dNumPtrs];
+      wrappedStore.readBlock(block, ptrs, 0, ptrOffset, ptrs.length);
+      boolean changed = false;
+      for(int slot=0; slot<dNumPtrs; ++slot){
+        int child = (int) LongUtils.bytesToLong(ptrs, slot*dPtrSize);
+        if(child == -1){
+          continue;
+        }
+        long childNum = num + stride*(1+slot);
+        if(childNum >= numBlocks){
+          releaseChain(child, released);
+          LongUtils.longToBytes((long)-1, ptrs, slot*dPtrSize);
+          changed = true;
+        }else{
+          truncateChain(child, (int)childNum, stride*dNumPtrs, numBlocks, released);
+        }
+      }
+      if(changed){
+        wrappedStore.writeBlock(block, ptrs, 0, ptrOffset, ptrs.length);
+      }
+    }
+
+    private void collectBlocks(BlockList used) throws DataIntegrityException {
+      // For checkStructure: add every block this store uses to <used>.
+      used.add(masterBlockNum());
+      byte[] ptrBuf = new byte[dPtrSize];
+      wrappedStore.readBlock(masterBlockNum(), ptrBuf, 0, 
+        wrappedStore.blockSize()-(msbSize+dPtrSize), dPtrSize);
+      int root = (int) LongUtils.bytesToLong(ptrBuf, 0);
+      if(root == -1){
+        return;
+      }
+      if(layout == LayoutWide){
+        releaseIndex(root, 0, used);
+        used.add(root);
+      }else{
+        releaseChain(root, used);
+      }
+    }
+
+    private void releaseChain(int block, BlockList released) 
+    throws DataIntegrityException {
+      // LayoutChain: add <block> and everything below it to <released>.
+      byte[] ptrs = new byte[dPtrSize*dNumPtrs];
+      wrappedStore.readBlock(block, ptrs, 0, 
+        wrappedStore.blockSize()-dPtrSize*dNumPtrs, ptrs.length);
+      for(int slot=0; slot<dNumPtrs; ++slot){
+        int child = (int) LongUtils.bytesToLong(ptrs, slot*dPtrSize);
+        if(child != -1){
+          releaseChain(child, released);
+        }
+      }
+      released.add(block);
+    }
+
+    private int followPointer(int indexBlock, int slot, byte[] template) 
+    throws DataIntegrityException {
+      // Get pointer <slot> of <indexBlock>.  If it isn't set yet, allocate
+      // a block, initialize it from <template> (unless that is null, for
+      // a data block), and point the slot at it.
+      byte[] slotContents = new byte[mPtrSize];
+      wrappedStore.readBlock(indexBlock, slotContents, 0, slot*mPtrSize, mPtrSize);
+      int ret = (int) LongUtils.bytesToLong(slotContents, 0);
+      if(ret == -1){
+        ret = allocateBlock(template == null);
+        if(template != null){
+          wrappedStore.writeBlock(ret, template, 0, 0, wrappedStore.blockSize());
+        }
+        LongUtils.longToBytes((long)ret, slotContents, 0);
+        wrappedStore.writeBlock(indexBlock, slotContents, 0, slot*mPtrSize, mPtrSize);
+      }
+      return ret;
+    }
+
+    private int rootBlockNum() throws DataIntegrityException {
+      // The block the master block points to: the first data block for
+      // LayoutChain, the root index block for LayoutWide.
+      if(rootBlock != -1){
+        return rootBlock;
+      }
+      int mblock = masterBlockNum();
       byte[] dbBuf = new byte[dPtrSize];
       wrappedStore.readBlock(mblock, dbBuf, 0, 
         wrappedStore.blockSize()-(msbSize+dPtrSize), dPtrSize);
@@ -238,10 +868,11 @@ public class BlockStoreMultiplexor {
           wrappedStore.blockSize()-(msbSize+dPtrSize), dPtrSize);
 
 		    // fill in the data block
-        wrappedStore.writeBlock(dbNum, dataBlockTemplate, 0, 0, 
-          dataBlockTemplate.length);
+        byte[] template = (layout == LayoutWide) ? indexBlockTemplate : dataBlockTemplate;
+        wrappedStore.writeBlock(dbNum, template, 0, 0, template.length);
       }
-      return getDBRec(blockNum, dbNum);
+      rootBlock = dbNum;
+      return dbNum;
     }
 
     public void readSuperBlock(byte[] buf, int bufOffset, int blockOffset, 
@@ -251,9 +882,13 @@ public class BlockStoreMultiplexor {
         throw new ArrayIndexOutOfBoundsException();
       }
 
-      int masterBlockNum = getMasterBlockNum(storeNum, 0);
-      wrappedStore.readBlock(masterBlockNum, buf, bufOffset, 
-        blockOffset+wrappedStore.blockSize()-msbSize, nbytes);
+      lock.readLock().lock();
+      try {
+        wrappedStore.readBlock(masterBlockNum(), buf, bufOffset, 
+          blockOffset+wrappedStore.blockSize()-msbSize, nbytes);
+      } finally {
+        lock.readLock().unlock();
+      }
     }
 
     public void writeSuperBlock(byte[] buf, int bufOffset, 
@@ -263,9 +898,13 @@ public class BlockStoreMultiplexor {
         throw new ArrayIndexOutOfBoundsException();
       }
 
-      int masterBlockNum = getMasterBlockNum(storeNum, 0);
-      wrappedStore.writeBlock(masterBlockNum, buf, bufOffset, 
-        blockOffset+wrappedStore.blockSize()-msbSize, nbytes);
+      lock.readLock().lock();
+      try {
+        wrappedStore.writeBlock(masterBlockNum(), buf, bufOffset, 
+          blockOffset+wrappedStore.blockSize()-msbSize, nbytes);
+      } finally {
+        lock.readLock().unlock();
+      }
     }
 
     public int blockSize() {
@@ -278,8 +917,25 @@ public class BlockStoreMultiplexor {
       if(blockOffset+nbytes > dbSize){
         throw new ArrayIndexOutOfBoundsException();
       }
-      int realBlockNum = getDataBlockNum(blockNum);
-      wrappedStore.readBlock(realBlockNum, buf, bufOffset, blockOffset, nbytes);
+      // the usual case, where we already know where the block is
+      lock.readLock().lock();
+      try {
+        int realBlockNum = cachedDataBlock(blockNum);
+        if(realBlockNum != -1){
+          wrappedStore.readBlock(realBlockNum, buf, bufOffset, blockOffset, nbytes);
+          return;
+        }
+      } finally {
+        lock.readLock().unlock();
+      }
+
+      lock.writeLock().lock();
+      try {
+        int realBlockNum = getDataBlockNum(blockNum);
+        wrappedStore.readBlock(realBlockNum, buf, bufOffset, blockOffset, nbytes);
+      } finally {
+        lock.writeLock().unlock();
+      }
     }
 
     public void writeBlock(int blockNum, byte[] buf, int bufOffset, 
@@ -288,9 +944,230 @@ public class BlockStoreMultiplexor {
       if(blockOffset+nbytes > dbSize){
         throw new ArrayIndexOutOfBoundsException();
       }
-      int realBlockNum = getDataBlockNum(blockNum);
-      wrappedStore.writeBlock(realBlockNum, buf, bufOffset, blockOffset, 
-        nbytes);
+      lock.readLock().lock();
+      try {
+        int realBlockNum = cachedDataBlock(blockNum);
+        if(realBlockNum != -1){
+          wrappedStore.writeBlock(realBlockNum, buf, bufOffset, blockOffset, 
+            nbytes);
+          return;
+        }
+      } finally {
+        lock.readLock().unlock();
+      }
+
+      lock.writeLock().lock();
+      try {
+        int realBlockNum = getDataBlockNum(blockNum);
+        wrappedStore.writeBlock(realBlockNum, buf, bufOffset, blockOffset, 
+          nbytes);
+      } finally {
+        lock.writeLock().unlock();
+      }
+    }
+
+    // The ByteBuffer versions pass the caller's buffer down to the wrapped
+    // store, so it is never copied into an array on the way.
+    public void readBlock(int blockNum, ByteBuffer buf, int blockOffset) 
+      throws DataIntegrityException {
+
+      if(blockOffset+buf.remaining() > dbSize){
+        throw new ArrayIndexOutOfBoundsException();
+      }
+      lock.readLock().lock();
+      try {
+        int realBlockNum = cachedDataBlock(blockNum);
+        if(realBlockNum != -1){
+          wrappedStore.readBlock(realBlockNum, buf, blockOffset);
+          return;
+        }
+      } finally {
+        lock.readLock().unlock();
+      }
+
+      lock.writeLock().lock();
+      try {
+        int realBlockNum = getDataBlockNum(blockNum);
+        wrappedStore.readBlock(realBlockNum, buf, blockOffset);
+      } finally {
+        lock.writeLock().unlock();
+      }
+    }
+
+    public void writeBlock(int blockNum, ByteBuffer buf, int blockOffset) 
+      throws DataIntegrityException {
+
+      if(blockOffset+buf.remaining() > dbSize){
+        throw new ArrayIndexOutOfBoundsException();
+      }
+      lock.readLock().lock();
+      try {
+        int realBlockNum = cachedDataBlock(blockNum);
+        if(realBlockNum != -1){
+          wrappedStore.writeBlock(realBlockNum, buf, blockOffset);
+          return;
+        }
+      } finally {
+        lock.readLock().unlock();
+      }
+
+      lock.writeLock().lock();
+      try {
+        int realBlockNum = getDataBlockNum(blockNum);
+        wrappedStore.writeBlock(realBlockNum, buf, blockOffset);
+      } finally {
+        lock.writeLock().unlock();
+      }
+    }
+
+    // Ranges and vectors are translated block by block, then handed down
+    // in as few calls as possible.  A range goes down as one range call per
+    // run of blocks that are also consecutive in the wrapped store, which
+    // is only possible when our blocks are the wrapped store's blocks
+    // (LayoutWide); with the chain layout each block ends in pointers, so a
+    // range goes down a block at a time.
+    public void readBlocks(int firstBlockNum, byte[] buf, int bufOffset, 
+      int blockOffset, int nbytes) throws DataIntegrityException {
+
+      rangeOp(false, firstBlockNum, buf, bufOffset, blockOffset, nbytes);
+    }
+
+    public void writeBlocks(int firstBlockNum, byte[] buf, int bufOffset, 
+      int blockOffset, int nbytes) throws DataIntegrityException {
+
+      rangeOp(true, firstBlockNum, buf, bufOffset, blockOffset, nbytes);
+    }
+
+    public void readBlocks(int[] blockNums, ByteBuffer[] bufs) 
+      throws DataIntegrityException {
+
+      vectorOp(false, blockNums, bufs);
+    }
+
+    public void writeBlocks(int[] blockNums, ByteBuffer[] bufs) 
+      throws DataIntegrityException {
+
+      vectorOp(true, blockNums, bufs);
+    }
+
+    private void rangeOp(boolean write, int firstBlockNum, byte[] buf, 
+      int bufOffset, int blockOffset, int nbytes) throws DataIntegrityException {
+
+      if(firstBlockNum < 0 || blockOffset < 0 || blockOffset >= dbSize 
+        || bufOffset < 0 || nbytes < 0 || bufOffset+nbytes > buf.length){
+        throw new ArrayIndexOutOfBoundsException();
+      }
+      if(nbytes == 0){
+        return;
+      }
+      int[] realBlockNums = new int[(blockOffset+nbytes+dbSize-1) / dbSize];
+      for(int i=0; i<realBlockNums.length; ++i){
+        realBlockNums[i] = firstBlockNum+i;
+      }
+      // as for single blocks: a read lock if every translation is cached
+      lock.readLock().lock();
+      try {
+        if(translateCached(realBlockNums)){
+          forwardRange(write, realBlockNums, buf, bufOffset, blockOffset, nbytes);
+          return;
+        }
+      } finally {
+        lock.readLock().unlock();
+      }
+
+      lock.writeLock().lock();
+      try {
+        translate(realBlockNums);
+        forwardRange(write, realBlockNums, buf, bufOffset, blockOffset, nbytes);
+      } finally {
+        lock.writeLock().unlock();
+      }
+    }
+
+    private void vectorOp(boolean write, int[] blockNums, ByteBuffer[] bufs) 
+      throws DataIntegrityException {
+
+      if(blockNums.length != bufs.length){
+        throw new ArrayIndexOutOfBoundsException();
+      }
+      for(int i=0; i<bufs.length; ++i){
+        if(blockNums[i] < 0 || bufs[i].remaining() > dbSize){
+          throw new ArrayIndexOutOfBoundsException();
+        }
+      }
+      int[] realBlockNums = blockNums.clone();
+      lock.readLock().lock();
+      try {
+        if(translateCached(realBlockNums)){
+          forwardVector(write, realBlockNums, bufs);
+          return;
+        }
+      } finally {
+        lock.readLock().unlock();
+      }
+
+      lock.writeLock().lock();
+      try {
+        translate(realBlockNums);
+        forwardVector(write, realBlockNums, bufs);
+      } finally {
+        lock.writeLock().unlock();
+      }
+    }
+
+    private boolean translateCached(int[] blockNums) {
+      // Replace every block number with its wrapped block, if all of them
+      // are cached; otherwise leave the array alone and return false.
+      for(int blockNum : blockNums){
+        if(cachedDataBlock(blockNum) == -1){
+          return false;
+        }
+      }
+      for(int i=0; i<blockNums.length; ++i){
+        blockNums[i] = cachedDataBlock(blockNums[i]);
+      }
+      return true;
+    }
+
+    private void translate(int[] blockNums) throws DataIntegrityException {
+      for(int i=0; i<blockNums.length; ++i){
+        blockNums[i] = getDataBlockNum(blockNums[i]);
+      }
+    }
+
+    private void forwardRange(boolean write, int[] realBlockNums, byte[] buf, 
+      int bufOffset, int blockOffset, int nbytes) throws DataIntegrityException {
+
+      // the range in bytes from the start of its first block
+      int end = blockOffset+nbytes;
+      boolean contiguous = (dbSize == wrappedStore.blockSize());
+      for(int i=0; i<realBlockNums.length; ){
+        int j = i+1;
+        while(contiguous && j < realBlockNums.length 
+          && realBlockNums[j] == realBlockNums[j-1]+1){
+          j++;
+        }
+        int lo = Math.max(blockOffset, i*dbSize);
+        int hi = Math.min(end, j*dbSize);
+        if(write){
+          wrappedStore.writeBlocks(realBlockNums[i], buf, bufOffset+lo-blockOffset, 
+            lo-i*dbSize, hi-lo);
+        }else{
+          wrappedStore.readBlocks(realBlockNums[i], buf, bufOffset+lo-blockOffset, 
+            lo-i*dbSize, hi-lo);
+        }
+        i = j;
+      }
+    }
+
+    private void forwardVector(boolean write, int[] realBlockNums, 
+      ByteBuffer[] bufs) throws DataIntegrityException {
+
+      if(write){
+        wrappedStore.writeBlocks(realBlockNums, bufs);
+      }else{
+        wrappedStore.readBlocks(realBlockNums, bufs);
+      }
     }
   }
 }
\ No newline at end of file
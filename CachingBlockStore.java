@@ -0,0 +1,327 @@
+// This class is a BlockStore wrapper that keeps recently used blocks in
+// memory.  It caches whole blocks, so once a block has been read, any
+// later access to part of it (a sub-block read through ArrayStore, an
+// 8-byte pointer read in the multiplexor, a hash read in
+// BlockStoreAuthEnc) is served from memory.  It can sit anywhere in a
+// stack of BlockStores: between BlockStoreAuthEnc and a device, or on top
+// of a multiplexed sub-store.  The superblock is not cached.
+//
+// The cache holds up to a fixed number of blocks, and picks which block to
+// evict with one of three policies:
+//     LRU   -- the least recently used block
+//     CLOCK -- an approximation of LRU that keeps one "referenced" bit per
+//              block and sweeps over the blocks in a circle
+//     TWO_Q -- the 2Q policy: a block seen once goes into a small FIFO
+//              queue, and only moves to the main LRU queue if it is used
+//              again soon after it leaves the FIFO, so one long scan can't
+//              flush the blocks that are used over and over
+//
+// In write-through mode every write goes to the wrapped store right away
+// (and updates the cached copy).  In write-back mode a write only changes
+// the cached copy and marks it dirty; dirty blocks are written back when
+// they are evicted, or by flush().
+//
+// The part shared with OffHeapBlockCache (locking, calling the wrapped
+// store, the superblock, flush and the counters) is in BlockCache.
+//
+// Here is the API, beyond what BlockCache provides:
+//
+// CachingBlockStore cbs = new CachingBlockStore(bs, capacity, policy, writeBack);
+//   Make a cache of up to <capacity> blocks, in front of <bs>.  <policy> is
+//   one of CachingBlockStore.LRU, CLOCK or TWO_Q.
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+public class CachingBlockStore extends BlockCache {
+	public static final int LRU = 0;
+	public static final int CLOCK = 1;
+	public static final int TWO_Q = 2;
+
+	private Policy     policy;
+
+	public CachingBlockStore(BlockStore bs, int capacity, int policyType,
+		boolean writeBack) {
+
+		super(bs, capacity, writeBack);
+		if(capacity < 1){
+			throw new IllegalArgumentException("bad capacity " + capacity);
+		}
+		switch(policyType){
+		case LRU:
+			policy = new LruPolicy(capacity);
+			break;
+		case CLOCK:
+			policy = new ClockPolicy(capacity);
+			break;
+		case TWO_Q:
+			policy = new TwoQPolicy(capacity);
+			break;
+		default:
+			throw new IllegalArgumentException("unknown policy " + policyType);
+		}
+	}
+
+	protected void clear() {
+		policy.clear();
+	}
+
+	protected boolean copyOut(int blockNum, byte[] buf, int bufOffset,
+		int blockOffset, int nbytes) {
+
+		Entry e = policy.get(blockNum);
+		if(e == null){
+			return false;
+		}
+		System.arraycopy(e.data, blockOffset, buf, bufOffset, nbytes);
+		return true;
+	}
+
+	protected boolean copyIn(int blockNum, byte[] buf, int bufOffset,
+		int blockOffset, int nbytes) {
+
+		Entry e = policy.get(blockNum);
+		if(e == null){
+			return false;
+		}
+		System.arraycopy(buf, bufOffset, e.data, blockOffset, nbytes);
+		e.dirty = writeBack;
+		return true;
+	}
+
+	protected int size() {
+		return policy.size();
+	}
+
+	protected Evicted evict() {
+		// the evicted block's buffer is handed over, for reuse or writing back
+		Entry victim = policy.evict();
+		return new Evicted(victim.blockNum, victim.dirty, victim.data);
+	}
+
+	protected void install(int blockNum, byte[] data, boolean dirty) {
+		Entry e = new Entry(blockNum, data);
+		e.dirty = dirty;
+		policy.put(e);
+	}
+
+	protected void writeBackAll() throws DataIntegrityException {
+		List<Entry> dirty = new ArrayList<Entry>();
+		for(Entry e : policy.entries()){
+			if(e.dirty){
+				dirty.add(e);
+			}
+		}
+		Collections.sort(dirty, new Comparator<Entry>() {
+			public int compare(Entry a, Entry b) {
+				return (a.blockNum < b.blockNum) ? -1 : (a.blockNum == b.blockNum ? 0 : 1);
+			}
+		});
+		for(Entry e : dirty){
+			writeOut(e);
+		}
+	}
+
+	private void writeOut(Entry e) throws DataIntegrityException {
+		writeOut(e.blockNum, e.data);
+		e.dirty = false;
+	}
+
+	private static class Entry {
+		final int    blockNum;
+		final byte[] data;
+		boolean      dirty;
+		boolean      referenced;     // CLOCK only
+		int          slot;           // CLOCK only
+
+		Entry(int blockNum, byte[] data) {
+			this.blockNum = blockNum;
+			this.data = data;
+		}
+	}
+
+	// An eviction policy keeps track of the cached blocks and the order in
+	// which to evict them.
+	private static abstract class Policy {
+		final int capacity;
+
+		Policy(int capacity) {
+			this.capacity = capacity;
+		}
+
+		// the entry for <blockNum>, if cached; counts as a use of it
+		abstract Entry get(int blockNum);
+
+		// add an entry; there is room for it
+		abstract void put(Entry e);
+
+		// remove and return the entry to evict; the cache is not empty
+		abstract Entry evict();
+
+		abstract int size();
+		abstract Iterable<Entry> entries();
+		abstract void clear();
+	}
+
+	private static class LruPolicy extends Policy {
+		private final LinkedHashMap<Integer, Entry> map =
+			new LinkedHashMap<Integer, Entry>(16, 0.75f, true);
+
+		LruPolicy(int capacity) {
+			super(capacity);
+		}
+
+		Entry get(int blockNum) {    return map.get(blockNum);    }
+		void put(Entry e) {    map.put(e.blockNum, e);    }
+		int size() {    return map.size();    }
+		Iterable<Entry> entries() {    return map.values();    }
+		void clear() {    map.clear();    }
+
+		Entry evict() {
+			Iterator<Entry> it = map.values().iterator();
+			Entry victim = it.next();
+			it.remove();
+			return victim;
+		}
+	}
+
+	private static class ClockPolicy extends Policy {
+		private final Map<Integer, Entry> map = new HashMap<Integer, Entry>();
+		private final Entry[] ring;
+		private final int[]   freeSlots;
+		private int           numFree;
+		private int           hand;
+
+		ClockPolicy(int capacity) {
+			super(capacity);
+			ring = new Entry[capacity];
+			freeSlots = new int[capacity];
+			clear();
+		}
+
+		Entry get(int blockNum) {
+			Entry e = map.get(blockNum);
+			if(e != null){
+				e.referenced = true;
+			}
+			return e;
+		}
+
+		void put(Entry e) {
+			e.slot = freeSlots[--numFree];
+			e.referenced = true;
+			ring[e.slot] = e;
+			map.put(e.blockNum, e);
+		}
+
+		Entry evict() {
+			// Sweep, giving every referenced block a second chance, until we
+			// find one that hasn't been used since the hand last passed it.
+			while(true){
+				Entry e = ring[hand];
+				hand = (hand+1) % ring.length;
+				if(e == null){
+					continue;
+				}
+				if(e.referenced){
+					e.referenced = false;
+					continue;
+				}
+				ring[e.slot] = null;
+				freeSlots[numFree++] = e.slot;
+				map.remove(e.blockNum);
+				return e;
+			}
+		}
+
+		int size() {    return map.size();    }
+		Iterable<Entry> entries() {    return map.values();    }
+
+		void clear() {
+			map.clear();
+			Arrays.fill(ring, null);
+			for(int i=0; i<ring.length; ++i){
+				freeSlots[i] = ring.length-1-i;
+			}
+			numFree = ring.length;
+			hand = 0;
+		}
+	}
+
+	private static class TwoQPolicy extends Policy {
+		// A1in: blocks seen once, oldest first; Am: blocks seen again, least
+		// recently used first; A1out: numbers of blocks recently evicted
+		// from A1in, oldest first.  Sizes as suggested in the 2Q paper.
+		private final LinkedHashMap<Integer, Entry> a1in =
+			new LinkedHashMap<Integer, Entry>();
+		private final LinkedHashMap<Integer, Entry> am =
+			new LinkedHashMap<Integer, Entry>(16, 0.75f, true);
+		private final LinkedHashMap<Integer, Boolean> a1out =
+			new LinkedHashMap<Integer, Boolean>();
+		private final int kin;
+		private final int kout;
+
+		TwoQPolicy(int capacity) {
+			super(capacity);
+			kin = Math.max(1, capacity/4);
+			kout = Math.max(1, capacity/2);
+		}
+
+		Entry get(int blockNum) {
+			Entry e = am.get(blockNum);
+			if(e == null){
+				e = a1in.get(blockNum);
+			}
+			return e;
+		}
+
+		void put(Entry e) {
+			if(a1out.remove(e.blockNum) != null){
+				am.put(e.blockNum, e);
+			}else{
+				a1in.put(e.blockNum, e);
+			}
+		}
+
+		Entry evict() {
+			if(a1in.size() > kin || am.isEmpty()){
+				Iterator<Entry> it = a1in.values().iterator();
+				Entry victim = it.next();
+				it.remove();
+				a1out.put(victim.blockNum, Boolean.TRUE);
+				if(a1out.size() > kout){
+					Iterator<Integer> oldest = a1out.keySet().iterator();
+					oldest.next();
+					oldest.remove();
+				}
+				return victim;
+			}
+			Iterator<Entry> it = am.values().iterator();
+			Entry victim = it.next();
+			it.remove();
+			return victim;
+		}
+
+		int size() {    return a1in.size() + am.size();    }
+
+		Iterable<Entry> entries() {
+			List<Entry> ret = new ArrayList<Entry>(a1in.values());
+			ret.addAll(am.values());
+			return ret;
+		}
+
+		void clear() {
+			a1in.clear();
+			am.clear();
+			a1out.clear();
+		}
+	}
+}
@@ -37,16 +37,24 @@ public class DataInputBuffer {
 		return dis.readInt();
 	}
 
+	public long readLong() throws IOException {
+		return dis.readLong();
+	}
+
 	public String readString() throws IOException {
 		return dis.readUTF();
 	}
 
+	public void readBytes(byte[] buf, int off, int len) throws IOException {
+		// Fill buf[off] thru buf[off+len-1], in one copy; the counterpart of
+		// DataOutputBuffer.writeBytes.
+		dis.readFully(buf, off, len);
+	}
+
 	public byte[] readByteArray() throws IOException {
 		int len = readInt();
 		byte[] ret = new byte[len];
-		for(int i=0; i<len; ++i){
-			ret[i] = readByte();
-		}
+		readBytes(ret, 0, len);
 		return ret;
 	}
 }
\ No newline at end of file
@@ -8,21 +8,43 @@
 // This method helps you build a message containing multiple data fields.
 // Messages built using this class will usually be consumed by an 
 // an instance of the DataInputBuffer class.
+//
+// Payloads should go in with writeBytes, which copies the whole range at
+// once.  If the caller knows roughly how big the message will be, it can
+// say so to the constructor; when the guess is exact, the message is sent
+// straight from the buffer it was built in, without another copy.
 
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
+import java.util.Arrays;
 
 import java.io.IOException;
 
 
 public class DataOutputBuffer {
-	private SecureChannel         outChan;
-	private ByteArrayOutputStream baos;
-	private DataOutputStream      dos;
+	private SecureChannel    outChan;
+	private MessageBuffer    baos;
+	private DataOutputStream dos;
+
+	// A ByteArrayOutputStream that gives up its own array, not a copy,
+	// when the message fills it exactly.
+	private static class MessageBuffer extends ByteArrayOutputStream {
+		MessageBuffer(int size) {
+			super(size);
+		}
+
+		byte[] message() {
+			return (count == buf.length) ? buf : Arrays.copyOf(buf, count);
+		}
+	}
 
 	public DataOutputBuffer(SecureChannel chan) {
+		this(chan, 32);
+	}
+
+	public DataOutputBuffer(SecureChannel chan, int expectedSize) {
 		outChan = chan;
-		baos = new ByteArrayOutputStream();
+		baos = new MessageBuffer(Math.max(expectedSize, 1));
 		dos = new DataOutputStream(baos);
 	}
 
@@ -42,20 +64,27 @@ public class DataOutputBuffer {
 		dos.writeInt(i);
 	}
 
+	public void writeLong(long l) throws IOException {
+		dos.writeLong(l);
+	}
+
 	public void writeString(String s) throws IOException {
 		dos.writeUTF(s);
 	}
 
+	public void writeBytes(byte[] buf, int off, int len) throws IOException {
+		// buf[off] thru buf[off+len-1], with no length in front; the reader
+		// has to know len (see DataInputBuffer.readBytes)
+		dos.write(buf, off, len);
+	}
+
 	public void writeByteArray(byte[] barr) throws IOException {
-		int len = barr.length;
-		writeInt(len);
-		for(int i=0; i<len; ++i){
-			writeByte(barr[i]);
-		}
+		writeInt(barr.length);
+		writeBytes(barr, 0, barr.length);
 	}
 
 	public void send() throws IOException {
-		byte[] msg = baos.toByteArray();
+		byte[] msg = baos.message();
 		outChan.sendMessage(msg);
 	}
 }
\ No newline at end of file
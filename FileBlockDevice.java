@@ -0,0 +1,407 @@
+// This class is a BlockStore that keeps the superblock and every ordinary
+// block in one file, instead of one file per block like BlockDevice does.
+// Block <n> lives at byte offset HeaderSize + n*BlockSize; the superblock
+// sits at the start of the header region, which is one block long so that
+// every ordinary block stays block-aligned in the file.
+//
+// The file is preallocated and grows geometrically as higher-numbered
+// blocks are written.  Parts of the file that were never written read as
+// zeroes.  All I/O goes through FileChannel positional reads and writes
+// (pread/pwrite), using a direct buffer that is reused across calls, so a
+// partial write touches only the bytes that are being changed.  The
+// ByteBuffer versions of readBlock and writeBlock hand the caller's buffer
+// straight to the channel, so a direct buffer is never copied on the heap.
+// A range of blocks (readBlocks/writeBlocks) is one positional read or
+// write, and a scatter/gather call does one vectored read or write
+// (readv/writev) per run of consecutive blocks.
+//
+// Here is the API, beyond what BlockStore requires:
+//
+// FileBlockDevice fbd = new FileBlockDevice(pathname);
+//   Open the device backed by the file at <pathname>, creating the file
+//   (and any missing parent directories) if needed.
+//
+// fbd.flush();
+//   Force all writes made so far to stable storage.
+//
+// fbd.close();
+//   Release the underlying file.
+
+import java.io.File;
+import java.io.Flushable;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.ReentrantLock;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+
+public class FileBlockDevice implements BlockStore, Flushable {
+	private static final int  BlockSize = 4096;
+	private static final int  SuperBlockSize = 256;
+	private static final long HeaderSize = BlockSize;
+	private static final long InitialBlocks = 1024;
+	private static final long MaxGrowthBlocks = 16384;
+
+	private RandomAccessFile raf;
+	private FileChannel      channel;
+	private ByteBuffer       ioBuf = ByteBuffer.allocateDirect(BlockSize);
+	private long             capacity;     // current file length, in bytes
+
+	// Guards all of the above.  A ReentrantLock rather than synchronized, so
+	// a virtual thread waiting on the disk under it releases its carrier.
+	private final ReentrantLock lock = new ReentrantLock();
+
+	public FileBlockDevice(String pathname) throws FileNotFoundException {
+		File f = new File(pathname);
+		if(f.isDirectory()){
+			throw new FileNotFoundException(pathname + " is a directory");
+		}
+		File parent = f.getAbsoluteFile().getParentFile();
+		if(parent != null && ! parent.isDirectory()){
+			parent.mkdirs();
+		}
+		raf = new RandomAccessFile(f, "rw");
+		channel = raf.getChannel();
+		try {
+			capacity = channel.size();
+			if(capacity < HeaderSize + InitialBlocks*BlockSize){
+				growTo(HeaderSize + InitialBlocks*BlockSize);
+			}
+		} catch(IOException x) {
+			x.printStackTrace();
+		}
+	}
+
+	public void format() {
+		lock.lock();
+		try{
+			channel.truncate(0);
+			capacity = 0;
+			growTo(HeaderSize + InitialBlocks*BlockSize);
+		}catch(IOException x){
+			x.printStackTrace();
+		}finally{
+			lock.unlock();
+		}
+	}
+
+	public int blockSize() {    return BlockSize;    }
+	public int superBlockSize() {    return SuperBlockSize;    }
+
+	public void flush() throws IOException {
+		lock.lock();
+		try {
+			channel.force(false);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void close() throws IOException {
+		lock.lock();
+		try {
+			channel.close();
+			raf.close();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private long offsetForBlock(int blockNum) {
+		return HeaderSize + ((long)blockNum)*BlockSize;
+	}
+
+	private void growTo(long minLength) throws IOException {
+		// Extend the file so that it is at least <minLength> bytes long.  The
+		// new region is allocated lazily by the filesystem and reads as zeroes.
+		long newCapacity = capacity;
+		while(newCapacity < minLength){
+			long step = Math.max(newCapacity, InitialBlocks*BlockSize);
+			newCapacity += Math.min(step, MaxGrowthBlocks*BlockSize);
+		}
+		if(newCapacity > capacity){
+			raf.setLength(newCapacity);
+			capacity = newCapacity;
+		}
+	}
+
+	private void checkAccess(byte[] buf, int bufOffset, int fileOffset,
+		int nbytes, int fullSize) {
+
+		if( (bufOffset < 0) || (fileOffset < 0) || (nbytes < 0)
+			|| (bufOffset+nbytes > buf.length) || (fileOffset+nbytes > fullSize) ){
+			throw new ArrayIndexOutOfBoundsException();
+		}
+	}
+
+	private void checkAccess(ByteBuffer buf, int fileOffset, int fullSize) {
+		if( (fileOffset < 0) || (fileOffset+buf.remaining() > fullSize) ){
+			throw new ArrayIndexOutOfBoundsException();
+		}
+	}
+
+	private void checkRange(int firstBlockNum, byte[] buf, int bufOffset,
+		int blockOffset, int nbytes) {
+
+		if( (firstBlockNum < 0) || (blockOffset < 0) || (blockOffset >= BlockSize)
+			|| (bufOffset < 0) || (nbytes < 0) || (bufOffset+nbytes > buf.length) ){
+			throw new ArrayIndexOutOfBoundsException();
+		}
+	}
+
+	private void checkVector(int[] blockNums, ByteBuffer[] bufs) {
+		if(blockNums.length != bufs.length){
+			throw new ArrayIndexOutOfBoundsException();
+		}
+		for(int i=0; i<blockNums.length; ++i){
+			if( (blockNums[i] < 0) || (bufs[i].remaining() > BlockSize) ){
+				throw new ArrayIndexOutOfBoundsException();
+			}
+		}
+	}
+
+	private int runEnd(int[] blockNums, ByteBuffer[] bufs, int start) {
+		// The end of the run of buffers starting at <start> that are laid
+		// out back to back in the file: consecutive blocks, with every buffer
+		// but the last one covering a whole block.
+		int end = start+1;
+		while( (end < blockNums.length) && (blockNums[end] == blockNums[end-1]+1)
+			&& (bufs[end-1].remaining() == BlockSize) ){
+			end++;
+		}
+		return end;
+	}
+
+	private static long remaining(ByteBuffer[] bufs, int offset, int length) {
+		long n = 0;
+		for(int i=offset; i<offset+length; ++i){
+			n += bufs[i].remaining();
+		}
+		return n;
+	}
+
+	private void readAt(long pos, ByteBuffer buf) throws IOException {
+		// Fill the rest of <buf> from the file, starting at byte <pos>.
+		long start = pos - buf.position();
+		while(buf.hasRemaining()){
+			int n = channel.read(buf, start+buf.position());
+			if(n < 0){
+				// past the end of the file: the rest of the block is zeroes
+				while(buf.hasRemaining()){
+					buf.put((byte)0);
+				}
+			}
+		}
+	}
+
+	private void writeAt(long pos, ByteBuffer buf) throws IOException {
+		// Write the rest of <buf> to the file, starting at byte <pos>.
+		if(pos+buf.remaining() > capacity){
+			growTo(pos+buf.remaining());
+		}
+		long start = pos - buf.position();
+		while(buf.hasRemaining()){
+			channel.write(buf, start+buf.position());
+		}
+	}
+
+	private void readAt(long pos, byte[] buf, int bufOffset, int nbytes)
+		throws IOException {
+
+		ioBuf.clear();
+		ioBuf.limit(nbytes);
+		readAt(pos, ioBuf);
+		ioBuf.flip();
+		ioBuf.get(buf, bufOffset, nbytes);
+	}
+
+	private void writeAt(long pos, byte[] buf, int bufOffset, int nbytes)
+		throws IOException {
+
+		ioBuf.clear();
+		ioBuf.put(buf, bufOffset, nbytes);
+		ioBuf.flip();
+		writeAt(pos, ioBuf);
+	}
+
+	public void writeBlock(int blockNum, byte[] buf, int bufOffset,
+		int blockOffset, int nbytes) {
+
+		if(blockNum < 0){
+			throw new ArrayIndexOutOfBoundsException();
+		}
+		checkAccess(buf, bufOffset, blockOffset, nbytes, BlockSize);
+		lock.lock();
+		try {
+			writeAt(offsetForBlock(blockNum)+blockOffset, buf, bufOffset, nbytes);
+		} catch(IOException x) {
+			x.printStackTrace();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void readBlock(int blockNum, byte[] buf, int bufOffset,
+		int blockOffset, int nbytes) {
+
+		if(blockNum < 0){
+			throw new ArrayIndexOutOfBoundsException();
+		}
+		checkAccess(buf, bufOffset, blockOffset, nbytes, BlockSize);
+		lock.lock();
+		try {
+			readAt(offsetForBlock(blockNum)+blockOffset, buf, bufOffset, nbytes);
+		} catch(IOException x) {
+			x.printStackTrace();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void writeBlock(int blockNum, ByteBuffer buf,
+		int blockOffset) {
+
+		if(blockNum < 0){
+			throw new ArrayIndexOutOfBoundsException();
+		}
+		checkAccess(buf, blockOffset, BlockSize);
+		lock.lock();
+		try {
+			writeAt(offsetForBlock(blockNum)+blockOffset, buf);
+		} catch(IOException x) {
+			x.printStackTrace();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void readBlock(int blockNum, ByteBuffer buf,
+		int blockOffset) {
+
+		if(blockNum < 0){
+			throw new ArrayIndexOutOfBoundsException();
+		}
+		checkAccess(buf, blockOffset, BlockSize);
+		lock.lock();
+		try {
+			readAt(offsetForBlock(blockNum)+blockOffset, buf);
+		} catch(IOException x) {
+			x.printStackTrace();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void writeBlocks(int firstBlockNum, byte[] buf,
+		int bufOffset, int blockOffset, int nbytes) {
+
+		checkRange(firstBlockNum, buf, bufOffset, blockOffset, nbytes);
+		lock.lock();
+		try {
+			writeAt(offsetForBlock(firstBlockNum)+blockOffset,
+				ByteBuffer.wrap(buf, bufOffset, nbytes));
+		} catch(IOException x) {
+			x.printStackTrace();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void readBlocks(int firstBlockNum, byte[] buf,
+		int bufOffset, int blockOffset, int nbytes) {
+
+		checkRange(firstBlockNum, buf, bufOffset, blockOffset, nbytes);
+		lock.lock();
+		try {
+			readAt(offsetForBlock(firstBlockNum)+blockOffset,
+				ByteBuffer.wrap(buf, bufOffset, nbytes));
+		} catch(IOException x) {
+			x.printStackTrace();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// The vectored calls move each run with the channel's own position,
+	// which nothing else uses; holding <lock> keeps it ours.
+	public void writeBlocks(int[] blockNums, ByteBuffer[] bufs) {
+		checkVector(blockNums, bufs);
+		lock.lock();
+		try {
+			for(int start=0; start<blockNums.length; ){
+				int end = runEnd(blockNums, bufs, start);
+				long pos = offsetForBlock(blockNums[start]);
+				long nbytes = remaining(bufs, start, end-start);
+				if(pos+nbytes > capacity){
+					growTo(pos+nbytes);
+				}
+				channel.position(pos);
+				while(remaining(bufs, start, end-start) > 0){
+					channel.write(bufs, start, end-start);
+				}
+				start = end;
+			}
+		} catch(IOException x) {
+			x.printStackTrace();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void readBlocks(int[] blockNums, ByteBuffer[] bufs) {
+		checkVector(blockNums, bufs);
+		lock.lock();
+		try {
+			for(int start=0; start<blockNums.length; ){
+				int end = runEnd(blockNums, bufs, start);
+				channel.position(offsetForBlock(blockNums[start]));
+				while(remaining(bufs, start, end-start) > 0){
+					if(channel.read(bufs, start, end-start) < 0){
+						// past the end of the file: the rest reads as zeroes
+						for(int i=start; i<end; ++i){
+							while(bufs[i].hasRemaining()){
+								bufs[i].put((byte)0);
+							}
+						}
+					}
+				}
+				start = end;
+			}
+		} catch(IOException x) {
+			x.printStackTrace();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void writeSuperBlock(byte[] buf, int bufOffset,
+		int blockOffset, int nbytes) {
+
+		checkAccess(buf, bufOffset, blockOffset, nbytes, SuperBlockSize);
+		lock.lock();
+		try {
+			writeAt(blockOffset, buf, bufOffset, nbytes);
+		} catch(IOException x) {
+			x.printStackTrace();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void readSuperBlock(byte[] buf, int bufOffset,
+		int blockOffset, int nbytes) {
+
+		checkAccess(buf, bufOffset, blockOffset, nbytes, SuperBlockSize);
+		lock.lock();
+		try {
+			readAt(blockOffset, buf, bufOffset, nbytes);
+		} catch(IOException x) {
+			x.printStackTrace();
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,187 @@
+// This class keeps cheap, always-available statistics about the server's
+// hot operations, and provides debug tracing that costs nothing when it is
+// turned off.  Everything is static; there is one set of statistics per JVM.
+//
+// For each operation (one of the Op* constants) we count calls and
+// failures, add up the time spent, and keep a latency histogram with one
+// bucket per power of two nanoseconds.  All updates are lock-free.
+//
+// How much is done is controlled by the system property
+// "storage.instrumentation":
+//     off   -- nothing is recorded
+//     stats -- statistics are recorded (the default)
+//     trace -- statistics are recorded, and trace() messages go to stderr
+// Trace call sites are written as
+//     if(Instrumentation.TRACE){  Instrumentation.trace(...);  }
+// so that when tracing is off, not even the message gets built.
+//
+// Here is the API:
+//
+// long start = Instrumentation.start();
+// ...
+// Instrumentation.record(Instrumentation.OpBlockRead, start, succeeded);
+//   Record one call of the given operation, which began at <start>.
+//
+// Instrumentation.trace(message);
+//   Print a debug message, if tracing is on.
+//
+// Instrumentation.Stats[] stats = Instrumentation.snapshot();
+//   Get a copy of the statistics of every operation.
+//
+// Instrumentation.reset();
+//   Zero all statistics.
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import java.io.IOException;
+
+
+public class Instrumentation {
+	public static final int OpBlockRead = 0;
+	public static final int OpBlockWrite = 1;
+	public static final int OpPing = 2;
+	public static final int OpAuthenticate = 3;
+	public static final int OpCreateAccount = 4;
+	public static final int OpRead = 5;
+	public static final int OpWrite = 6;
+	public static final int OpStats = 7;
+	public static final int NumOps = 8;
+
+	private static final String[] OpNames = { "block read", "block write",
+		"ping", "authenticate", "create account", "read", "write", "stats" };
+
+	public static final int NumBuckets = 64;
+
+	public static final boolean STATS;
+	public static final boolean TRACE;
+	static {
+		String level = System.getProperty("storage.instrumentation", "stats");
+		TRACE = level.equals("trace");
+		STATS = TRACE || level.equals("stats");
+	}
+
+	private static final AtomicLongArray calls = new AtomicLongArray(NumOps);
+	private static final AtomicLongArray failures = new AtomicLongArray(NumOps);
+	private static final AtomicLongArray totalNanos = new AtomicLongArray(NumOps);
+	private static final AtomicLongArray histogram =
+		new AtomicLongArray(NumOps*NumBuckets);
+
+	public static long start() {
+		return STATS ? System.nanoTime() : 0;
+	}
+
+	public static void record(int op, long start, boolean succeeded) {
+		if(! STATS){
+			return;
+		}
+		long nanos = Math.max(System.nanoTime() - start, 0);
+		calls.incrementAndGet(op);
+		if(! succeeded){
+			failures.incrementAndGet(op);
+		}
+		totalNanos.addAndGet(op, nanos);
+		histogram.incrementAndGet(op*NumBuckets + bucket(nanos));
+	}
+
+	private static int bucket(long nanos) {
+		// bucket b holds latencies in [2^b, 2^(b+1)) ns; bucket 0 also holds 0
+		return (nanos == 0) ? 0 : 63 - Long.numberOfLeadingZeros(nanos);
+	}
+
+	public static void trace(String message) {
+		if(TRACE){
+			System.err.println("[" + Thread.currentThread().getName() + "] "
+				+ message);
+		}
+	}
+
+	public static Stats[] snapshot() {
+		Stats[] ret = new Stats[NumOps];
+		for(int op=0; op<NumOps; ++op){
+			long[] hist = new long[NumBuckets];
+			for(int b=0; b<NumBuckets; ++b){
+				hist[b] = histogram.get(op*NumBuckets + b);
+			}
+			ret[op] = new Stats(OpNames[op], calls.get(op), failures.get(op),
+				totalNanos.get(op), hist);
+		}
+		return ret;
+	}
+
+	public static void reset() {
+		for(int op=0; op<NumOps; ++op){
+			calls.set(op, 0);
+			failures.set(op, 0);
+			totalNanos.set(op, 0);
+			for(int b=0; b<NumBuckets; ++b){
+				histogram.set(op*NumBuckets + b, 0);
+			}
+		}
+	}
+
+	// The statistics of one operation at one point in time.  Stats can be
+	// sent across a channel with writeTo and read back with readFrom.
+	public static class Stats {
+		public final String name;
+		public final long   calls;
+		public final long   failures;
+		public final long   totalNanos;
+		public final long[] histogram;
+
+		public Stats(String name, long calls, long failures, long totalNanos,
+			long[] histogram) {
+			this.name = name;
+			this.calls = calls;
+			this.failures = failures;
+			this.totalNanos = totalNanos;
+			this.histogram = histogram;
+		}
+
+		public long meanNanos() {
+			return (calls == 0) ? 0 : totalNanos / calls;
+		}
+
+		public long percentileNanos(double p) {
+			// An upper bound on the <p>'th percentile latency (0 < p <= 100):
+			// the top of the histogram bucket it falls in.
+			long target = (long) Math.ceil(calls * p / 100.0);
+			long seen = 0;
+			for(int b=0; b<histogram.length; ++b){
+				seen += histogram[b];
+				if(seen >= target && seen > 0){
+					return (b >= 62) ? Long.MAX_VALUE : (2L << b) - 1;
+				}
+			}
+			return 0;
+		}
+
+		public void writeTo(DataOutputBuffer dob) throws IOException {
+			dob.writeString(name);
+			dob.writeLong(calls);
+			dob.writeLong(failures);
+			dob.writeLong(totalNanos);
+			dob.writeInt(histogram.length);
+			for(int b=0; b<histogram.length; ++b){
+				dob.writeLong(histogram[b]);
+			}
+		}
+
+		public static Stats readFrom(DataInputBuffer dib) throws IOException {
+			String name = dib.readString();
+			long calls = dib.readLong();
+			long failures = dib.readLong();
+			long totalNanos = dib.readLong();
+			long[] hist = new long[dib.readInt()];
+			for(int b=0; b<hist.length; ++b){
+				hist[b] = dib.readLong();
+			}
+			return new Stats(name, calls, failures, totalNanos, hist);
+		}
+
+		public String toString() {
+			return String.format("%-16s %10d calls %6d failed  mean %9d ns"
+				+ "  p50 <%10d ns  p99 <%10d ns", name, calls, failures,
+				meanNanos(), percentileNanos(50), percentileNanos(99));
+		}
+	}
+}
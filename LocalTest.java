@@ -3,6 +3,11 @@
 // augment this with more tests.  You don't need to submit it for grading, 
 // though.
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
 import java.io.FileNotFoundException;
 import java.io.IOException;
 
@@ -16,10 +21,16 @@ public class LocalTest {
 		//   the contents of a BlockDevice used for testing
 		// pubKey and privKey are names of files that contain the server's
 		//   public and private keys, respectively
+		// An optional fourth argument selects the storage backend, as in
+		//   NetworkServer.openBlockDevice; the default is "dir".
 		//
 		String blockDeviceDirectoryName = args[0];
 		String publicKeyFileName = args[1];
 		String privateKeyFileName = args[2];
+		String deviceKind = "dir";
+		if(args.length > 3){
+			deviceKind = args[3];
+		}
 
 		byte[] prgSeed = new byte[PRGen.KEY_SIZE_BYTES];
 		byte[] randBytes = TrueRandomness.get();
@@ -31,7 +42,8 @@ public class LocalTest {
 		RSAKey publicKey = KeyHandler.readKeyFromFile(publicKeyFileName);
 		RSAKey privateKey = KeyHandler.readKeyFromFile(privateKeyFileName);
 
-		BlockDevice device = new BlockDevice(blockDeviceDirectoryName);
+		BlockStore device = NetworkServer.openBlockDevice(deviceKind, 
+			blockDeviceDirectoryName);
 		device.format();
 
 		LocalTestHarness harness = new LocalTestHarness(device, privateKey, 
@@ -42,6 +54,8 @@ public class LocalTest {
 		testPing(session);
 		testAuthentication(session);
 		testReadWrite(session, prg);
+		testPipelined(session, prg);
+		testStats(session);
 
 		System.out.println("OK");
 	}
@@ -67,6 +81,14 @@ public class LocalTest {
 			// This exception should occur
 		}
 
+		// nor should we get the server's stats before logging in
+		try {
+			session.getStats();
+			System.out.println("ERROR: got stats without authenticating");
+		}catch(AccessDeniedException x){
+			// This exception should occur
+		}
+
 		// create an account for Alice
 		try {
 			session.createAccount(name[0], pwd[0]);
@@ -125,4 +147,83 @@ public class LocalTest {
 			x.printStackTrace();
 		}
 	}
-}
\ No newline at end of file
+
+	public static void testPipelined(StorageClientSession session, PRGen prg) {
+		// many tagged requests in flight at once
+		int chunk = 1000;
+		int numChunks = 16;
+		byte[] buf = new byte[chunk*numChunks];
+		byte[] buf2 = new byte[buf.length];
+		prg.nextBytes(buf);
+		List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+		for(int i=0; i<numChunks; ++i){
+			futures.add(session.writeAsync(chunk, 20000 + i*chunk, i*chunk, buf));
+		}
+		for(int i=0; i<numChunks; ++i){
+			futures.add(session.readAsync(chunk, 20000 + i*chunk, i*chunk, buf2));
+		}
+
+		// overlapping requests take effect in the order they were sent
+		byte[] first = { 1, 1, 1, 1 };
+		byte[] second = { 2, 2, 2, 2 };
+		byte[] got = new byte[first.length];
+		futures.add(session.writeAsync(first.length, 50000, 0, first));
+		futures.add(session.writeAsync(second.length, 50001, 0, second));
+		futures.add(session.readAsync(got.length, 50000, 0, got));
+
+		for(CompletableFuture<Void> f : futures){
+			f.join();
+		}
+		for(int i=0; i<buf.length; ++i){
+			assert buf[i] == buf2[i];
+		}
+		assert got[0] == 1 && got[1] == 2 && got[3] == 2;
+
+		// a request the server turns away is still answered, and the session
+		// stays usable
+		List<CompletableFuture<Void>> bad = new ArrayList<CompletableFuture<Void>>();
+		bad.add(session.readAsync(10, -5000, 0, got));
+		bad.add(session.readAsync(-1, 0, 0, got));
+		for(CompletableFuture<Void> f : bad){
+			try {
+				f.join();
+				assert false;
+			}catch(CompletionException x){
+				// expected
+			}
+		}
+
+		// and a lock-step call after them sees all of them
+		try {
+			session.read(got.length, 50000, 0, got);
+			assert got[0] == 1 && got[1] == 2;
+		}catch(AccessDeniedException x){
+			x.printStackTrace();
+		}catch(IOException x){
+			x.printStackTrace();
+		}
+	}
+
+	public static void testStats(StorageClientSession session) 
+	throws IOException {
+		// the server has counted the reads and writes done above
+		Instrumentation.Stats[] stats;
+		try {
+			stats = session.getStats();
+		}catch(AccessDeniedException x){
+			x.printStackTrace();
+			return;
+		}
+		assert stats.length == Instrumentation.NumOps;
+		assert stats[Instrumentation.OpRead].calls >= 2;
+		assert stats[Instrumentation.OpWrite].calls >= 1;
+		assert stats[Instrumentation.OpBlockRead].calls > 0;
+		for(Instrumentation.Stats st : stats){
+			long inHistogram = 0;
+			for(long n : st.histogram){
+				inHistogram += n;
+			}
+			assert inHistogram == st.calls;
+		}
+	}
+}
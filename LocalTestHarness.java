@@ -27,7 +27,7 @@ public class LocalTestHarness {
 	private RSAKey        serverPublicKey;
 	private PRGen         clientPrg;
 
-	public LocalTestHarness(BlockDevice device, RSAKey serverPrivateKey,
+	public LocalTestHarness(BlockStore device, RSAKey serverPrivateKey,
 		RSAKey serverPublicKey, PRGen prg) throws DataIntegrityException {
 
 		serverContext = new ServerContext(device, serverPrivateKey, prg);
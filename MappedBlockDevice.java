@@ -0,0 +1,347 @@
+// This class is a BlockStore backed by a single memory-mapped file.  It uses
+// the same on-disk layout as FileBlockDevice (superblock in a one-block
+// header, then block <n> at HeaderSize + n*BlockSize), so either class can
+// open a file written by the other.
+//
+// The file is mapped in large fixed-size segments (1 GiB by default).  A
+// segment is mapped the first time a block inside it is written, or read
+// while it lies within the file, so reads and writes are plain memory
+// copies with no system calls.  Reads from segments that are neither
+// mapped nor backed by the file yield zeroes.  The ByteBuffer versions of
+// readBlock and writeBlock copy between the mapping and the caller's buffer
+// directly, without going through a byte array, and a range of blocks
+// (readBlocks/writeBlocks) is one copy per segment it touches.
+//
+// Reads and writes don't take a lock: each copies through its own view of
+// the segment (a duplicate of the mapping, with its own position), and the
+// segments are published in an array that is replaced, never changed, when
+// one is added.  The lock is held only while mapping a new segment, and by
+// format, flush and close, which must not overlap with reads or writes.
+//
+// Writes are not forced to disk one by one.  Durability comes from calling
+// flush(), which forces every mapped segment back to the file; callers
+// choose their own sync points.
+//
+// Here is the API, beyond what BlockStore requires:
+//
+// MappedBlockDevice mbd = new MappedBlockDevice(pathname);
+// MappedBlockDevice mbd = new MappedBlockDevice(pathname, segmentSize);
+//   Open the device backed by the file at <pathname>, creating it if
+//   needed.  <segmentSize> is the size in bytes of each mapping; it must be
+//   a positive multiple of the block size.
+//
+// mbd.flush();
+//   Force all writes made so far to the underlying file.
+//
+// mbd.close();
+//   Flush, then release the underlying file.
+
+import java.io.File;
+import java.io.Flushable;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+
+public class MappedBlockDevice implements BlockStore, Flushable {
+	private static final int  BlockSize = 4096;
+	private static final int  SuperBlockSize = 256;
+	private static final long HeaderSize = BlockSize;
+	public static final long  DefaultSegmentSize = 1L << 30;
+
+	private RandomAccessFile       raf;
+	private FileChannel            channel;
+	private long                   segmentSize;
+	private final ReentrantLock    lock = new ReentrantLock();  // map() and force() block
+
+	// segment i, or null if it isn't mapped yet; replaced under lock
+	private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+
+	public MappedBlockDevice(String pathname) throws FileNotFoundException {
+		this(pathname, DefaultSegmentSize);
+	}
+
+	public MappedBlockDevice(String pathname, long segmentSize)
+	throws FileNotFoundException {
+		if( (segmentSize <= 0) || (segmentSize % BlockSize != 0)
+			|| (segmentSize > Integer.MAX_VALUE) ){
+			throw new IllegalArgumentException("bad segment size " + segmentSize);
+		}
+		File f = new File(pathname);
+		if(f.isDirectory()){
+			throw new FileNotFoundException(pathname + " is a directory");
+		}
+		File parent = f.getAbsoluteFile().getParentFile();
+		if(parent != null && ! parent.isDirectory()){
+			parent.mkdirs();
+		}
+		this.segmentSize = segmentSize;
+		raf = new RandomAccessFile(f, "rw");
+		channel = raf.getChannel();
+	}
+
+	public void format() {
+		lock.lock();
+		try{
+			// Dropping our references makes the old mappings unreachable; the
+			// truncate then discards their contents.
+			segments = new MappedByteBuffer[0];
+			channel.truncate(0);
+		}catch(IOException x){
+			x.printStackTrace();
+		}finally{
+			lock.unlock();
+		}
+	}
+
+	public int blockSize() {    return BlockSize;    }
+	public int superBlockSize() {    return SuperBlockSize;    }
+
+	public void flush() throws IOException {
+		lock.lock();
+		try {
+			for(MappedByteBuffer seg : segments){
+				if(seg != null){
+					seg.force();
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void close() throws IOException {
+		lock.lock();
+		try {
+			flush();
+			segments = new MappedByteBuffer[0];
+			channel.close();
+			raf.close();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private ByteBuffer segment(int idx, boolean create) throws IOException {
+		// Get a view of segment <idx>, positioned at its start, for the
+		// caller's use alone.  Returns null if the segment is not mapped yet,
+		// <create> is false, and the file doesn't reach it.
+		MappedByteBuffer[] segs = segments;
+		if( (idx < segs.length) && (segs[idx] != null) ){
+			return segs[idx].duplicate();
+		}
+		lock.lock();
+		try {
+			segs = segments;
+			if( (idx < segs.length) && (segs[idx] != null) ){
+				return segs[idx].duplicate();
+			}
+			long start = idx*segmentSize;
+			if( (! create) && (channel.size() <= start) ){
+				return null;
+			}
+			MappedByteBuffer seg = channel.map(FileChannel.MapMode.READ_WRITE,
+				start, segmentSize);
+			segs = Arrays.copyOf(segs, Math.max(segs.length, idx+1));
+			segs[idx] = seg;
+			segments = segs;
+			return seg.duplicate();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void checkAccess(byte[] buf, int bufOffset, int fileOffset,
+		int nbytes, int fullSize) {
+
+		if( (bufOffset < 0) || (fileOffset < 0) || (nbytes < 0)
+			|| (bufOffset+nbytes > buf.length) || (fileOffset+nbytes > fullSize) ){
+			throw new ArrayIndexOutOfBoundsException();
+		}
+	}
+
+	private void readAt(long pos, byte[] buf, int bufOffset, int nbytes)
+		throws IOException {
+
+		// A block never straddles two segments, because the header and the
+		// segment size are both whole numbers of blocks.  (Ranges of blocks
+		// are split at segment boundaries by the caller.)
+		ByteBuffer seg = segment((int)(pos / segmentSize), false);
+		if(seg == null){
+			for(int i=0; i<nbytes; ++i){
+				buf[bufOffset+i] = 0;
+			}
+			return;
+		}
+		seg.position((int)(pos % segmentSize));
+		seg.get(buf, bufOffset, nbytes);
+	}
+
+	private void writeAt(long pos, byte[] buf, int bufOffset, int nbytes)
+		throws IOException {
+
+		ByteBuffer seg = segment((int)(pos / segmentSize), true);
+		seg.position((int)(pos % segmentSize));
+		seg.put(buf, bufOffset, nbytes);
+	}
+
+	private void checkAccess(ByteBuffer buf, int fileOffset, int fullSize) {
+		if( (fileOffset < 0) || (fileOffset+buf.remaining() > fullSize) ){
+			throw new ArrayIndexOutOfBoundsException();
+		}
+	}
+
+	private void checkRange(int firstBlockNum, byte[] buf, int bufOffset,
+		int blockOffset, int nbytes) {
+
+		if( (firstBlockNum < 0) || (blockOffset < 0) || (blockOffset >= BlockSize)
+			|| (bufOffset < 0) || (nbytes < 0) || (bufOffset+nbytes > buf.length) ){
+			throw new ArrayIndexOutOfBoundsException();
+		}
+	}
+
+	private void readAt(long pos, ByteBuffer buf) throws IOException {
+		ByteBuffer seg = segment((int)(pos / segmentSize), false);
+		if(seg == null){
+			while(buf.hasRemaining()){
+				buf.put((byte)0);
+			}
+			return;
+		}
+		// narrow the view to the bytes wanted
+		int segPos = (int)(pos % segmentSize);
+		seg.limit(segPos + buf.remaining());
+		seg.position(segPos);
+		buf.put(seg);
+	}
+
+	private void writeAt(long pos, ByteBuffer buf) throws IOException {
+		ByteBuffer seg = segment((int)(pos / segmentSize), true);
+		seg.position((int)(pos % segmentSize));
+		seg.put(buf);
+	}
+
+	private long offsetForBlock(int blockNum) {
+		return HeaderSize + ((long)blockNum)*BlockSize;
+	}
+
+	public void writeBlock(int blockNum, byte[] buf, int bufOffset,
+		int blockOffset, int nbytes) {
+
+		if(blockNum < 0){
+			throw new ArrayIndexOutOfBoundsException();
+		}
+		checkAccess(buf, bufOffset, blockOffset, nbytes, BlockSize);
+		try {
+			writeAt(offsetForBlock(blockNum)+blockOffset, buf, bufOffset, nbytes);
+		} catch(IOException x) {
+			x.printStackTrace();
+		}
+	}
+
+	public void readBlock(int blockNum, byte[] buf, int bufOffset,
+		int blockOffset, int nbytes) {
+
+		if(blockNum < 0){
+			throw new ArrayIndexOutOfBoundsException();
+		}
+		checkAccess(buf, bufOffset, blockOffset, nbytes, BlockSize);
+		try {
+			readAt(offsetForBlock(blockNum)+blockOffset, buf, bufOffset, nbytes);
+		} catch(IOException x) {
+			x.printStackTrace();
+		}
+	}
+
+	public void writeBlock(int blockNum, ByteBuffer buf,
+		int blockOffset) {
+
+		if(blockNum < 0){
+			throw new ArrayIndexOutOfBoundsException();
+		}
+		checkAccess(buf, blockOffset, BlockSize);
+		try {
+			writeAt(offsetForBlock(blockNum)+blockOffset, buf);
+		} catch(IOException x) {
+			x.printStackTrace();
+		}
+	}
+
+	public void readBlock(int blockNum, ByteBuffer buf,
+		int blockOffset) {
+
+		if(blockNum < 0){
+			throw new ArrayIndexOutOfBoundsException();
+		}
+		checkAccess(buf, blockOffset, BlockSize);
+		try {
+			readAt(offsetForBlock(blockNum)+blockOffset, buf);
+		} catch(IOException x) {
+			x.printStackTrace();
+		}
+	}
+
+	public void writeBlocks(int firstBlockNum, byte[] buf,
+		int bufOffset, int blockOffset, int nbytes) {
+
+		checkRange(firstBlockNum, buf, bufOffset, blockOffset, nbytes);
+		try {
+			long pos = offsetForBlock(firstBlockNum)+blockOffset;
+			while(nbytes > 0){
+				int n = (int)Math.min(nbytes, segmentSize - pos % segmentSize);
+				writeAt(pos, buf, bufOffset, n);
+				pos += n;
+				bufOffset += n;
+				nbytes -= n;
+			}
+		} catch(IOException x) {
+			x.printStackTrace();
+		}
+	}
+
+	public void readBlocks(int firstBlockNum, byte[] buf,
+		int bufOffset, int blockOffset, int nbytes) {
+
+		checkRange(firstBlockNum, buf, bufOffset, blockOffset, nbytes);
+		try {
+			long pos = offsetForBlock(firstBlockNum)+blockOffset;
+			while(nbytes > 0){
+				int n = (int)Math.min(nbytes, segmentSize - pos % segmentSize);
+				readAt(pos, buf, bufOffset, n);
+				pos += n;
+				bufOffset += n;
+				nbytes -= n;
+			}
+		} catch(IOException x) {
+			x.printStackTrace();
+		}
+	}
+
+	public void writeSuperBlock(byte[] buf, int bufOffset,
+		int blockOffset, int nbytes) {
+
+		checkAccess(buf, bufOffset, blockOffset, nbytes, SuperBlockSize);
+		try {
+			writeAt(blockOffset, buf, bufOffset, nbytes);
+		} catch(IOException x) {
+			x.printStackTrace();
+		}
+	}
+
+	public void readSuperBlock(byte[] buf, int bufOffset,
+		int blockOffset, int nbytes) {
+
+		checkAccess(buf, bufOffset, blockOffset, nbytes, SuperBlockSize);
+		try {
+			readAt(blockOffset, buf, bufOffset, nbytes);
+		} catch(IOException x) {
+			x.printStackTrace();
+		}
+	}
+}
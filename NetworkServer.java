@@ -9,33 +9,137 @@
 // to connect to it, and starting a new ServerThread for every client that
 // connects.
 //
+// By default each ServerThread is a platform thread of its own.  A server
+// made with virtualThreads set instead submits each client's session loop
+// (ServerSession.serve) as a task that runs on a virtual thread, so a mostly
+// idle client costs a small heap-allocated stack rather than a
+// megabyte-sized native one.  Virtual threads
+// arrived in Java 21; on an older JVM such a server falls back to platform
+// threads (see usesVirtualThreads).  The storage layers only use
+// java.util.concurrent locks around I/O, so a blocked virtual thread never
+// pins the carrier thread it runs on.  (NioNetworkServer is the other way
+// to serve many clients.)
+//
+// The main takes up to five arguments:
+//     java NetworkServer port blockDeviceName [privKeyFile [deviceKind [threads]]]
+// where deviceKind selects the storage backend (see openBlockDevice); it
+// defaults to "dir", the original one-file-per-block BlockDevice.  threads
+// is "platform" (the default) or "virtual".
+//
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.net.SocketException;
 
 
 public class NetworkServer {
-	private ServerContext context;
-	private ServerSocket  serverSock;
+	private ServerContext   context;
+	private ServerSocket    serverSock;
+	private ExecutorService virtualThreads;  // null: a platform thread per client
 
 	public NetworkServer(int portNum, RSAKey privateKey, PRGen prg, 
 		String blockStoreDirectoryName) 
 	throws DataIntegrityException, IOException, FileNotFoundException {
-		BlockDevice bd = new BlockDevice(blockStoreDirectoryName);
-		ServerSocket ssock = new ServerSocket(portNum);
-		context = new ServerContext(bd, privateKey, prg);
+		this(portNum, privateKey, prg, new BlockDevice(blockStoreDirectoryName));
+	}
+
+	public NetworkServer(int portNum, RSAKey privateKey, PRGen prg, 
+		BlockStore device) 
+	throws DataIntegrityException, IOException {
+		this(portNum, privateKey, prg, device, false);
+	}
+
+	public NetworkServer(int portNum, RSAKey privateKey, PRGen prg, 
+		BlockStore device, boolean virtualThreads) 
+	throws DataIntegrityException, IOException {
+		context = new ServerContext(device, privateKey, prg);
 		serverSock = new ServerSocket(portNum);
+		if(virtualThreads){
+			this.virtualThreads = newVirtualThreadExecutor();
+		}
+	}
+
+	public static ExecutorService newVirtualThreadExecutor() {
+		// An executor that starts a virtual thread per task, or null if this
+		// JVM has none.  Executors.newVirtualThreadPerTaskExecutor is only
+		// there from Java 21 on, and this code builds for older releases,
+		// so it is looked up by reflection.
+		try {
+			Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService)m.invoke(null);
+		}catch(Exception x){
+			return null;
+		}
+	}
+
+	public boolean usesVirtualThreads() {
+		return virtualThreads != null;
+	}
+
+	public int getLocalPort() {
+		return serverSock.getLocalPort();
+	}
+
+	public void close() throws IOException {
+		// Stop accepting; serverLoop returns.  Clients already connected
+		// are left to finish.
+		serverSock.close();
+		if(virtualThreads != null){
+			virtualThreads.shutdown();
+		}
+	}
+
+	public static BlockStore openBlockDevice(String kind, String name) 
+	throws FileNotFoundException {
+		// Open the storage backend named by <kind>:
+		//    "dir"  -- a BlockDevice, one file per block under directory <name>
+		//    "file" -- a FileBlockDevice, all blocks in the single file <name>
+		//    "mmap" -- a MappedBlockDevice, the single file <name> mapped into
+		//              memory
+		if(kind.equals("dir")){
+			return new BlockDevice(name);
+		}else if(kind.equals("file")){
+			return new FileBlockDevice(name);
+		}else if(kind.equals("mmap")){
+			return new MappedBlockDevice(name);
+		}
+		throw new IllegalArgumentException("unknown block device kind: " + kind);
 	}
 
 	public void serverLoop() throws IOException {
 		while(true) {
-			Socket sock = serverSock.accept();
-			ServerThread st = new ServerThread(context, 
-				sock.getInputStream(), sock.getOutputStream());
-			st.start();
+			Socket sock;
+			try {
+				sock = serverSock.accept();
+			}catch(SocketException x){
+				if(serverSock.isClosed()){
+					return;
+				}
+				throw x;
+			}
+			// buffered, as the channel moves a byte at a time; it flushes
+			// after every message
+			final InputStream in = new BufferedInputStream(sock.getInputStream());
+			final OutputStream out = new BufferedOutputStream(sock.getOutputStream());
+			if(virtualThreads != null){
+				virtualThreads.execute(new Runnable() {
+					public void run() {
+						ServerSession.serve(context, in, out);
+					}
+				});
+			}else{
+				new ServerThread(context, in, out).start();
+			}
 		}
 	}
 
@@ -47,6 +151,14 @@ public class NetworkServer {
 		if(args.length > 2) {
 			privateKeyFileName = args[2];
 		}
+		String deviceKind = "dir";
+		if(args.length > 3) {
+			deviceKind = args[3];
+		}
+		boolean virtual = false;
+		if(args.length > 4) {
+			virtual = args[4].equals("virtual");
+		}
 
 		RSAKey privKey = KeyHandler.readKeyFromFile(privateKeyFileName);
 
@@ -58,7 +170,11 @@ public class NetworkServer {
 		PRGen prg = new PRGen(prgSeed);
 
 		NetworkServer ns = new NetworkServer(port, privKey, prg, 
-			blockDeviceDirectoryName);
+			openBlockDevice(deviceKind, blockDeviceDirectoryName), virtual);
+		if(virtual && ! ns.usesVirtualThreads()){
+			System.err.println("no virtual threads before Java 21; "
+				+ "using platform threads");
+		}
 		ns.serverLoop();
 	}
 }
\ No newline at end of file
@@ -0,0 +1,504 @@
+// This class runs the server like NetworkServer does, speaking the same
+// protocol, but without a thread per client.  Every connection is a
+// non-blocking SocketChannel registered with one of a small pool of event
+// loops, each a thread running a Selector.  An event loop only moves bytes:
+// it splits what arrives into messages using the channel framing (a 4-byte
+// length, then that many bytes), and writes out whatever responses are
+// queued.  Once a complete message has arrived, the connection is handed to
+// a separate pool of worker threads, which runs the SecureChannel and
+// ServerSession code (the key exchange for the first message, a command
+// after that) exactly as ServerThread would.  Since the whole message is
+// already in memory, that code never blocks waiting for the network.
+//
+// A connection is served by at most one worker at a time, so its commands
+// execute, and its responses go out, in the order they were sent.  An idle
+// connection costs a socket and a few small objects, with no thread stack
+// and no buffer, so one server can hold tens of thousands of them.  A
+// client that sends faster than its commands are executed stops being read
+// once MaxQueuedMessages messages are waiting.  The buffer for a message
+// that is still arriving starts at InitialMessageBytes and doubles as its
+// bytes come in, so a length header alone can't make the server set aside
+// up to MaxMessageBytes.
+//
+// Here is the API:
+//
+// NioNetworkServer ns = new NioNetworkServer(portNum, privateKey, prg, device);
+// NioNetworkServer ns = new NioNetworkServer(portNum, privateKey, prg, device,
+//                                            numEventLoops, numWorkers);
+//   Bind the listening socket (once) and start the event loops and the
+//   workers.  Port 0 picks any free port.  By default there are
+//   DefaultEventLoops event loops and two workers per processor.
+//
+// ns.serverLoop();
+//   Accept connections forever, handing each to an event loop.  Returns
+//   only once the server has been closed.
+//
+// ns.getLocalPort();
+//   The port the server is listening on.
+//
+// ns.close();
+//   Stop accepting, close every connection, and stop the threads.
+//
+// The main takes the same arguments as NetworkServer's:
+//     java NioNetworkServer port blockDeviceName [privKeyFile [deviceKind]]
+//
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+
+
+public class NioNetworkServer {
+	public static final int DefaultEventLoops =
+		Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()/2));
+	public static final int MaxQueuedMessages = 16;
+	public static final int MaxMessageBytes = 64 << 20;
+	public static final int InitialMessageBytes = 4 << 10;
+	private static final int Backlog = 1024;
+	private static final int ReadBufferSize = 64 << 10;
+
+	private ServerContext       context;
+	private ServerSocketChannel serverChannel;
+	private EventLoop[]         loops;
+	private ExecutorService     workers;
+	private int                 nextLoop = 0;
+
+	public NioNetworkServer(int portNum, RSAKey privateKey, PRGen prg,
+		BlockStore device) throws DataIntegrityException, IOException {
+		this(portNum, privateKey, prg, device, DefaultEventLoops,
+			2*Runtime.getRuntime().availableProcessors());
+	}
+
+	public NioNetworkServer(int portNum, RSAKey privateKey, PRGen prg,
+		BlockStore device, int numEventLoops, int numWorkers)
+	throws DataIntegrityException, IOException {
+		context = new ServerContext(device, privateKey, prg);
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().bind(new InetSocketAddress(portNum), Backlog);
+
+		workers = Executors.newFixedThreadPool(numWorkers,
+			daemonThreads("nio-worker-"));
+		loops = new EventLoop[numEventLoops];
+		for(int i=0; i<numEventLoops; ++i){
+			loops[i] = new EventLoop(Selector.open());
+			loops[i].setName("nio-loop-" + i);
+			loops[i].setDaemon(true);
+			loops[i].start();
+		}
+	}
+
+	private static ThreadFactory daemonThreads(final String prefix) {
+		final AtomicInteger count = new AtomicInteger();
+		return new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, prefix + count.getAndIncrement());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	public int getLocalPort() {
+		return serverChannel.socket().getLocalPort();
+	}
+
+	public void serverLoop() throws IOException {
+		// Accepting stays blocking, on the caller's thread; the accepted
+		// sockets are dealt out to the event loops in turn.
+		while(true) {
+			SocketChannel sc;
+			try {
+				sc = serverChannel.accept();
+			}catch(ClosedChannelException x){
+				return;
+			}
+			sc.configureBlocking(false);
+			sc.socket().setTcpNoDelay(true);
+			EventLoop loop = loops[nextLoop];
+			nextLoop = (nextLoop+1) % loops.length;
+			loop.register(new Connection(loop, sc));
+		}
+	}
+
+	public void close() throws IOException {
+		serverChannel.close();
+		for(EventLoop loop : loops){
+			loop.shutdown();
+		}
+		workers.shutdown();
+	}
+
+	// An event loop owns a Selector and every SelectionKey registered with
+	// it.  Other threads never touch those directly; they queue a task with
+	// execute, which wakes the selector so the loop runs it promptly.
+	private class EventLoop extends Thread {
+		private Selector selector;
+		private ConcurrentLinkedQueue<Runnable> tasks =
+			new ConcurrentLinkedQueue<Runnable>();
+		private ByteBuffer readBuf = ByteBuffer.allocateDirect(ReadBufferSize);
+		private volatile boolean running = true;
+
+		EventLoop(Selector selector) {
+			this.selector = selector;
+		}
+
+		void execute(Runnable task) {
+			tasks.add(task);
+			if(Thread.currentThread() != this){
+				selector.wakeup();
+			}
+		}
+
+		void register(final Connection conn) {
+			execute(new Runnable() {
+				public void run() {
+					try {
+						conn.key = conn.sc.register(selector, SelectionKey.OP_READ, conn);
+					}catch(IOException x){
+						conn.close();
+					}
+				}
+			});
+		}
+
+		void shutdown() {
+			execute(new Runnable() {
+				public void run() {
+					for(SelectionKey key : selector.keys()){
+						((Connection)key.attachment()).close();
+					}
+					running = false;
+				}
+			});
+		}
+
+		public void run() {
+			try {
+				while(running) {
+					selector.select();
+					Runnable task;
+					while( (task = tasks.poll()) != null ){
+						task.run();
+					}
+					Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+					while(it.hasNext()){
+						SelectionKey key = it.next();
+						it.remove();
+						Connection conn = (Connection)key.attachment();
+						try {
+							if(key.isValid() && key.isReadable()){
+								conn.onReadable(readBuf);
+							}
+							if(key.isValid() && key.isWritable()){
+								conn.onWritable();
+							}
+						}catch(CancelledKeyException x){
+							// a worker closed the connection under us
+						}
+					}
+				}
+				selector.close();
+			}catch(IOException x){
+				x.printStackTrace();
+			}
+		}
+	}
+
+	// The state of one client connection.  The event loop fills <messages>
+	// with complete messages, each with its length prefix, and the worker
+	// running the connection reads them back through <in>, so SecureChannel
+	// sees the same byte stream it would from a socket.  What it writes to
+	// <out> is queued when it flushes (once per message) and written by the
+	// worker itself if the socket will take it, or else by the event loop.
+	private class Connection implements Runnable {
+		private EventLoop     loop;
+		private SocketChannel sc;
+		private SelectionKey  key;    // touched only by the event loop
+
+		private byte[] header = new byte[4];
+		private int    headerFill = 0;
+		private byte[] partial;       // the message being read, if any
+		private int    partialFill;
+		private int    partialLength; // its length, header included
+		private ConcurrentLinkedQueue<byte[]> messages =
+			new ConcurrentLinkedQueue<byte[]>();
+		private volatile boolean readPaused = false;
+
+		private ArrayDeque<ByteBuffer> outQueue = new ArrayDeque<ByteBuffer>();
+		private boolean                writePending = false;
+
+		private AtomicBoolean    busy = new AtomicBoolean(false);
+		private volatile boolean closed = false;
+		private SecureChannel    channel;
+		private ServerSession    session;
+		private InputStream      in = new MessageInputStream();
+		private OutputStream     out = new MessageOutputStream();
+
+		Connection(EventLoop loop, SocketChannel sc) {
+			this.loop = loop;
+			this.sc = sc;
+			session = new ServerSession(context);
+		}
+
+		void onReadable(ByteBuffer readBuf) {
+			try {
+				readBuf.clear();
+				int n = sc.read(readBuf);
+				if(n < 0){
+					close();
+					return;
+				}
+				readBuf.flip();
+				split(readBuf);
+			}catch(IOException x){
+				if(Instrumentation.TRACE){
+					Instrumentation.trace("connection closed: " + x);
+				}
+				close();
+				return;
+			}
+			if(messages.size() >= MaxQueuedMessages){
+				readPaused = true;
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+			}
+			dispatch();
+		}
+
+		private void split(ByteBuffer src) throws IOException {
+			while(src.hasRemaining()){
+				if(partial == null){
+					int n = Math.min(src.remaining(), 4-headerFill);
+					src.get(header, headerFill, n);
+					headerFill += n;
+					if(headerFill < 4){
+						return;
+					}
+					int len = ((header[0] & 0xff) << 24) | ((header[1] & 0xff) << 16)
+						| ((header[2] & 0xff) << 8) | (header[3] & 0xff);
+					if( (len < 0) || (len > MaxMessageBytes) ){
+						throw new IOException("bad message length " + len);
+					}
+					partialLength = 4+len;
+					partial = new byte[Math.min(partialLength, InitialMessageBytes)];
+					System.arraycopy(header, 0, partial, 0, 4);
+					partialFill = 4;
+					headerFill = 0;
+				}
+				if( (partialFill == partial.length) && (partialFill < partialLength) ){
+					// grow only for bytes that have actually arrived
+					partial = Arrays.copyOf(partial, 
+						(int) Math.min(partialLength, 2L*partial.length));
+				}
+				int n = Math.min(src.remaining(), partial.length-partialFill);
+				src.get(partial, partialFill, n);
+				partialFill += n;
+				if(partialFill == partialLength){
+					messages.add(partial);
+					partial = null;
+				}
+			}
+		}
+
+		private void dispatch() {
+			if( (! closed) && (! messages.isEmpty()) && busy.compareAndSet(false, true) ){
+				workers.execute(this);
+			}
+		}
+
+		// Runs on a worker: consume one message, then give the worker back
+		// (handing the connection to the pool again if more are waiting), so
+		// one busy client can't hold on to a worker.
+		public void run() {
+			try {
+				if(channel == null){
+					channel = new SecureChannel(in, out, context.prg, true,
+						context.privateKey);
+				}else{
+					session.handleMessage(channel);
+				}
+			}catch(IOException x){
+				if(Instrumentation.TRACE){
+					Instrumentation.trace("connection closed: " + x);
+				}
+				close();
+			}catch(RuntimeException x){
+				// e.g. a message that fails to decrypt
+				if(Instrumentation.TRACE){
+					Instrumentation.trace("connection closed: " + x);
+				}
+				close();
+			}
+			if(readPaused && (messages.size() < MaxQueuedMessages) && ! closed){
+				readPaused = false;
+				loop.execute(new Runnable() {
+					public void run() {
+						if(key.isValid()){
+							key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+						}
+					}
+				});
+			}
+			busy.set(false);
+			dispatch();
+		}
+
+		void send(byte[] bytes) {
+			synchronized(outQueue){
+				outQueue.add(ByteBuffer.wrap(bytes));
+				if(writePending){
+					return;    // the event loop will get to it
+				}
+				writeQueued();
+				if(! outQueue.isEmpty()){
+					writePending = true;
+					loop.execute(new Runnable() {
+						public void run() {
+							if(key.isValid()){
+								key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+							}
+						}
+					});
+				}
+			}
+		}
+
+		void onWritable() {
+			synchronized(outQueue){
+				writeQueued();
+				if(outQueue.isEmpty()){
+					writePending = false;
+					key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+				}
+			}
+		}
+
+		private void writeQueued() {
+			// Write as much of the queue as the socket will take right now.
+			try {
+				while(! outQueue.isEmpty()){
+					ByteBuffer buf = outQueue.peek();
+					sc.write(buf);
+					if(buf.hasRemaining()){
+						return;
+					}
+					outQueue.poll();
+				}
+			}catch(IOException x){
+				outQueue.clear();
+				close();
+			}
+		}
+
+		void close() {
+			closed = true;
+			try {
+				sc.close();
+			}catch(IOException x){
+				x.printStackTrace();
+			}
+		}
+
+		// Reads only ever ask for bytes of messages that have fully arrived.
+		private class MessageInputStream extends InputStream {
+			private byte[] cur;
+			private int    pos;
+
+			private boolean ready() {
+				if( (cur == null) || (pos == cur.length) ){
+					cur = messages.poll();
+					pos = 0;
+				}
+				return cur != null;
+			}
+
+			public int read() {
+				if(! ready()){
+					return -1;
+				}
+				return cur[pos++] & 0xff;
+			}
+
+			public int read(byte[] buf, int off, int len) {
+				if(len == 0){
+					return 0;
+				}
+				if(! ready()){
+					return -1;
+				}
+				int n = Math.min(len, cur.length-pos);
+				System.arraycopy(cur, pos, buf, off, n);
+				pos += n;
+				return n;
+			}
+		}
+
+		private class MessageOutputStream extends OutputStream {
+			private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+			public void write(int b) {
+				pending.write(b);
+			}
+
+			public void write(byte[] buf, int off, int len) {
+				pending.write(buf, off, len);
+			}
+
+			public void flush() throws IOException {
+				if(closed){
+					throw new IOException("connection closed");
+				}
+				if(pending.size() > 0){
+					send(pending.toByteArray());
+					pending.reset();
+				}
+			}
+		}
+	}
+
+	public static void main(String[] args) throws DataIntegrityException,
+	FileNotFoundException, IOException {
+		int port = Integer.parseInt(args[0]);
+		String blockDeviceDirectoryName = args[1];
+		String privateKeyFileName = KeyHandler.defaultPrivKeyFileName;
+		if(args.length > 2) {
+			privateKeyFileName = args[2];
+		}
+		String deviceKind = "dir";
+		if(args.length > 3) {
+			deviceKind = args[3];
+		}
+
+		RSAKey privKey = KeyHandler.readKeyFromFile(privateKeyFileName);
+
+		byte[] prgSeed = new byte[PRGen.KEY_SIZE_BYTES];
+		byte[] randBytes = TrueRandomness.get();
+		for(int i=0; i<TrueRandomness.NumBytes; ++i){
+			prgSeed[i] = randBytes[i];
+		}
+		PRGen prg = new PRGen(prgSeed);
+
+		NioNetworkServer ns = new NioNetworkServer(port, privKey, prg,
+			NetworkServer.openBlockDevice(deviceKind, blockDeviceDirectoryName));
+		ns.serverLoop();
+	}
+}
@@ -0,0 +1,261 @@
+// This class is a block cache, like CachingBlockStore, for caches so large
+// that keeping the blocks on the Java heap would make garbage collection
+// pauses too long.  Block contents live outside the heap, in an arena of
+// direct ByteBuffers that is allocated once and cut into block-sized slots.
+// Nothing is allocated per cached block: the index from block number to
+// slot is an open-addressing hash table of ints, and the per-slot state
+// (which block it holds, and its referenced and dirty bits) is kept in
+// primitive arrays.  So the heap holds a few bytes per slot, however big
+// the cache is.
+//
+// Eviction uses the CLOCK policy (see CachingBlockStore).  Writes go
+// through to the wrapped store, or in write-back mode only mark the slot
+// dirty until it is evicted or flushed.  The superblock is not cached.
+// All of that, apart from where the blocks are kept and which one is
+// evicted, is in BlockCache, as for CachingBlockStore.  (So is the reading
+// in and writing back of blocks, which goes through a block-sized array
+// for each miss, and for each dirty block evicted.)
+//
+// The arena is made of chunks of up to ChunkSize bytes, since a single
+// ByteBuffer can't be bigger than 2 GiB; a slot never straddles two
+// chunks.
+//
+// Here is the API, beyond what BlockCache provides:
+//
+// OffHeapBlockCache c = new OffHeapBlockCache(bs, capacity, writeBack);
+//   Make a cache of up to <capacity> blocks in front of <bs>.
+//
+// long n = c.offHeapBytes();
+// long n = c.heapBytes();
+//   Get the memory the cache uses outside the heap (the arena), and the
+//   memory its index and slot state use on the heap.
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+
+public class OffHeapBlockCache extends BlockCache {
+	public static final long ChunkSize = 1L << 30;
+
+	private static final int  Empty = -1;
+	private static final byte Referenced = 1;
+	private static final byte Dirty = 2;
+
+	// the arena: slot s is at byte (s % slotsPerChunk)*blockSize of chunk
+	// s / slotsPerChunk
+	private ByteBuffer[] chunks;
+	private int          slotsPerChunk;
+
+	// per slot: the block it holds (or Empty), and its flags
+	private int[]        slotBlock;
+	private byte[]       slotFlags;
+	private int          numUsed;     // slots 0..numUsed-1 have been handed out
+	private int[]        freeSlots;   // handed out, then emptied by evict()
+	private int          numFree;
+	private int          numCached;
+	private int          hand;
+
+	// the index: linear probing, keys[i] is a block number or Empty
+	private int[]        keys;
+	private int[]        slots;
+	private int          mask;
+	private int          shift;
+
+	// block-sized buffer for moving blocks out of the arena in flush()
+	private byte[]       ioBuf;
+
+	public OffHeapBlockCache(BlockStore bs, int capacity, boolean writeBack) {
+		super(bs, capacity, writeBack);
+		if( (capacity < 1) || (capacity > (1 << 28)) ){
+			throw new IllegalArgumentException("bad capacity " + capacity);
+		}
+
+		slotsPerChunk = (int) Math.min(capacity, ChunkSize / blockSize);
+		chunks = new ByteBuffer[(capacity + slotsPerChunk - 1) / slotsPerChunk];
+		for(int i=0; i<chunks.length; ++i){
+			int slotsHere = Math.min(slotsPerChunk, capacity - i*slotsPerChunk);
+			chunks[i] = ByteBuffer.allocateDirect(slotsHere*blockSize);
+		}
+		slotBlock = new int[capacity];
+		slotFlags = new byte[capacity];
+		freeSlots = new int[capacity];
+		ioBuf = new byte[blockSize];
+
+		// at most half full, so probe sequences stay short
+		int tableSize = Integer.highestOneBit(capacity) << 2;
+		keys = new int[tableSize];
+		slots = new int[tableSize];
+		mask = tableSize - 1;
+		shift = Integer.numberOfLeadingZeros(tableSize) + 1;
+		clear();
+	}
+
+	protected void clear() {
+		Arrays.fill(slotBlock, Empty);
+		Arrays.fill(slotFlags, (byte)0);
+		Arrays.fill(keys, Empty);
+		numUsed = 0;
+		numFree = 0;
+		numCached = 0;
+		hand = 0;
+	}
+
+	public long offHeapBytes() {
+		return ((long)capacity)*blockSize;
+	}
+
+	public long heapBytes() {
+		return 4L*slotBlock.length + slotFlags.length + 4L*freeSlots.length
+			+ 4L*keys.length + 4L*slots.length + ioBuf.length;
+	}
+
+	private ByteBuffer at(int slot, int offset) {
+		// The chunk holding <slot>, positioned at byte <offset> of the slot.
+		ByteBuffer chunk = chunks[slot / slotsPerChunk];
+		chunk.position((slot % slotsPerChunk)*blockSize + offset);
+		return chunk;
+	}
+
+	protected boolean copyOut(int blockNum, byte[] buf, int bufOffset,
+		int blockOffset, int nbytes) {
+
+		int i = find(blockNum);
+		if(keys[i] != blockNum){
+			return false;
+		}
+		slotFlags[slots[i]] |= Referenced;
+		at(slots[i], blockOffset).get(buf, bufOffset, nbytes);
+		return true;
+	}
+
+	protected boolean copyIn(int blockNum, byte[] buf, int bufOffset,
+		int blockOffset, int nbytes) {
+
+		int i = find(blockNum);
+		if(keys[i] != blockNum){
+			return false;
+		}
+		int slot = slots[i];
+		slotFlags[slot] |= Referenced;
+		at(slot, blockOffset).put(buf, bufOffset, nbytes);
+		if(writeBack){
+			slotFlags[slot] |= Dirty;
+		}
+		return true;
+	}
+
+	protected int size() {
+		return numCached;
+	}
+
+	protected Evicted evict() {
+		// A dirty block's contents are copied out, to be written back; a
+		// clean one's are simply dropped.
+		int slot = victim();
+		int blockNum = slotBlock[slot];
+		boolean dirty = (slotFlags[slot] & Dirty) != 0;
+		byte[] data = null;
+		if(dirty){
+			data = new byte[blockSize];
+			at(slot, 0).get(data, 0, blockSize);
+		}
+		remove(blockNum);
+		slotBlock[slot] = Empty;
+		slotFlags[slot] = 0;
+		freeSlots[numFree++] = slot;
+		--numCached;
+		return new Evicted(blockNum, dirty, data);
+	}
+
+	protected void install(int blockNum, byte[] data, boolean dirty) {
+		int slot = (numFree > 0) ? freeSlots[--numFree] : numUsed++;
+		at(slot, 0).put(data, 0, blockSize);
+		slotBlock[slot] = blockNum;
+		slotFlags[slot] = dirty ? (byte)(Referenced | Dirty) : Referenced;
+		int i = find(blockNum);
+		keys[i] = blockNum;
+		slots[i] = slot;
+		++numCached;
+	}
+
+	protected void writeBackAll() throws DataIntegrityException {
+		// Sort the dirty block numbers, then find each one's slot through the
+		// index.
+		int numDirty = 0;
+		for(int slot=0; slot<numUsed; ++slot){
+			if((slotFlags[slot] & Dirty) != 0){
+				++numDirty;
+			}
+		}
+		int[] dirty = new int[numDirty];
+		numDirty = 0;
+		for(int slot=0; slot<numUsed; ++slot){
+			if((slotFlags[slot] & Dirty) != 0){
+				dirty[numDirty++] = slotBlock[slot];
+			}
+		}
+		Arrays.sort(dirty);
+		for(int blockNum : dirty){
+			writeOut(slots[find(blockNum)]);
+		}
+	}
+
+	private void writeOut(int slot) throws DataIntegrityException {
+		at(slot, 0).get(ioBuf, 0, blockSize);
+		writeOut(slotBlock[slot], ioBuf);
+		slotFlags[slot] &= ~Dirty;
+	}
+
+	private int victim() {
+		// CLOCK: sweep, clearing referenced bits, to the first slot in use
+		// that hasn't been used since the hand last passed it.
+		while(true){
+			int slot = hand;
+			hand = (hand+1) % numUsed;
+			if(slotBlock[slot] == Empty){
+				continue;
+			}
+			if((slotFlags[slot] & Referenced) == 0){
+				return slot;
+			}
+			slotFlags[slot] &= ~Referenced;
+		}
+	}
+
+	private int home(int blockNum) {
+		// Fibonacci hashing: the top bits of the product
+		return (blockNum * 0x9E3779B9) >>> shift;
+	}
+
+	private int find(int blockNum) {
+		// The index position holding <blockNum>, or else the Empty position
+		// where it would go.
+		int i = home(blockNum);
+		while(keys[i] != Empty && keys[i] != blockNum){
+			i = (i+1) & mask;
+		}
+		return i;
+	}
+
+	private void remove(int blockNum) {
+		// Take <blockNum> out of the index.  Rather than leave a tombstone,
+		// move later entries of the probe run back into the gap whenever
+		// their home position allows it.
+		int gap = find(blockNum);
+		keys[gap] = Empty;
+		int i = (gap+1) & mask;
+		while(keys[i] != Empty){
+			int h = home(keys[i]);
+			// can the entry at i move to gap?  only if its home is not in
+			// the cyclic range (gap, i]
+			boolean movable = (gap <= i) ? (h <= gap || h > i) : (h <= gap && h > i);
+			if(movable){
+				keys[gap] = keys[i];
+				slots[gap] = slots[i];
+				keys[i] = Empty;
+				gap = i;
+			}
+			i = (i+1) & mask;
+		}
+	}
+}
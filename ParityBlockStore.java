@@ -44,7 +44,7 @@ public class ParityBlockStore implements BlockStore {
 
 		// check for out-of-bounds access
 		// other cases will be caught by the wrapped store
-		if(bufOffset+nbytes > blockSize()){
+		if(blockOffset+nbytes > blockSize()){
 			throw new ArrayIndexOutOfBoundsException();
 		}
 
@@ -62,7 +62,7 @@ public class ParityBlockStore implements BlockStore {
 
 		// check for out-of-bounds access
 		// other cases will be caught by the wrapped store
-		if(bufOffset+nbytes > blockSize()){
+		if(blockOffset+nbytes > blockSize()){
 			throw new ArrayIndexOutOfBoundsException();
 		}
 
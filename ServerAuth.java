@@ -5,6 +5,7 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.Vector;
 import java.util.Random;
+import java.util.concurrent.locks.ReentrantLock;
 
 import java.io.IOException;
 
@@ -17,6 +18,7 @@ public class ServerAuth {
   private final int             USER_INFO_SIZE_BYTES = 80;
   private final int             HASH_SIZE_BYTES = 32;
   private final int             SALT_SIZE_BYTES = 16;
+  private final ReentrantLock   createLock = new ReentrantLock();
   // CREATE, MODIFY, OR DELETE FIELDS AS NEEDED
 
   public ServerAuth(BlockStore myBlockStore, BlockStoreMultiplexor bsm) {
@@ -39,7 +41,6 @@ public class ServerAuth {
     byte[] buf = new byte[USER_INFO_SIZE_BYTES*numUsers];
 
     // hash(un):hash(salt, pw):salt
-    System.out.println("num of users: "+ numUsers);
     byte[][][] userInfo = new byte[numUsers][3][];
     for (int i = 0; i < numUsers; i++) {
       int offset = i*USER_INFO_SIZE_BYTES;
@@ -54,6 +55,19 @@ public class ServerAuth {
   }
 
   public BlockStore createUser(String username, String password) 
+  throws DataIntegrityException {
+    // The new user's slot is picked from numSubStores(), so two accounts
+    // created at once would otherwise land in the same slot.  A
+    // ReentrantLock, not synchronized, since this does I/O.
+    createLock.lock();
+    try {
+      return createUserLocked(username, password);
+    } finally {
+      createLock.unlock();
+    }
+  }
+
+  private BlockStore createUserLocked(String username, String password) 
   throws DataIntegrityException {
     // If there is already a user with the same name, return null.
     // Otherwise, create an account for the new user, and return a
@@ -115,23 +129,27 @@ public class ServerAuth {
 
     // check for existing
     for (int i = 0; i < userInfo.length; i++) {
-      System.out.println("userInfo: " + javax.xml.bind.DatatypeConverter.printHexBinary(userInfo[i][0]));
-      System.out.println("usernameHash: " + javax.xml.bind.DatatypeConverter.printHexBinary(usernameHash));
       if (Arrays.equals(userInfo[i][0], usernameHash)) {
         byte[] salt = userInfo[i][2];
         hasher.eval(new byte[0]);
         hasher.update(salt);
         byte[] hashedPW = hasher.eval(password.getBytes());   
         if (!Arrays.equals(userInfo[i][1], hashedPW)) {
-          System.out.println("wrong pw!");
+          if (Instrumentation.TRACE) {
+            Instrumentation.trace("auth: wrong password for user " + (i+1));
+          }
           return null;
         } 
         int multiInd = i+1;
-        System.out.println("multi_ind: " + multiInd);
+        if (Instrumentation.TRACE) {
+          Instrumentation.trace("auth: authenticated user " + multiInd);
+        }
         return multiplexor.getSubStore(multiInd);
       }
     }
-    System.out.println("not found");
+    if (Instrumentation.TRACE) {
+      Instrumentation.trace("auth: no such user among " + userInfo.length);
+    }
     return null;
   }
 }
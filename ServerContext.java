@@ -5,24 +5,49 @@
 // each ServerThread will keep track of whatever state it needs to serve the
 // one client that it is devoted to.
 //
+// Tagged commands carry a request ID: CommandTaggedWrite is followed by the
+// ID, then the fields of CommandWrite, and CommandTaggedRead by the ID, then
+// the fields of CommandRead.  The response is the ID, then the response to
+// the untagged command.  Responses to tagged commands may come back in any
+// order.  A tagged command with a negative length or offset, or one that
+// fails for any reason other than authentication or integrity, is answered
+// with BadRequestCode.
+//
+// The response to CommandStats is a return code, then, on success, the
+// statistics.  They cover every user's operations, so a client that has not
+// authenticated gets UnauthorizedCode.
+//
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
 
 public class ServerContext {
 	public static final int SuccessCode = 0;
 	public static final int UnauthorizedCode = 1;
 	public static final int DataIntegrityFailureCode = 2;
+	public static final int BadRequestCode = 3;
 
 	public static final byte CommandPing = 0;
 	public static final byte CommandAuthenticate = 1;
 	public static final byte CommandCreateAccount = 2;
 	public static final byte CommandWrite = 3;
 	public static final byte CommandRead = 4;
+	public static final byte CommandStats = 5;
+	public static final byte CommandTaggedWrite = 6;
+	public static final byte CommandTaggedRead = 7;
 
 	public PRGen 		  prg;
 	public ServerAuth auth;
 	public RSAKey     privateKey;
 	public BlockStoreMultiplexor mux;
 
-	public ServerContext(BlockDevice device, RSAKey privateKey, PRGen prg) 
+	// runs tagged requests, for every client; see ServerSession
+	public ExecutorService requestPool;
+
+	public ServerContext(BlockStore device, RSAKey privateKey, PRGen prg) 
 	throws DataIntegrityException {
 		this.prg = prg;
 		this.privateKey = privateKey;
@@ -36,5 +61,15 @@ public class ServerContext {
 			bs0 = mux.getSubStore(0);
 		}
 		auth = new ServerAuth(bs0, mux);
+
+		final AtomicInteger count = new AtomicInteger();
+		requestPool = Executors.newFixedThreadPool(
+			2*Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "request-" + count.getAndIncrement());
+					t.setDaemon(true);
+					return t;
+				}
+			});
 	}
 }
\ No newline at end of file
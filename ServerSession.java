@@ -0,0 +1,373 @@
+// A ServerSession holds the server-side state of one client connection
+// (which user, if any, the client has authenticated as) and executes the
+// client's commands, one message at a time.  Both server engines use it:
+// serve calls handleMessage in a loop, on a ServerThread or on a virtual
+// thread of NetworkServer's, while NioNetworkServer calls it from a worker
+// pool each time a complete message has arrived.
+//
+// Tagged reads and writes (CommandTaggedRead, CommandTaggedWrite) carry a
+// request ID, which the response starts with, so a client may have many of
+// them outstanding.  handleMessage only queues such a request and returns;
+// it runs on the server's request pool (ServerContext.requestPool) and its
+// response goes out whenever it is done, possibly ahead of requests that
+// arrived earlier.  Requests whose byte ranges overlap, where at least one
+// of them is a write, still run in the order they arrived.  Any other
+// command first waits for every tagged request in flight, so the lock-step
+// commands behave exactly as before.  At most MaxInFlight tagged requests
+// are in flight at once; past that, handleMessage waits for one to finish
+// before reading on.
+//
+// Here is the API:
+//
+// ServerSession session = new ServerSession(context);
+//   Make a session for a new client of the server described by <context>.
+//
+// session.handleMessage(channel);
+//   Receive one command from <channel>, execute it, and send back the
+//   response.  Throws IOException (EOFException at end of stream) if the
+//   connection fails.
+//
+// ServerSession.serve(context, inStream, outStream);
+//   Serve one client on the calling thread until the connection ends:
+//   set up the secure channel over the streams, then handle the client's
+//   messages in a new session.
+//
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.ReentrantLock;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+
+public class ServerSession {
+	public static final int MaxInFlight = 64;
+
+	private ServerContext context;
+	private ArrayStore    arrayStore;
+
+	// Responses to tagged requests are sent from the request pool, so every
+	// send goes through send(), which keeps them from interleaving.
+	private SecureChannel channel;
+	private ReentrantLock sendLock = new ReentrantLock();
+
+	// the tagged requests that have not finished yet, in order of arrival
+	private List<Tagged> inFlight = new ArrayList<Tagged>();
+	private Semaphore    inFlightSlots = new Semaphore(MaxInFlight);
+
+	private static class Tagged {
+		final int     requestId;
+		final boolean write;
+		final int     storageOffset;
+		final int     nbytes;
+		final CompletableFuture<Void> done = new CompletableFuture<Void>();
+
+		Tagged(int requestId, boolean write, int storageOffset, int nbytes) {
+			this.requestId = requestId;
+			this.write = write;
+			this.storageOffset = storageOffset;
+			this.nbytes = nbytes;
+		}
+
+		boolean conflictsWith(Tagged other) {
+			// at least one writes, and the byte ranges overlap
+			return (write || other.write)
+				&& (storageOffset < other.storageOffset + other.nbytes)
+				&& (other.storageOffset < storageOffset + nbytes);
+		}
+	}
+
+	public ServerSession(ServerContext ctxt) {
+		context = ctxt;
+	}
+
+	public static void serve(ServerContext ctxt, InputStream inStream, 
+		OutputStream outStream) {
+
+		try {
+			SecureChannel channel = new SecureChannel(inStream, outStream, 
+				ctxt.prg, true, ctxt.privateKey);
+
+			ServerSession session = new ServerSession(ctxt);
+			while(true) {
+				session.handleMessage(channel);
+			}
+		}catch(EOFException x) {
+			return;
+		}catch(IOException x) {
+			if(Instrumentation.TRACE){
+				Instrumentation.trace("connection closed: " + x);
+			}
+			return;
+		}
+	}
+
+	public void handleMessage(SecureChannel channel) throws IOException {
+		this.channel = channel;
+		DataInputBuffer dib = new DataInputBuffer(channel);
+		byte cmd = dib.readByte();
+		long start = Instrumentation.start();
+		if( (cmd != ServerContext.CommandTaggedRead)
+			&& (cmd != ServerContext.CommandTaggedWrite) ){
+			awaitInFlight();
+		}
+		switch(cmd) {
+		case ServerContext.CommandPing:
+			int nbytes = dib.readInt();
+			byte[] buf = new byte[nbytes];
+			dib.readBytes(buf, 0, nbytes);
+			DataOutputBuffer dob = new DataOutputBuffer(channel, 4+nbytes);
+			dob.writeInt(nbytes);
+			dob.writeBytes(buf, 0, nbytes);
+			send(dob);
+			Instrumentation.record(Instrumentation.OpPing, start, true);
+			break;
+		case ServerContext.CommandAuthenticate:
+			String username = dib.readString();
+			String password = dib.readString();
+			try {
+				BlockStore bs = context.auth.auth(username, password);
+				if(bs==null) {
+					// authentication failed
+					arrayStore = null;
+				}else{
+					arrayStore = new ArrayStore(bs);
+				}
+			} catch(DataIntegrityException x) {
+				if(Instrumentation.TRACE){
+					Instrumentation.trace("authenticate: " + x);
+				}
+				arrayStore = null;
+			}
+			dob = new DataOutputBuffer(channel);
+			dob.writeBoolean(arrayStore != null);
+			send(dob);
+			Instrumentation.record(Instrumentation.OpAuthenticate, start,
+				arrayStore != null);
+			break;
+		case ServerContext.CommandCreateAccount:
+			username = dib.readString();
+			password = dib.readString();
+			try {
+				BlockStore bs = context.auth.createUser(username, password);
+				if(bs==null){
+					arrayStore = null;
+				}else{
+					arrayStore = new ArrayStore(bs);
+				}
+			} catch(DataIntegrityException x) {
+				if(Instrumentation.TRACE){
+					Instrumentation.trace("create account: " + x);
+				}
+				arrayStore = null;
+			}
+			dob = new DataOutputBuffer(channel);
+			dob.writeBoolean(arrayStore != null);
+			send(dob);
+			Instrumentation.record(Instrumentation.OpCreateAccount, start,
+				arrayStore != null);
+			break;
+		case ServerContext.CommandWrite:
+			nbytes = dib.readInt();
+			int storageOffset = dib.readInt();
+			buf = new byte[nbytes];
+			dib.readBytes(buf, 0, nbytes);
+			int retCode = ServerContext.SuccessCode;
+			if(arrayStore == null){
+				retCode = ServerContext.UnauthorizedCode;
+			}else{
+				try {
+					arrayStore.write(buf, 0, storageOffset, nbytes);
+				}catch(DataIntegrityException x){
+					retCode = ServerContext.DataIntegrityFailureCode;
+				}
+			}
+			dob = new DataOutputBuffer(channel);
+			dob.writeInt(retCode);
+			send(dob);
+			Instrumentation.record(Instrumentation.OpWrite, start,
+				retCode == ServerContext.SuccessCode);
+			break;
+		case ServerContext.CommandRead:
+			nbytes = dib.readInt();
+			storageOffset = dib.readInt();
+			buf = new byte[nbytes];
+			retCode = ServerContext.SuccessCode;
+			if(arrayStore == null){
+				retCode = ServerContext.UnauthorizedCode;
+			}else{
+				try {
+					arrayStore.read(buf, 0, storageOffset, nbytes);
+				}catch(DataIntegrityException x){
+					retCode = ServerContext.DataIntegrityFailureCode;
+				}
+			}
+			dob = new DataOutputBuffer(channel, 
+				(retCode==ServerContext.SuccessCode) ? 4+nbytes : 4);
+			dob.writeInt(retCode);
+			if(retCode==ServerContext.SuccessCode){
+				dob.writeBytes(buf, 0, nbytes);
+			}
+			send(dob);
+			Instrumentation.record(Instrumentation.OpRead, start,
+				retCode == ServerContext.SuccessCode);
+			break;
+		case ServerContext.CommandStats:
+			// the statistics cover every user's operations, so only a
+			// client that has logged in gets them
+			dob = new DataOutputBuffer(channel);
+			if(arrayStore == null){
+				dob.writeInt(ServerContext.UnauthorizedCode);
+			}else{
+				Instrumentation.Stats[] stats = Instrumentation.snapshot();
+				dob.writeInt(ServerContext.SuccessCode);
+				dob.writeInt(stats.length);
+				for(Instrumentation.Stats st : stats){
+					st.writeTo(dob);
+				}
+			}
+			send(dob);
+			Instrumentation.record(Instrumentation.OpStats, start, arrayStore != null);
+			break;
+		case ServerContext.CommandTaggedWrite:
+			int requestId = dib.readInt();
+			nbytes = dib.readInt();
+			storageOffset = dib.readInt();
+			if( (nbytes < 0) || (storageOffset < 0) ){
+				rejectTagged(requestId, true, start);
+				break;
+			}
+			buf = new byte[nbytes];
+			dib.readBytes(buf, 0, nbytes);
+			startTagged(new Tagged(requestId, true, storageOffset, nbytes), buf, start);
+			break;
+		case ServerContext.CommandTaggedRead:
+			requestId = dib.readInt();
+			nbytes = dib.readInt();
+			storageOffset = dib.readInt();
+			if( (nbytes < 0) || (storageOffset < 0) ){
+				rejectTagged(requestId, false, start);
+				break;
+			}
+			startTagged(new Tagged(requestId, false, storageOffset, nbytes),
+				new byte[nbytes], start);
+			break;
+		default:
+			if(Instrumentation.TRACE){
+				Instrumentation.trace("invalid command " + cmd);
+			}
+		}
+	}
+
+	private void send(DataOutputBuffer dob) throws IOException {
+		sendLock.lock();
+		try {
+			dob.send();
+		} finally {
+			sendLock.unlock();
+		}
+	}
+
+	private void awaitInFlight() {
+		List<Tagged> pending;
+		synchronized(inFlight){
+			pending = new ArrayList<Tagged>(inFlight);
+		}
+		for(Tagged t : pending){
+			t.done.join();
+		}
+	}
+
+	private void startTagged(final Tagged req, final byte[] buf, 
+		final long start) {
+
+		// Queue <req> to run once every earlier request it conflicts with
+		// has finished.  The user it runs as is fixed now, at arrival.
+		inFlightSlots.acquireUninterruptibly();
+		final ArrayStore as = arrayStore;
+		List<CompletableFuture<Void>> deps = new ArrayList<CompletableFuture<Void>>();
+		synchronized(inFlight){
+			for(Tagged earlier : inFlight){
+				if(req.conflictsWith(earlier)){
+					deps.add(earlier.done);
+				}
+			}
+			inFlight.add(req);
+		}
+		CompletableFuture.allOf(deps.toArray(new CompletableFuture<?>[deps.size()]))
+			.thenRunAsync(new Runnable() {
+				public void run() {
+					try {
+						runTagged(req, as, buf, start);
+					} finally {
+						synchronized(inFlight){
+							inFlight.remove(req);
+						}
+						inFlightSlots.release();
+						req.done.complete(null);
+					}
+				}
+			}, context.requestPool);
+	}
+
+	private void rejectTagged(int requestId, boolean write, long start) 
+		throws IOException {
+
+		// Answer a tagged request that can't be run, without queuing it.
+		DataOutputBuffer dob = new DataOutputBuffer(channel, 8);
+		dob.writeInt(requestId);
+		dob.writeInt(ServerContext.BadRequestCode);
+		send(dob);
+		Instrumentation.record(write ? Instrumentation.OpWrite : Instrumentation.OpRead,
+			start, false);
+	}
+
+	private void runTagged(Tagged req, ArrayStore as, byte[] buf, long start) {
+		// Nothing may escape from here: on the request pool an exception
+		// would be lost, and the client would wait for its response forever.
+		int retCode = ServerContext.SuccessCode;
+		if(as == null){
+			retCode = ServerContext.UnauthorizedCode;
+		}else{
+			try {
+				if(req.write){
+					as.write(buf, 0, req.storageOffset, req.nbytes);
+				}else{
+					as.read(buf, 0, req.storageOffset, req.nbytes);
+				}
+			}catch(DataIntegrityException x){
+				retCode = ServerContext.DataIntegrityFailureCode;
+			}catch(RuntimeException x){
+				// e.g. a range the store can't hold
+				if(Instrumentation.TRACE){
+					Instrumentation.trace("tagged request: " + x);
+				}
+				retCode = ServerContext.BadRequestCode;
+			}
+		}
+		try {
+			boolean withData = (! req.write) && (retCode == ServerContext.SuccessCode);
+			DataOutputBuffer dob = new DataOutputBuffer(channel, 
+				withData ? 8+req.nbytes : 8);
+			dob.writeInt(req.requestId);
+			dob.writeInt(retCode);
+			if(withData){
+				dob.writeBytes(buf, 0, req.nbytes);
+			}
+			send(dob);
+		}catch(IOException x){
+			// the connection is gone; its reader will find out too
+			if(Instrumentation.TRACE){
+				Instrumentation.trace("tagged response: " + x);
+			}
+		}
+		Instrumentation.record(req.write ? Instrumentation.OpWrite : Instrumentation.OpRead,
+			start, retCode == ServerContext.SuccessCode);
+	}
+}
@@ -0,0 +1,244 @@
+// Measure what a server pays for each connected client, and how quickly it
+// answers when many clients are connected.  Invoke as
+//     java SessionLoadBenchmark [numSessions [engine [numRequests [scratchFile]]]]
+// numSessions defaults to 1000.  engine is one of
+//     platform -- NetworkServer, a platform thread per client (the default)
+//     virtual  -- NetworkServer, a virtual thread per client
+//     nio      -- NioNetworkServer
+// numRequests defaults to 10000, and scratchFile to
+// "benchDevices/sessions.img".  The server's keys come from the default key
+// files (see KeyHandler).
+//
+// The server runs in this process, on a free port.  Every session connects
+// over loopback, does the key exchange and logs in to one shared account,
+// and then all of them sit idle while memory is measured: the growth of the
+// heap in use (after a GC) and of the process's resident set (from
+// /proc/self/status, so Linux only), divided by numSessions, along with the
+// number of live platform threads.  Both ends of every connection live in
+// this process, so the figures include the client side too; compare engines
+// at the same numSessions.  Then a few client threads send numRequests
+// requests (alternating 64-byte pings and 4 KiB reads) to sessions picked
+// at random, timing each one from send to response, and the report gives
+// the throughput and the median and 99th percentile latency.
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+
+import java.io.IOException;
+
+
+public class SessionLoadBenchmark {
+	private static final int NumClientThreads = 8;
+	private static final int ReadSize = 4096;
+	private static final int DataSize = 1 << 20;
+
+	public static void main(String[] args) throws Exception {
+		int numSessions = 1000;
+		String engine = "platform";
+		int numRequests = 10000;
+		String path = "benchDevices/sessions.img";
+		if(args.length > 0){
+			numSessions = Integer.parseInt(args[0]);
+		}
+		if(args.length > 1){
+			engine = args[1];
+		}
+		if(args.length > 2){
+			numRequests = Integer.parseInt(args[2]);
+		}
+		if(args.length > 3){
+			path = args[3];
+		}
+
+		RSAKey privKey = KeyHandler.readKeyFromFile(KeyHandler.defaultPrivKeyFileName);
+		BlockStore device = new FileBlockDevice(path);
+		device.format();
+		int port = startServer(engine, device, privKey);
+
+		// one account, with data to read, shared by every session
+		final StorageClientSession[] sessions = new StorageClientSession[numSessions];
+		sessions[0] = connect(port, prg(0));
+		sessions[0].createAccount("bench", "bench");
+		sessions[0].authenticate("bench", "bench");
+		byte[] data = new byte[DataSize];
+		new Random(1).nextBytes(data);
+		sessions[0].write(DataSize, 0, 0, data);
+
+		long heapBefore = usedHeap();
+		long rssBefore = residentSetSize();
+		long start = System.nanoTime();
+		final int port0 = port;
+		final int n = numSessions;
+		runOnClientThreads(new ClientTask() {
+			public void run(int t) throws Exception {
+				PRGen prg = prg(t+1);
+				for(int i=t+1; i<n; i+=NumClientThreads){
+					sessions[i] = connect(port0, prg);
+					sessions[i].authenticate("bench", "bench");
+				}
+			}
+		});
+		double connectSecs = (System.nanoTime() - start) / 1e9;
+		long heapPerSession = (usedHeap() - heapBefore) / numSessions;
+		long rss = residentSetSize();
+		int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+
+		final long[][] latencies = new long[NumClientThreads][];
+		final int requestsPerThread = numRequests / NumClientThreads;
+		start = System.nanoTime();
+		runOnClientThreads(new ClientTask() {
+			public void run(int t) throws Exception {
+				// thread t only uses the sessions numbered t mod NumClientThreads
+				Random rand = new Random(t);
+				byte[] buf = new byte[ReadSize];
+				long[] lat = new long[requestsPerThread];
+				for(int r=0; r<requestsPerThread; ++r){
+					int i = t + NumClientThreads*rand.nextInt((n-1-t)/NumClientThreads + 1);
+					long begin = System.nanoTime();
+					if(r % 2 == 0){
+						sessions[i].testPing(64, 0, buf);
+					}else{
+						sessions[i].read(ReadSize, rand.nextInt(DataSize-ReadSize), 0, buf);
+					}
+					lat[r] = System.nanoTime() - begin;
+				}
+				latencies[t] = lat;
+			}
+		});
+		double runSecs = (System.nanoTime() - start) / 1e9;
+
+		long[] all = new long[requestsPerThread*NumClientThreads];
+		for(int t=0; t<NumClientThreads; ++t){
+			System.arraycopy(latencies[t], 0, all, t*requestsPerThread, requestsPerThread);
+		}
+		Arrays.sort(all);
+
+		System.out.printf("engine %s, %d sessions (connected in %.1f s)\n",
+			engine, numSessions, connectSecs);
+		System.out.printf("  heap per session   %8d bytes\n", heapPerSession);
+		if(rss >= 0 && rssBefore >= 0){
+			System.out.printf("  RSS per session    %8d bytes\n", (rss - rssBefore) / numSessions);
+		}
+		System.out.printf("  platform threads   %8d\n", threads);
+		System.out.printf("  %d requests: %.0f/s, p50 %.0f us, p99 %.0f us\n",
+			all.length, all.length / runSecs, all[all.length/2] / 1e3,
+			all[(int)(all.length*0.99)] / 1e3);
+
+		// the client and server threads would keep the JVM alive
+		System.exit(0);
+	}
+
+	private static int startServer(String engine, BlockStore device,
+		RSAKey privKey) throws Exception {
+
+		if(engine.equals("nio")){
+			final NioNetworkServer ns = new NioNetworkServer(0, privKey, prg(-1), device);
+			startDaemon(new Runnable() {
+				public void run() {
+					try {
+						ns.serverLoop();
+					}catch(IOException x){
+						x.printStackTrace();
+					}
+				}
+			});
+			return ns.getLocalPort();
+		}
+		if(! engine.equals("platform") && ! engine.equals("virtual")){
+			throw new IllegalArgumentException("unknown engine: " + engine);
+		}
+		final NetworkServer ns = new NetworkServer(0, privKey, prg(-1), device,
+			engine.equals("virtual"));
+		if(engine.equals("virtual") && ! ns.usesVirtualThreads()){
+			System.out.println("no virtual threads in this JVM; "
+				+ "measuring platform threads");
+		}
+		startDaemon(new Runnable() {
+			public void run() {
+				try {
+					ns.serverLoop();
+				}catch(IOException x){
+					x.printStackTrace();
+				}
+			}
+		});
+		return ns.getLocalPort();
+	}
+
+	private static void startDaemon(Runnable r) {
+		Thread t = new Thread(r);
+		t.setDaemon(true);
+		t.start();
+	}
+
+	private static StorageClientSession connect(int port, PRGen prg)
+	throws IOException {
+		return new StorageClientSession("localhost", port,
+			KeyHandler.defaultPubKeyFileName, prg);
+	}
+
+	private static PRGen prg(int seed) {
+		byte[] prgSeed = new byte[PRGen.KEY_SIZE_BYTES];
+		prgSeed[0] = (byte)seed;
+		prgSeed[1] = (byte)(seed >> 8);
+		return new PRGen(prgSeed);
+	}
+
+	private interface ClientTask {
+		void run(int thread) throws Exception;
+	}
+
+	private static void runOnClientThreads(final ClientTask task)
+	throws InterruptedException {
+		Thread[] threads = new Thread[NumClientThreads];
+		for(int t=0; t<NumClientThreads; ++t){
+			final int id = t;
+			threads[t] = new Thread() {
+				public void run() {
+					try {
+						task.run(id);
+					}catch(Exception x){
+						x.printStackTrace();
+						System.exit(1);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for(Thread t : threads){
+			t.join();
+		}
+	}
+
+	private static long usedHeap() {
+		Runtime rt = Runtime.getRuntime();
+		for(int i=0; i<3; ++i){
+			System.gc();
+		}
+		return rt.totalMemory() - rt.freeMemory();
+	}
+
+	private static long residentSetSize() {
+		// VmRSS from /proc/self/status, in bytes; -1 if it can't be read
+		try {
+			BufferedReader r = new BufferedReader(new FileReader("/proc/self/status"));
+			try {
+				String line;
+				while( (line = r.readLine()) != null ){
+					if(line.startsWith("VmRSS:")){
+						String[] f = line.trim().split("\\s+");
+						return Long.parseLong(f[1]) * 1024;
+					}
+				}
+			} finally {
+				r.close();
+			}
+		}catch(IOException x){
+			// not Linux
+		}
+		return -1;
+	}
+}
@@ -1,7 +1,26 @@
 
+// A StorageClientSession is the client's end of a connection to the
+// server.  The lock-step methods (read, write, and the rest) each send one
+// command and wait for its response.  readAsync and writeAsync instead send a
+// tagged command (see ServerContext) and return a CompletableFuture right
+// away, so many of them can be in flight on one connection and a high
+// latency link costs one round trip per batch, not per operation.  Their
+// responses are collected by a reader thread, which the session starts the
+// first time it needs one; futures complete on that thread, so actions
+// chained on them should not block.  A lock-step call first waits for
+// every tagged request in flight to finish.
+//
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import java.io.IOException;
 import java.net.UnknownHostException;
@@ -11,14 +30,45 @@ public class StorageClientSession {
 	private SecureChannel channel;
 	private boolean       authenticated = false;
 
+	// Every send happens under <lock>, as does the whole round trip of a
+	// lock-step call.  <pending> holds the tagged requests awaiting a
+	// response; the reader thread only reads from the channel while it is
+	// not empty, and a lock-step call only starts once it is empty.
+	private ReentrantLock         lock = new ReentrantLock();
+	private Condition             idle = lock.newCondition();
+	private Condition             hasPending = lock.newCondition();
+	private Map<Integer, Pending> pending = new HashMap<Integer, Pending>();
+	private int                   nextRequestId = 0;
+	private Thread                reader;
+	private IOException           readerFailure;
+
+	private static class Pending {
+		final CompletableFuture<Void> future = new CompletableFuture<Void>();
+		final boolean write;
+		final byte[]  buf;
+		final int     bufOffset;
+		final int     nbytes;
+
+		Pending(boolean write, byte[] buf, int bufOffset, int nbytes) {
+			this.write = write;
+			this.buf = buf;
+			this.bufOffset = bufOffset;
+			this.nbytes = nbytes;
+		}
+	}
+
 	public StorageClientSession(String serverHostname, int serverPort, 
 		String serverPublicKeyFilename, PRGen prg) 
 	throws UnknownHostException, IOException {
 		// This constructor connects to a server across the network.
 		Socket sock = new Socket(serverHostname, serverPort);
 		RSAKey serverKey = KeyHandler.readKeyFromFile(serverPublicKeyFilename);
-		channel = new SecureChannel(sock.getInputStream(), 
-			sock.getOutputStream(), prg, false, serverKey);
+		// The channel moves a byte at a time and flushes after each message,
+		// so buffer the socket rather than make a system call per byte.
+		channel = new SecureChannel(
+			new BufferedInputStream(sock.getInputStream()), 
+			new BufferedOutputStream(sock.getOutputStream()), 
+			prg, false, serverKey);
 	}
 
 	public StorageClientSession(InputStream inStr, OutputStream outStr,
@@ -32,19 +82,51 @@ public class StorageClientSession {
 	public void testPing(int nbytes, int offset, byte[] buf) throws IOException {
 		// send bytes to server, see what server sends back
 		// assertion will fail if server sends back something different
-		DataOutputBuffer dob = new DataOutputBuffer(channel);
-		dob.writeByte(ServerContext.CommandPing);
-		dob.writeInt(nbytes);
-		for(int i=0; i<nbytes; ++i){
-			dob.writeByte(buf[i+offset]);
+		beginLockStep();
+		try {
+			DataOutputBuffer dob = new DataOutputBuffer(channel, 5+nbytes);
+			dob.writeByte(ServerContext.CommandPing);
+			dob.writeInt(nbytes);
+			dob.writeBytes(buf, offset, nbytes);
+			dob.send();
+			DataInputBuffer dib = new DataInputBuffer(channel);
+			int nbytesRecvd = dib.readInt();
+			assert nbytesRecvd == nbytes;
+			byte[] recvd = new byte[nbytes];
+			dib.readBytes(recvd, 0, nbytes);
+			for(int i=0; i<nbytes; ++i){
+				assert recvd[i] == buf[i+offset];
+			}
+		} finally {
+			lock.unlock();
 		}
-		dob.send();
-		DataInputBuffer dib = new DataInputBuffer(channel);
-		int nbytesRecvd = dib.readInt();
-		assert nbytesRecvd == nbytes;
-		for(int i=0; i<nbytes; ++i){
-			byte recvd = dib.readByte();
-			assert recvd == buf[i+offset];
+	}
+
+	public Instrumentation.Stats[] getStats() 
+		throws AccessDeniedException, IOException {
+		// Get the server's operation counters and latency histograms.  If
+		// this client is not authenticated, throw AccessDeniedException.
+		beginLockStep();
+		try {
+			if( ! authenticated){
+				throw new AccessDeniedException();
+			}
+
+			DataOutputBuffer dob = new DataOutputBuffer(channel);
+			dob.writeByte(ServerContext.CommandStats);
+			dob.send();
+
+			DataInputBuffer dib = new DataInputBuffer(channel);
+			if(dib.readInt() == ServerContext.UnauthorizedCode){
+				throw new AccessDeniedException();
+			}
+			Instrumentation.Stats[] stats = new Instrumentation.Stats[dib.readInt()];
+			for(int i=0; i<stats.length; ++i){
+				stats[i] = Instrumentation.Stats.readFrom(dib);
+			}
+			return stats;
+		} finally {
+			lock.unlock();
 		}
 	}
 
@@ -53,19 +135,24 @@ public class StorageClientSession {
 		// Authenticate as the user <name>, with password <password>.
 		// If no account exists for <name>, or if <password> is not the correct 
 		// password for <name>, then throw AccessDeniedException.
-		DataOutputBuffer dob = new DataOutputBuffer(channel);
-		dob.writeByte(ServerContext.CommandAuthenticate);
-		dob.writeString(name);
-		dob.writeString(password);
-		dob.send();
-
-		DataInputBuffer dib = new DataInputBuffer(channel);
-		boolean success = dib.readBoolean();
-		if(success){
-			authenticated = true;
-			authenticated = true;
-		}else{
-			throw new AccessDeniedException();
+		beginLockStep();
+		try {
+			DataOutputBuffer dob = new DataOutputBuffer(channel);
+			dob.writeByte(ServerContext.CommandAuthenticate);
+			dob.writeString(name);
+			dob.writeString(password);
+			dob.send();
+
+			DataInputBuffer dib = new DataInputBuffer(channel);
+			boolean success = dib.readBoolean();
+			if(success){
+				authenticated = true;
+				authenticated = true;
+			}else{
+				throw new AccessDeniedException();
+			}
+		} finally {
+			lock.unlock();
 		}
 	}
 
@@ -75,43 +162,51 @@ public class StorageClientSession {
 		// Otherwise, if an account already exists for <name>, 
 		// throw AccessDeniedException.
 		// Otherwise, create an account for <name> with password <password>.
-		if(authenticated){
-			throw new AccessDeniedException();
+		beginLockStep();
+		try {
+			if(authenticated){
+				throw new AccessDeniedException();
+			}
+			DataOutputBuffer dob = new DataOutputBuffer(channel);
+			dob.writeByte(ServerContext.CommandCreateAccount);
+			dob.writeString(name);
+			dob.writeString(password);
+			dob.send();
+
+			DataInputBuffer dib = new DataInputBuffer(channel);
+			boolean success = dib.readBoolean();
+			if(! success)    throw new AccessDeniedException();
+		} finally {
+			lock.unlock();
 		}
-		DataOutputBuffer dob = new DataOutputBuffer(channel);
-		dob.writeByte(ServerContext.CommandCreateAccount);
-		dob.writeString(name);
-		dob.writeString(password);
-		dob.send();
-
-		DataInputBuffer dib = new DataInputBuffer(channel);
-		boolean success = dib.readBoolean();
-		if(! success)    throw new AccessDeniedException();
 	}
 
 	public void write(int nbytes, int storageOffset, int bufOffset, byte[] buf) 
 		throws AccessDeniedException, IOException {
 		// If this client is not authenticated, throw AccessDeniedException.
 		// Otherwise, write data to the storage of the authenticated user.
-		if( ! authenticated){
-			throw new AccessDeniedException();
-		}
+		beginLockStep();
+		try {
+			if( ! authenticated){
+				throw new AccessDeniedException();
+			}
 
-		DataOutputBuffer dob = new DataOutputBuffer(channel);
-		dob.writeByte(ServerContext.CommandWrite);
-		dob.writeInt(nbytes);
-		dob.writeInt(storageOffset);
-		for(int i=0; i<nbytes; ++i){
-			dob.writeByte(buf[bufOffset+i]);
-		}
-		dob.send();
-
-		DataInputBuffer dib = new DataInputBuffer(channel);
-		int retCode = dib.readInt();
-		if(retCode == ServerContext.UnauthorizedCode){
-			throw new AccessDeniedException();
-		}else if(retCode == ServerContext.DataIntegrityFailureCode){
-			throw new IOException("Integrity failure on server");
+			DataOutputBuffer dob = new DataOutputBuffer(channel, 9+nbytes);
+			dob.writeByte(ServerContext.CommandWrite);
+			dob.writeInt(nbytes);
+			dob.writeInt(storageOffset);
+			dob.writeBytes(buf, bufOffset, nbytes);
+			dob.send();
+
+			DataInputBuffer dib = new DataInputBuffer(channel);
+			int retCode = dib.readInt();
+			if(retCode == ServerContext.UnauthorizedCode){
+				throw new AccessDeniedException();
+			}else if(retCode == ServerContext.DataIntegrityFailureCode){
+				throw new IOException("Integrity failure on server");
+			}
+		} finally {
+			lock.unlock();
 		}
 	}
 
@@ -119,26 +214,171 @@ public class StorageClientSession {
 		throws AccessDeniedException, IOException {
 		// If this client is not authenticated, throw AccessDeniedException.
 		// Otherwise, read data from the storage of the authenticated user.
+		beginLockStep();
+		try {
+			if( ! authenticated){
+				throw new AccessDeniedException();
+			}
 
+			DataOutputBuffer dob = new DataOutputBuffer(channel);
+			dob.writeByte(ServerContext.CommandRead);;
+			dob.writeInt(nbytes);
+			dob.writeInt(storageOffset);
+			dob.send();
+
+			DataInputBuffer dib = new DataInputBuffer(channel);
+			int retCode = dib.readInt();
+			if(retCode == ServerContext.UnauthorizedCode){
+				throw new AccessDeniedException();
+			}else if(retCode == ServerContext.DataIntegrityFailureCode){
+				throw new IOException("Integrity failure on server");
+			}
+			dib.readBytes(buf, bufOffset, nbytes);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public CompletableFuture<Void> writeAsync(int nbytes, int storageOffset, 
+		int bufOffset, byte[] buf) {
+		// Like write, but returns at once.  The future completes when the
+		// server has done the write, or completes exceptionally with
+		// AccessDeniedException or IOException.  buf is copied before this
+		// returns.
+		return sendTagged(ServerContext.CommandTaggedWrite, nbytes, storageOffset,
+			bufOffset, buf);
+	}
+
+	public CompletableFuture<Void> readAsync(int nbytes, int storageOffset, 
+		int bufOffset, byte[] buf) {
+		// Like read, but returns at once.  The future completes once
+		// buf[bufOffset] thru buf[bufOffset+nbytes-1] have been filled in,
+		// or completes exceptionally as for writeAsync; don't use that part
+		// of buf until then.  The server runs tagged requests concurrently,
+		// but one that overlaps an earlier write sees that write.
+		return sendTagged(ServerContext.CommandTaggedRead, nbytes, storageOffset,
+			bufOffset, buf);
+	}
+
+	private void beginLockStep() {
+		lock.lock();
+		while(! pending.isEmpty()){
+			idle.awaitUninterruptibly();
+		}
+	}
+
+	private CompletableFuture<Void> sendTagged(byte cmd, int nbytes, 
+		int storageOffset, int bufOffset, byte[] buf) {
+
+		boolean write = (cmd == ServerContext.CommandTaggedWrite);
+		Pending p = new Pending(write, buf, bufOffset, nbytes);
 		if( ! authenticated){
-			throw new AccessDeniedException();
+			p.future.completeExceptionally(new AccessDeniedException());
+			return p.future;
 		}
+		lock.lock();
+		try {
+			if(readerFailure != null){
+				p.future.completeExceptionally(readerFailure);
+				return p.future;
+			}
+			int requestId = nextRequestId++;
+			DataOutputBuffer dob = new DataOutputBuffer(channel, 
+				write ? 13+nbytes : 13);
+			dob.writeByte(cmd);
+			dob.writeInt(requestId);
+			dob.writeInt(nbytes);
+			dob.writeInt(storageOffset);
+			if(write){
+				dob.writeBytes(buf, bufOffset, nbytes);
+			}
+			dob.send();
 
-		DataOutputBuffer dob = new DataOutputBuffer(channel);
-		dob.writeByte(ServerContext.CommandRead);;
-		dob.writeInt(nbytes);
-		dob.writeInt(storageOffset);
-		dob.send();
-
-		DataInputBuffer dib = new DataInputBuffer(channel);
-		int retCode = dib.readInt();
-		if(retCode == ServerContext.UnauthorizedCode){
-			throw new AccessDeniedException();
-		}else if(retCode == ServerContext.DataIntegrityFailureCode){
-			throw new IOException("Integrity failure on server");
+			pending.put(requestId, p);
+			if(reader == null){
+				reader = new Thread("StorageClientSession reader") {
+					public void run() {
+						readResponses();
+					}
+				};
+				reader.setDaemon(true);
+				reader.start();
+			}
+			hasPending.signal();
+		}catch(IOException x){
+			p.future.completeExceptionally(x);
+		} finally {
+			lock.unlock();
 		}
-		for(int i=0; i<nbytes; ++i){
-			buf[bufOffset+i] = dib.readByte();
+		return p.future;
+	}
+
+	private void readResponses() {
+		// The reader thread: receive responses to tagged requests, and
+		// complete their futures, until the connection fails.
+		try {
+			while(true) {
+				lock.lock();
+				try {
+					while(pending.isEmpty()){
+						hasPending.awaitUninterruptibly();
+					}
+				} finally {
+					lock.unlock();
+				}
+
+				DataInputBuffer dib = new DataInputBuffer(channel);
+				int requestId = dib.readInt();
+				int retCode = dib.readInt();
+				Pending p;
+				lock.lock();
+				try {
+					p = pending.get(requestId);
+				} finally {
+					lock.unlock();
+				}
+				if(p == null){
+					throw new IOException("response to unknown request " + requestId);
+				}
+				if( (retCode == ServerContext.SuccessCode) && ! p.write ){
+					dib.readBytes(p.buf, p.bufOffset, p.nbytes);
+				}
+
+				// out of <pending> before it completes, so that whatever runs
+				// on completion may make a lock-step call
+				lock.lock();
+				try {
+					pending.remove(requestId);
+					if(pending.isEmpty()){
+						idle.signalAll();
+					}
+				} finally {
+					lock.unlock();
+				}
+				if(retCode == ServerContext.SuccessCode){
+					p.future.complete(null);
+				}else if(retCode == ServerContext.UnauthorizedCode){
+					p.future.completeExceptionally(new AccessDeniedException());
+				}else if(retCode == ServerContext.BadRequestCode){
+					p.future.completeExceptionally(
+						new IOException("Server rejected request " + requestId));
+				}else{
+					p.future.completeExceptionally(
+						new IOException("Integrity failure on server"));
+				}
+			}
+		}catch(IOException x){
+			lock.lock();
+			try {
+				readerFailure = x;
+				for(Pending p : pending.values()){
+					p.future.completeExceptionally(x);
+				}
+				pending.clear();
+				idle.signalAll();
+			} finally {
+				lock.unlock();
+			}
 		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,219 @@
+// Stress test for using one block cache from many threads at once, for
+// every kind of cache and both write modes.  Each thread makes random
+// partial reads and writes on blocks of its own, checked against a copy it
+// keeps in memory, and all of them read a shared set of blocks, so they
+// miss on the same blocks at once.  The cache is small, so blocks are
+// evicted (and in write-back mode written back) all the time.  Afterwards
+// the cache is flushed and the device checked.
+//
+// The cache wraps a store that is slow on purpose and records how many
+// calls to it overlap; the cache must not keep them from overlapping.
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+public class TestBlockCacheConcurrent {
+	private static final int NumThreads = 8;
+	private static final int BlocksPerThread = 6;
+	private static final int NumShared = 6;
+	private static final int Capacity = 8;
+	private static final int NumOps = 300;
+
+	public static void main(String[] args) throws Exception {
+		FileBlockDevice dev = new FileBlockDevice("testCacheConcurrentDevice.img");
+
+		boolean passed = true;
+		for(int kind=0; kind<4; ++kind){
+			for(int mode=0; mode<2; ++mode){
+				boolean writeBack = (mode == 1);
+				dev.format();
+				SlowStore slow = new SlowStore(dev);
+				BlockCache cache = (kind < 3)
+					? new CachingBlockStore(slow, Capacity, kind, writeBack)
+					: new OffHeapBlockCache(slow, Capacity, writeBack);
+				if(! test(cache, dev)){
+					System.out.printf("Cache kind %d, write-back %b failed\n", kind,
+						writeBack);
+					passed = false;
+				}
+				if(slow.maxInFlight.get() < 2){
+					System.out.printf("Cache kind %d, write-back %b never overlapped "
+						+ "calls to the wrapped store\n", kind, writeBack);
+					passed = false;
+				}
+			}
+		}
+		dev.close();
+
+		if(passed){
+			System.out.println("OK");
+		}else{
+			System.out.println("FAILED");
+		}
+	}
+
+	private static boolean test(final BlockCache cache, BlockStore dev)
+		throws Exception {
+
+		final int blockSize = cache.blockSize();
+		final int firstShared = NumThreads*BlocksPerThread;
+		for(int bn=firstShared; bn<firstShared+NumShared; ++bn){
+			cache.writeBlock(bn, TestBlockStore.makeBlock(cache, bn), 0, 0, blockSize);
+		}
+
+		// thread t owns blocks t, t+NumThreads, ...
+		final byte[][] mirrors = new byte[NumThreads][BlocksPerThread*blockSize];
+		final List<Throwable> failures = new ArrayList<Throwable>();
+		Thread[] threads = new Thread[NumThreads];
+		for(int t=0; t<NumThreads; ++t){
+			final int tid = t;
+			threads[t] = new Thread() {
+				public void run() {
+					try {
+						work(cache, tid, mirrors[tid], firstShared);
+					}catch(Throwable x){
+						synchronized(failures){
+							failures.add(x);
+						}
+					}
+				}
+			};
+		}
+		for(Thread th : threads){
+			th.start();
+		}
+		for(Thread th : threads){
+			th.join();
+		}
+		boolean passed = failures.isEmpty();
+		for(Throwable x : failures){
+			System.out.println("Thread failed: " + x);
+		}
+		passed = passed && (cache.evictions() > 0);
+
+		cache.flush();
+		byte[] buf = new byte[blockSize];
+		for(int t=0; t<NumThreads; ++t){
+			for(int i=0; i<BlocksPerThread; ++i){
+				dev.readBlock(i*NumThreads + t, buf, 0, 0, blockSize);
+				for(int j=0; j<blockSize; ++j){
+					if(buf[j] != mirrors[t][i*blockSize + j]){
+						System.out.printf("block %d wrong on the device\n",
+							i*NumThreads + t);
+						return false;
+					}
+				}
+			}
+		}
+		return passed;
+	}
+
+	private static void work(BlockCache cache, int tid, byte[] mirror,
+		int firstShared) throws DataIntegrityException {
+
+		Random rand = new Random(tid);
+		int blockSize = cache.blockSize();
+		byte[] buf = new byte[blockSize];
+		for(int op=0; op<NumOps; ++op){
+			if(rand.nextInt(4) == 0){
+				int bn = firstShared + rand.nextInt(NumShared);
+				cache.readBlock(bn, buf, 0, 0, blockSize);
+				byte[] expected = TestBlockStore.makeBlock(cache, bn);
+				for(int j=0; j<blockSize; ++j){
+					if(buf[j] != expected[j]){
+						throw new AssertionError("shared block " + bn + " read back wrong");
+					}
+				}
+				continue;
+			}
+			int i = rand.nextInt(BlocksPerThread);
+			int bn = i*NumThreads + tid;
+			int offset = rand.nextInt(blockSize);
+			int nbytes = rand.nextInt(blockSize - offset + 1);
+			if(rand.nextInt(8) == 0){
+				offset = 0;
+				nbytes = blockSize;
+			}
+			if(rand.nextBoolean()){
+				rand.nextBytes(buf);
+				cache.writeBlock(bn, buf, 0, offset, nbytes);
+				System.arraycopy(buf, 0, mirror, i*blockSize + offset, nbytes);
+			}else{
+				cache.readBlock(bn, buf, 0, offset, nbytes);
+				for(int j=0; j<nbytes; ++j){
+					if(buf[j] != mirror[i*blockSize + offset + j]){
+						throw new AssertionError("block " + bn + " read back wrong");
+					}
+				}
+			}
+		}
+	}
+
+	// A store that takes a millisecond over every block read or write, and
+	// keeps track of the most such calls in progress at once.
+	private static class SlowStore implements BlockStore {
+		private final BlockStore    dev;
+		private final AtomicInteger inFlight = new AtomicInteger();
+		final AtomicInteger         maxInFlight = new AtomicInteger();
+
+		SlowStore(BlockStore dev) {
+			this.dev = dev;
+		}
+
+		private void enter() {
+			int n = inFlight.incrementAndGet();
+			while(true){
+				int max = maxInFlight.get();
+				if( (n <= max) || maxInFlight.compareAndSet(max, n) ){
+					break;
+				}
+			}
+			try {
+				Thread.sleep(1);
+			}catch(InterruptedException x){
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		public void format() throws DataIntegrityException {    dev.format();    }
+		public int blockSize() {    return dev.blockSize();    }
+		public int superBlockSize() {    return dev.superBlockSize();    }
+
+		public void writeBlock(int blockNum, byte[] buf, int bufOffset,
+			int blockOffset, int nbytes) throws DataIntegrityException {
+
+			enter();
+			try {
+				dev.writeBlock(blockNum, buf, bufOffset, blockOffset, nbytes);
+			} finally {
+				inFlight.decrementAndGet();
+			}
+		}
+
+		public void readBlock(int blockNum, byte[] buf, int bufOffset,
+			int blockOffset, int nbytes) throws DataIntegrityException {
+
+			enter();
+			try {
+				dev.readBlock(blockNum, buf, bufOffset, blockOffset, nbytes);
+			} finally {
+				inFlight.decrementAndGet();
+			}
+		}
+
+		public void writeSuperBlock(byte[] buf, int bufOffset, int blockOffset,
+			int nbytes) throws DataIntegrityException {
+
+			dev.writeSuperBlock(buf, bufOffset, blockOffset, nbytes);
+		}
+
+		public void readSuperBlock(byte[] buf, int bufOffset, int blockOffset,
+			int nbytes) throws DataIntegrityException {
+
+			dev.readSuperBlock(buf, bufOffset, blockOffset, nbytes);
+		}
+	}
+}
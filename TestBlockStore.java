@@ -1,3 +1,7 @@
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+
 
 public class TestBlockStore {
 	public static byte[] makeBlock(BlockStore bs, int salt) {
@@ -45,6 +49,180 @@ public class TestBlockStore {
 			}
 		}
 
+		if(! testByteBuffers(bs)){
+			return false;
+		}
+		if(! testRanges(bs)){
+			return false;
+		}
+
+		return true;
+	}
+
+	public static boolean testCache(BlockCache cache, BlockStore dev, 
+		int numBlocks, int hotBlocks, int hotStride, int numOps, Random rand) 
+		throws DataIntegrityException {
+
+		// A random mix of partial reads and writes through <cache>, which
+		// wraps <dev>, checked against a copy kept in memory and, after a
+		// flush, against <dev> itself.  Most accesses go to a hot set of
+		// <hotBlocks> blocks, <hotStride> apart; the rest go anywhere in the
+		// first <numBlocks>.  Return true iff everything reads back right
+		// and the cache had to evict.
+		cache.format();
+		int blockSize = cache.blockSize();
+		byte[] mirror = new byte[numBlocks*blockSize];
+		byte[] buf = new byte[blockSize];
+		for(int op=0; op<numOps; ++op){
+			int bn = (rand.nextInt(4) == 0) ? rand.nextInt(numBlocks)
+				: hotStride*rand.nextInt(hotBlocks);
+			int offset = rand.nextInt(blockSize);
+			int nbytes = rand.nextInt(blockSize - offset + 1);
+			if(rand.nextInt(8) == 0){
+				offset = 0;
+				nbytes = blockSize;
+			}
+			if(rand.nextBoolean()){
+				rand.nextBytes(buf);
+				cache.writeBlock(bn, buf, 0, offset, nbytes);
+				System.arraycopy(buf, 0, mirror, bn*blockSize + offset, nbytes);
+			}else{
+				cache.readBlock(bn, buf, 0, offset, nbytes);
+				for(int i=0; i<nbytes; ++i){
+					if(buf[i] != mirror[bn*blockSize + offset + i]){
+						System.out.printf("block %d read back wrong\n", bn);
+						return false;
+					}
+				}
+			}
+		}
+		if(cache.evictions() == 0){
+			return false;
+		}
+
+		cache.flush();
+		for(int bn=0; bn<numBlocks; ++bn){
+			dev.readBlock(bn, buf, 0, 0, blockSize);
+			for(int i=0; i<blockSize; ++i){
+				if(buf[i] != mirror[bn*blockSize + i]){
+					System.out.printf("block %d wrong on the device\n", bn);
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private static boolean testByteBuffers(BlockStore bs) 
+		throws DataIntegrityException {
+
+		// the ByteBuffer versions, on direct and heap buffers, for whole and
+		// partial blocks; they must agree with the byte[] versions and leave
+		// each buffer's position just past the bytes moved
+		int blockSize = bs.blockSize();
+		byte[] block = makeBlock(bs, 99);
+		ByteBuffer direct = ByteBuffer.allocateDirect(blockSize);
+		direct.put(block);
+		direct.flip();
+		bs.writeBlock(5, direct, 0);
+		if(direct.hasRemaining()){
+			return false;
+		}
+
+		byte[] patch = makeBlock(bs, 3);
+		ByteBuffer heap = ByteBuffer.wrap(patch, 20, 100);
+		bs.writeBlock(5, heap, 10);
+		if(heap.position() != 120){
+			return false;
+		}
+		for(int i=10; i<110; ++i){
+			block[i] = patch[i+10];
+		}
+
+		byte[] rdBlock = new byte[blockSize];
+		bs.readBlock(5, rdBlock, 0, 0, blockSize);
+		direct.clear();
+		bs.readBlock(5, direct, 0);
+		direct.flip();
+		for(int i=0; i<blockSize; ++i){
+			if(rdBlock[i] != block[i] || direct.get(i) != block[i]){
+				return false;
+			}
+		}
+
+		ByteBuffer part = ByteBuffer.allocateDirect(64);
+		part.position(4);
+		bs.readBlock(5, part, blockSize-60);
+		if(part.hasRemaining()){
+			return false;
+		}
+		for(int i=0; i<60; ++i){
+			if(part.get(4+i) != block[blockSize-60+i]){
+				return false;
+			}
+		}
+
+		// put back what test() wrote, which callers may check later
+		bs.writeBlock(5, ByteBuffer.wrap(makeBlock(bs, 5)), 0);
+		return true;
+	}
+
+	private static boolean testRanges(BlockStore bs) 
+		throws DataIntegrityException {
+
+		// a range that starts and ends partway through a block, checked
+		// both as a range and block by block
+		int blockSize = bs.blockSize();
+		byte[] data = makeBlock(bs, 11);
+		byte[] span = new byte[3*blockSize + 200];
+		for(int i=0; i<span.length; ++i){
+			span[i] = (byte)(data[i % blockSize] + i/blockSize);
+		}
+		bs.writeBlocks(60, span, 0, 100, span.length);
+		byte[] spanCheck = new byte[span.length + 2];
+		bs.readBlocks(60, spanCheck, 1, 100, span.length);
+		byte[] rdBlock = new byte[blockSize];
+		bs.readBlock(61, rdBlock, 0, 0, blockSize);
+		for(int i=0; i<span.length; ++i){
+			if(spanCheck[i+1] != span[i]){
+				return false;
+			}
+		}
+		for(int i=0; i<blockSize; ++i){
+			if(rdBlock[i] != span[blockSize-100+i]){
+				return false;
+			}
+		}
+
+		// scatter/gather: a run of consecutive blocks ending in a partial
+		// one, then a block on its own
+		int[] blockNums = { 70, 71, 72, 90 };
+		int[] sizes = { blockSize, blockSize, 100, blockSize };
+		ByteBuffer[] bufs = new ByteBuffer[blockNums.length];
+		ByteBuffer[] rdBufs = new ByteBuffer[blockNums.length];
+		for(int i=0; i<blockNums.length; ++i){
+			byte[] block = makeBlock(bs, 200+i);
+			bufs[i] = (i % 2 == 0) ? ByteBuffer.allocateDirect(sizes[i]) 
+				: ByteBuffer.allocate(sizes[i]);
+			bufs[i].put(block, 0, sizes[i]);
+			bufs[i].flip();
+			rdBufs[i] = (i % 2 == 1) ? ByteBuffer.allocateDirect(sizes[i]) 
+				: ByteBuffer.allocate(sizes[i]);
+		}
+		bs.writeBlocks(blockNums, bufs);
+		bs.readBlocks(blockNums, rdBufs);
+		for(int i=0; i<blockNums.length; ++i){
+			byte[] block = makeBlock(bs, 200+i);
+			if(bufs[i].hasRemaining() || rdBufs[i].hasRemaining()){
+				return false;
+			}
+			bs.readBlock(blockNums[i], rdBlock, 0, 0, sizes[i]);
+			for(int j=0; j<sizes[i]; ++j){
+				if(rdBufs[i].get(j) != block[j] || rdBlock[j] != block[j]){
+					return false;
+				}
+			}
+		}
 		return true;
 	}
 }
\ No newline at end of file
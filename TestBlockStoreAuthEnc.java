@@ -1,5 +1,6 @@
 
 import java.io.FileNotFoundException;
+import java.util.Arrays;
 
 
 public class TestBlockStoreAuthEnc {
@@ -17,10 +18,255 @@ public class TestBlockStoreAuthEnc {
 		PRGen prg = new PRGen(prgSeed);
 		BlockStore bs = new BlockStoreAuthEnc(dev, prg);
 		boolean passed = TestBlockStore.test(bs);
+
+		// a multi-block write through ArrayStore goes through writeBlocks
+		ArrayStore as = new ArrayStore(bs);
+		byte[] span = new byte[5*bs.blockSize() + 123];
+		prg.nextBytes(span);
+		as.write(span, 0, 3*bs.blockSize() - 17, span.length);
+		byte[] spanCheck = new byte[span.length];
+		as.read(spanCheck, 0, 3*bs.blockSize() - 17, span.length);
+		for(int i=0; i<span.length; ++i){
+			if(span[i] != spanCheck[i]){
+				passed = false;
+			}
+		}
+
+		// reopening the device picks up its keys and root hash again
+		ArrayStore reopened = new ArrayStore(new BlockStoreAuthEnc(dev, prg));
+		reopened.read(spanCheck, 0, 3*bs.blockSize() - 17, span.length);
+		for(int i=0; i<span.length; ++i){
+			if(span[i] != spanCheck[i]){
+				passed = false;
+			}
+		}
+		passed = passed && TestBlockStore.test(bs);
+
+		// tampering with a block on the device must be detected
+		byte[] buf = new byte[bs.blockSize()];
+		bs.readBlock(9, buf, 0, 0, buf.length);
+		byte[] raw = new byte[1];
+		dev.readBlock(9, raw, 0, 100, 1);
+		raw[0] ^= 1;
+		dev.writeBlock(9, raw, 0, 100, 1);
+		try {
+			bs.readBlock(9, buf, 0, 0, buf.length);
+			passed = false;
+		}catch(DataIntegrityException x){
+			// expected
+		}
+
+		// ...also in an ancestor that a write re-hashes on its way up, which
+		// must not slip under the new root hash (block 127 is the parent of
+		// block 255)
+		bs.writeBlock(127, buf, 0, 0, buf.length);
+		bs.writeBlock(255, buf, 0, 0, buf.length);
+		bs.readBlock(255, buf, 0, 0, buf.length);
+		dev.readBlock(127, raw, 0, 100, 1);
+		raw[0] ^= 1;
+		dev.writeBlock(127, raw, 0, 100, 1);
+		try {
+			bs.writeBlock(255, buf, 0, 0, buf.length);
+			passed = false;
+		}catch(DataIntegrityException x){
+			// expected
+		}
+		try {
+			bs.readBlock(127, buf, 0, 0, buf.length);
+			passed = false;
+		}catch(DataIntegrityException x){
+			// expected
+		}
+		try {
+			new BlockStoreAuthEnc(dev, prg, 0).readBlock(127, buf, 0, 0, buf.length);
+			passed = false;
+		}catch(DataIntegrityException x){
+			// expected
+		}
+
+		// ...also when nothing about it has been cached yet
+		bs = new BlockStoreAuthEnc(dev, prg, 0);
+		bs.format();
+		as = new ArrayStore(bs);
+		as.write(span, 0, 17, span.length);
+		as.read(spanCheck, 0, 17, span.length);
+		for(int i=0; i<span.length; ++i){
+			if(span[i] != spanCheck[i]){
+				passed = false;
+			}
+		}
+		bs.writeBlock(40, buf, 0, 0, buf.length);
+		dev.readBlock(40, raw, 0, 100, 1);
+		raw[0] ^= 1;
+		dev.writeBlock(40, raw, 0, 100, 1);
+		try {
+			bs.readBlock(40, buf, 0, 0, buf.length);
+			passed = false;
+		}catch(DataIntegrityException x){
+			// expected
+		}
+
+		// ...and by a range read, which checks its blocks as a batch
+		as.write(span, 0, 100*bs.blockSize() + 5, span.length);
+		as.read(spanCheck, 0, 100*bs.blockSize() + 5, span.length);
+		for(int i=0; i<span.length; ++i){
+			if(span[i] != spanCheck[i]){
+				passed = false;
+			}
+		}
+		dev.readBlock(103, raw, 0, 100, 1);
+		raw[0] ^= 1;
+		dev.writeBlock(103, raw, 0, 100, 1);
+		try {
+			as.read(spanCheck, 0, 100*bs.blockSize() + 5, span.length);
+			passed = false;
+		}catch(DataIntegrityException x){
+			// expected
+		}
+
+		// a whole-block overwrite must still notice a rolled-back counter
+		bs.writeBlock(41, buf, 0, 0, buf.length);
+		bs.writeBlock(41, buf, 0, 0, buf.length);
+		byte[] counter = new byte[8];
+		LongUtils.longToBytes(1, counter, 0);
+		dev.writeBlock(41, counter, 0, 32, counter.length);
+		try {
+			bs.writeBlock(41, buf, 0, 0, buf.length);
+			passed = false;
+		}catch(DataIntegrityException x){
+			// expected
+		}
+
+		// ...while with the verified cache on, such an overwrite goes by the
+		// counter it has already checked, so the rolled-back copy is just
+		// replaced, and the block still gets a fresh counter
+		dev.format();
+		bs = new BlockStoreAuthEnc(dev, prg);
+		prg.nextBytes(buf);
+		bs.writeBlock(1000, buf, 0, 0, buf.length);
+		bs.writeBlock(1000, buf, 0, 0, buf.length);
+		LongUtils.longToBytes(1, counter, 0);
+		dev.writeBlock(1000, counter, 0, 32, counter.length);
+		bs.writeBlock(1000, buf, 0, 0, buf.length);
+		dev.readBlock(1000, counter, 0, 32, counter.length);
+		passed = passed && (LongUtils.bytesToLong(counter, 0) == 3);
+		new BlockStoreAuthEnc(dev, prg).readBlock(1000, spanCheck, 0, 0, buf.length);
+		for(int i=0; i<buf.length; ++i){
+			if(buf[i] != spanCheck[i]){
+				passed = false;
+			}
+		}
+
+		// ...but still checks the ancestors it re-hashes (block 249 is the
+		// grandparent of block 1000)
+		dev.readBlock(249, raw, 0, 32, 1);
+		raw[0] ^= 1;
+		dev.writeBlock(249, raw, 0, 32, 1);
+		try {
+			bs.writeBlock(1000, buf, 0, 0, buf.length);
+			passed = false;
+		}catch(DataIntegrityException x){
+			// expected
+		}
+		try {
+			new BlockStoreAuthEnc(dev, prg).readBlock(1000, buf, 0, 0, buf.length);
+			passed = false;
+		}catch(DataIntegrityException x){
+			// expected
+		}
+
+		// the per-block MAC mode, which is kept across reopening
+		dev.format();
+		BlockStoreAuthEnc macStore = new BlockStoreAuthEnc(dev, prg, 0, 
+			BlockStoreAuthEnc.MODE_BLOCK_MAC);
+		passed = passed && TestBlockStore.test(macStore);
+		as = new ArrayStore(macStore);
+		as.write(span, 0, 3*bs.blockSize() - 17, span.length);
+		macStore = new BlockStoreAuthEnc(dev, prg);
+		passed = passed && (macStore.mode() == BlockStoreAuthEnc.MODE_BLOCK_MAC);
+		new ArrayStore(macStore).read(spanCheck, 0, 3*bs.blockSize() - 17, span.length);
+		for(int i=0; i<span.length; ++i){
+			if(span[i] != spanCheck[i]){
+				passed = false;
+			}
+		}
+
+		// ...detects tampering
+		dev.readBlock(3, raw, 0, 100, 1);
+		raw[0] ^= 1;
+		dev.writeBlock(3, raw, 0, 100, 1);
+		try {
+			macStore.readBlock(3, buf, 0, 0, buf.length);
+			passed = false;
+		}catch(DataIntegrityException x){
+			// expected
+		}
+		try {
+			new ArrayStore(macStore).read(spanCheck, 0, 3*bs.blockSize() - 17, 
+				span.length);
+			passed = false;
+		}catch(DataIntegrityException x){
+			// expected
+		}
+
+		// ...and a block rolled back to an earlier version, both while the
+		// store is open and when it is opened again
+		byte[] oldVersion = new byte[dev.blockSize()];
+		dev.readBlock(4, oldVersion, 0, 0, oldVersion.length);
+		macStore.writeBlock(4, buf, 0, 0, buf.length);
+		dev.writeBlock(4, oldVersion, 0, 0, oldVersion.length);
+		try {
+			macStore.readBlock(4, buf, 0, 0, buf.length);
+			passed = false;
+		}catch(DataIntegrityException x){
+			// expected
+		}
+		try {
+			new BlockStoreAuthEnc(dev, prg);
+			passed = false;
+		}catch(DataIntegrityException x){
+			// expected
+		}
+
+		// a long range is checked and decrypted in parallel, in either mode;
+		// a freshly opened store has nothing cached, so everything above the
+		// range is checked as well
+		byte[] big = new byte[300*bs.blockSize() + 77];
+		prg.nextBytes(big);
+		byte[] bigCheck = new byte[big.length];
+		int bigOffset = 150*bs.blockSize() + 9;
+		int[] modes = { BlockStoreAuthEnc.MODE_MERKLE_TREE, BlockStoreAuthEnc.MODE_BLOCK_MAC };
+		for(int mode : modes){
+			dev.format();
+			new ArrayStore(new BlockStoreAuthEnc(dev, prg, 
+				BlockStoreAuthEnc.DEFAULT_VERIFIED_CACHE_NODES, mode)).write(big, 0, 
+				bigOffset, big.length);
+			new ArrayStore(new BlockStoreAuthEnc(dev, prg)).read(bigCheck, 0, 
+				bigOffset, big.length);
+			passed = passed && Arrays.equals(big, bigCheck);
+
+			// ...and none of it reaches the caller if one block is bad
+			dev.readBlock(300, raw, 0, 100, 1);
+			raw[0] ^= 1;
+			dev.writeBlock(300, raw, 0, 100, 1);
+			try {
+				new ArrayStore(new BlockStoreAuthEnc(dev, prg)).read(bigCheck, 0, 
+					bigOffset, big.length);
+				passed = false;
+			}catch(DataIntegrityException x){
+				// expected
+			}
+			for(int i=0; i<bigCheck.length; ++i){
+				if(bigCheck[i] != 0){
+					passed = false;
+				}
+			}
+		}
+
 		if(passed){
 			System.out.println("OK");
 		}else{
 			System.out.println("FAILED");
 		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,116 @@
+
+import java.lang.management.ManagementFactory;
+
+import java.io.FileNotFoundException;
+
+
+public class TestBlockStoreAuthEncAllocation {
+	// Checks that BlockStoreAuthEnc's read and write paths don't allocate
+	// block-sized buffers per call.  Allocation is measured with the
+	// per-thread allocation counter of the HotSpot ThreadMXBean.  The only
+	// sizable allocation left is inside StreamCipher, which generates its
+	// keystream through fresh objects for every byte; we can't avoid that,
+	// so the cost of en/decrypting one block is measured and allowed for.
+
+	private static final int  ITERATIONS = 2000;
+	private static final long SLACK_BYTES = 512;
+
+	// blocks in the top of the tree, which is kept in memory, then blocks
+	// below it, in eight different stripes
+	private static final int[] BLOCKS = { 0, 1, 2, 5, 9, 15, 30, 62,
+		127, 130, 200, 254, 300, 777, 1000, 1500 };
+
+	private static com.sun.management.ThreadMXBean threadBean = 
+		(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+	private static long allocatedBytes() {
+		return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	public static void main(String[] args) 
+		throws FileNotFoundException, DataIntegrityException {
+
+		if(! threadBean.isThreadAllocatedMemorySupported()){
+			System.out.println("SKIPPED: allocation probe not supported");
+			return;
+		}
+		threadBean.setThreadAllocatedMemoryEnabled(true);
+
+		BlockStore dev = new FileBlockDevice("testAllocationDevice.img");
+		dev.format();
+		byte[] prgSeed = new byte[PRGen.KEY_SIZE_BYTES];
+		byte[] randBytes = TrueRandomness.get();
+		for(int i=0; i<TrueRandomness.NumBytes; ++i) {
+			prgSeed[i] = randBytes[i];
+		}
+		PRGen prg = new PRGen(prgSeed);
+		BlockStore bs = new BlockStoreAuthEnc(dev, prg);
+
+		byte[] buf = TestBlockStore.makeBlock(bs, 5);
+		for(int bn : BLOCKS){
+			bs.writeBlock(bn, buf, 0, 0, bs.blockSize());
+		}
+
+		// cost of the allocation we allow for each en/decryption of a block
+		final byte[] key = new byte[StreamCipher.KEY_SIZE_BYTES];
+		final byte[] nonce = new byte[32];
+		final byte[] plain = new byte[bs.blockSize()];
+		long cipherBytes = perCall(new Runnable() {
+			public void run() {
+				new StreamCipher(key, nonce).cryptBytes(plain, 0, plain, 0, 
+					plain.length);
+			}
+		});
+
+		boolean passed = true;
+		long readBytes = perOp(bs, buf, false, 0, bs.blockSize());
+		long partialReadBytes = perOp(bs, buf, false, 100, 200);
+		long writeBytes = perOp(bs, buf, true, 0, bs.blockSize());
+		long partialWriteBytes = perOp(bs, buf, true, 100, 200);
+		System.out.printf("StreamCipher: %d bytes, read: %d, partial read: %d, " +
+			"write: %d, partial write: %d\n", cipherBytes, readBytes, 
+			partialReadBytes, writeBytes, partialWriteBytes);
+		passed &= readBytes <= cipherBytes + SLACK_BYTES;
+		passed &= partialReadBytes <= cipherBytes + SLACK_BYTES;
+		passed &= writeBytes <= cipherBytes + SLACK_BYTES;
+		passed &= partialWriteBytes <= 2*cipherBytes + SLACK_BYTES;
+
+		if(passed){
+			System.out.println("OK");
+		}else{
+			System.out.println("FAILED");
+		}
+	}
+
+	private static long perOp(final BlockStore bs, final byte[] buf, 
+		final boolean write, final int blockOffset, final int nbytes) {
+		// Average bytes allocated per read or write, cycling over BLOCKS.
+		return perCall(new Runnable() {
+			int i = 0;
+			public void run() {
+				try {
+					if(write){
+						bs.writeBlock(BLOCKS[i], buf, 0, blockOffset, nbytes);
+					}else{
+						bs.readBlock(BLOCKS[i], buf, 0, blockOffset, nbytes);
+					}
+				}catch(DataIntegrityException x){
+					throw new RuntimeException(x);
+				}
+				i = (i+1) % BLOCKS.length;
+			}
+		});
+	}
+
+	private static long perCall(Runnable r) {
+		// warm up so the JIT has settled, then measure
+		for(int i=0; i<ITERATIONS; ++i){
+			r.run();
+		}
+		long before = allocatedBytes();
+		for(int i=0; i<ITERATIONS; ++i){
+			r.run();
+		}
+		return (allocatedBytes() - before) / ITERATIONS;
+	}
+}
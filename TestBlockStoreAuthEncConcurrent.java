@@ -0,0 +1,261 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+
+public class TestBlockStoreAuthEncConcurrent {
+	// Stress test for using one BlockStoreAuthEnc from many threads at once,
+	// in both integrity modes.  Each thread owns a run of blocks, which
+	// shares hash-tree stripes with its neighbours' runs, and writes it with
+	// whole-block, partial and multi-block writes while reading back what it
+	// wrote.  Afterwards every block is checked, both through the store that
+	// was used and through a freshly opened one.
+	//
+	// Then the group commit of the root hash: writers in different
+	// stripes, and in the top of the tree, on a device whose superblock
+	// writes are slow, so that there are nearly always updates waiting to
+	// be committed.  Their writes must share commits, reads of the top
+	// blocks must see the latest data all the same, and a store opened as
+	// soon as the writers are done must find everything under its root.
+
+	private static final int NumThreads = 8;
+	private static final int BlocksPerThread = 96;
+	private static final int Rounds = 40;
+	private static final int CommitRounds = 20;
+	private static final int FirstTopBlock = 8;
+
+	public static void main(String[] args) throws Exception {
+
+		byte[] prgSeed = new byte[PRGen.KEY_SIZE_BYTES];
+		byte[] randBytes = TrueRandomness.get();
+		for(int i=0; i<TrueRandomness.NumBytes; ++i) {
+			prgSeed[i] = randBytes[i];
+		}
+		PRGen prg = new PRGen(prgSeed);
+		FileBlockDevice dev = new FileBlockDevice("testConcurrentAuthEnc.img");
+
+		boolean passed = true;
+		int[] modes = { BlockStoreAuthEnc.MODE_MERKLE_TREE,
+			BlockStoreAuthEnc.MODE_BLOCK_MAC };
+		for(int mode : modes){
+			dev.format();
+			BlockStoreAuthEnc bs = new BlockStoreAuthEnc(dev, prg,
+				BlockStoreAuthEnc.DEFAULT_VERIFIED_CACHE_NODES, mode);
+			passed = run(bs, dev, prg) && passed;
+		}
+		dev.close();
+		passed = testGroupCommit(prg) && passed;
+
+		if(passed){
+			System.out.println("OK");
+		}else{
+			System.out.println("FAILED");
+		}
+	}
+
+	private static boolean run(final BlockStoreAuthEnc bs, BlockStore dev,
+		PRGen prg) throws DataIntegrityException, InterruptedException {
+
+		final int blockSize = bs.blockSize();
+		final byte[][] mirrors = new byte[NumThreads][BlocksPerThread*blockSize];
+		final List<Throwable> failures = new ArrayList<Throwable>();
+		Thread[] threads = new Thread[NumThreads];
+		for(int t=0; t<NumThreads; ++t){
+			final int tid = t;
+			threads[t] = new Thread() {
+				public void run() {
+					try {
+						work(bs, tid, mirrors[tid]);
+					}catch(Throwable x){
+						synchronized(failures){
+							failures.add(x);
+						}
+					}
+				}
+			};
+		}
+		for(Thread th : threads){
+			th.start();
+		}
+		for(Thread th : threads){
+			th.join();
+		}
+
+		boolean passed = failures.isEmpty();
+		for(Throwable x : failures){
+			System.out.println("Thread failed: " + x);
+		}
+		passed = checkAll(bs, mirrors) && passed;
+		passed = checkAll(new BlockStoreAuthEnc(dev, prg), mirrors) && passed;
+		return passed;
+	}
+
+	private static void work(BlockStoreAuthEnc bs, int tid, byte[] mirror)
+		throws DataIntegrityException {
+
+		int blockSize = bs.blockSize();
+		int firstBlock = tid*BlocksPerThread;
+		Random rand = new Random(tid);
+		byte[] buf = new byte[3*blockSize];
+		for(int r=0; r<Rounds; ++r){
+			// a write of up to three blocks, at any offset within our run
+			int offset = rand.nextInt(mirror.length);
+			int nbytes = 1 + rand.nextInt(Math.min(buf.length, mirror.length-offset));
+			if(r % 4 == 0){
+				offset -= offset % blockSize;
+				nbytes = Math.min(blockSize, mirror.length-offset);
+			}
+			rand.nextBytes(buf);
+			bs.writeBlocks(firstBlock + offset/blockSize, buf, 0,
+				offset % blockSize, nbytes);
+			System.arraycopy(buf, 0, mirror, offset, nbytes);
+
+			// and a read of one of our blocks
+			int bn = rand.nextInt(BlocksPerThread);
+			bs.readBlock(firstBlock + bn, buf, 0, 0, blockSize);
+			for(int i=0; i<blockSize; ++i){
+				if(buf[i] != mirror[bn*blockSize + i]){
+					throw new IllegalStateException("block " + (firstBlock+bn)
+						+ " read back wrong");
+				}
+			}
+		}
+	}
+
+	private static boolean testGroupCommit(PRGen prg) throws Exception {
+		FileBlockDevice file = new FileBlockDevice("testGroupCommit.img");
+		SlowRootDevice dev = new SlowRootDevice(file);
+		dev.format();
+		final BlockStoreAuthEnc bs = new BlockStoreAuthEnc(dev, prg);
+		final int blockSize = bs.blockSize();
+
+		// thread t writes block 127+2t, a child of the root of stripe t,
+		// and block FirstTopBlock+t, in the top of the tree
+		final byte[][] deep = new byte[NumThreads][blockSize];
+		final byte[][] top = new byte[NumThreads][blockSize];
+		final List<Throwable> failures = new ArrayList<Throwable>();
+		Thread[] threads = new Thread[NumThreads];
+		for(int t=0; t<NumThreads; ++t){
+			final int tid = t;
+			threads[t] = new Thread() {
+				public void run() {
+					try {
+						Random rand = new Random(100 + tid);
+						byte[] buf = new byte[blockSize];
+						for(int r=0; r<CommitRounds; ++r){
+							rand.nextBytes(deep[tid]);
+							bs.writeBlock(127 + 2*tid, deep[tid], 0, 0, blockSize);
+							rand.nextBytes(top[tid]);
+							bs.writeBlock(FirstTopBlock + tid, top[tid], 0, 0, blockSize);
+							bs.readBlock(FirstTopBlock + tid, buf, 0, 0, blockSize);
+							for(int i=0; i<blockSize; ++i){
+								if(buf[i] != top[tid][i]){
+									throw new IllegalStateException("block " 
+										+ (FirstTopBlock+tid) + " read back wrong");
+								}
+							}
+						}
+					}catch(Throwable x){
+						synchronized(failures){
+							failures.add(x);
+						}
+					}
+				}
+			};
+		}
+		for(Thread th : threads){
+			th.start();
+		}
+		for(Thread th : threads){
+			th.join();
+		}
+
+		boolean passed = failures.isEmpty();
+		for(Throwable x : failures){
+			System.out.println("Thread failed: " + x);
+		}
+		int numWrites = 2*NumThreads*CommitRounds;
+		if(bs.rootCommits() >= numWrites){
+			System.out.printf("%d root commits for %d writes\n", bs.rootCommits(),
+				numWrites);
+			passed = false;
+		}
+
+		BlockStoreAuthEnc reopened = new BlockStoreAuthEnc(dev, prg);
+		byte[] buf = new byte[blockSize];
+		for(int t=0; t<NumThreads; ++t){
+			reopened.readBlock(127 + 2*t, buf, 0, 0, blockSize);
+			passed = passed && Arrays.equals(buf, deep[t]);
+			reopened.readBlock(FirstTopBlock + t, buf, 0, 0, blockSize);
+			passed = passed && Arrays.equals(buf, top[t]);
+		}
+		file.close();
+		return passed;
+	}
+
+	// A device whose superblock writes take a while, like a disk's sync.
+	private static class SlowRootDevice implements BlockStore {
+		private BlockStore dev;
+
+		SlowRootDevice(BlockStore dev) {
+			this.dev = dev;
+		}
+
+		public void format() throws DataIntegrityException {
+			dev.format();
+		}
+
+		public int blockSize() {
+			return dev.blockSize();
+		}
+
+		public void writeBlock(int blockNum, byte[] buf, int bufOffset, 
+			int blockOffset, int nbytes) throws DataIntegrityException {
+			dev.writeBlock(blockNum, buf, bufOffset, blockOffset, nbytes);
+		}
+
+		public void readBlock(int blockNum, byte[] buf, int bufOffset, 
+			int blockOffset, int nbytes) throws DataIntegrityException {
+			dev.readBlock(blockNum, buf, bufOffset, blockOffset, nbytes);
+		}
+
+		public int superBlockSize() {
+			return dev.superBlockSize();
+		}
+
+		public void writeSuperBlock(byte[] buf, int bufOffset, int blockOffset, 
+			int nbytes) throws DataIntegrityException {
+			try {
+				Thread.sleep(2);
+			}catch(InterruptedException x){
+				Thread.currentThread().interrupt();
+			}
+			dev.writeSuperBlock(buf, bufOffset, blockOffset, nbytes);
+		}
+
+		public void readSuperBlock(byte[] buf, int bufOffset, int blockOffset, 
+			int nbytes) throws DataIntegrityException {
+			dev.readSuperBlock(buf, bufOffset, blockOffset, nbytes);
+		}
+	}
+
+	private static boolean checkAll(BlockStore bs, byte[][] mirrors)
+		throws DataIntegrityException {
+
+		int blockSize = bs.blockSize();
+		byte[] buf = new byte[blockSize];
+		for(int t=0; t<NumThreads; ++t){
+			for(int bn=0; bn<BlocksPerThread; ++bn){
+				bs.readBlock(t*BlocksPerThread + bn, buf, 0, 0, blockSize);
+				for(int i=0; i<blockSize; ++i){
+					if(buf[i] != mirrors[t][bn*blockSize + i]){
+						System.out.printf("Block %d is wrong\n", t*BlocksPerThread + bn);
+						return false;
+					}
+				}
+			}
+		}
+		return true;
+	}
+}
@@ -1,3 +1,4 @@
+import java.util.Arrays;
 
 import java.io.FileNotFoundException;
 
@@ -6,15 +7,120 @@ public class TestBlockStoreMultiplexor {
  public static void main(String[] args) 
   throws FileNotFoundException, DataIntegrityException {
     BlockDevice wrappedStore = new BlockDevice("testDevice");
-    wrappedStore.format();
-    BlockStoreMultiplexor mux = new BlockStoreMultiplexor(wrappedStore);
-    for(int i=0; i<800; ++i){
-      BlockStore st = mux.newSubStore();
-      boolean worked = TestBlockStore.test(st);
-      if(! worked){
-        System.out.printf("Data failure %d\n", i);
+    boolean passed = true;
+    for(int layout = BlockStoreMultiplexor.LayoutChain; 
+        layout <= BlockStoreMultiplexor.LayoutWide; ++layout){
+      wrappedStore.format();
+      BlockStoreMultiplexor mux = new BlockStoreMultiplexor(wrappedStore, layout);
+      int numStores = 800;
+      for(int i=0; i<numStores; ++i){
+        BlockStore st = mux.newSubStore();
+        boolean worked = TestBlockStore.test(st);
+        if(! worked){
+          System.out.printf("Data failure %d\n", i);
+          passed = false;
+        }
+      }
+
+      // blocks far apart, so that they need index blocks of their own
+      BlockStore last = mux.getSubStore(numStores-1);
+      int[] farBlocks = { 600, 300000, 299999 };
+      for(int bn : farBlocks){
+        byte[] wrBlock = TestBlockStore.makeBlock(last, bn);
+        last.writeBlock(bn, wrBlock, 0, 0, last.blockSize());
+      }
+
+      // a fresh multiplexor, with nothing cached yet, finds the same blocks
+      // and keeps the layout
+      BlockStoreMultiplexor reopened = new BlockStoreMultiplexor(wrappedStore, 
+        1-layout);
+      if(reopened.layout() != layout){
+        System.out.printf("Layout changed from %d\n", layout);
+        passed = false;
+      }
+      for(int i=0; i<numStores; i+=53){
+        passed = checkBlocks(reopened.getSubStore(i), 53, 0) && passed;
+      }
+      BlockStore st = reopened.getSubStore(numStores-1);
+      for(int bn : farBlocks){
+        passed = checkBlocks(st, bn, bn) && passed;
+      }
+
+      // growing a store in bulk gives it zeroed blocks, without disturbing
+      // the blocks of other stores
+      reopened.growSubStore(0, 1200);
+      st = reopened.getSubStore(0);
+      passed = checkBlocks(st, 53, 0) && passed;
+      byte[] rdBlock = new byte[st.blockSize()];
+      st.readBlock(1100, rdBlock, 0, 0, st.blockSize());
+      passed = Arrays.equals(rdBlock, new byte[st.blockSize()]) && passed;
+      for(int bn=1199; bn>=54; bn-=97){
+        byte[] wrBlock = TestBlockStore.makeBlock(st, bn);
+        st.writeBlock(bn, wrBlock, 0, 0, st.blockSize());
+      }
+      BlockStoreMultiplexor again = new BlockStoreMultiplexor(wrappedStore);
+      for(int i=0; i<numStores; i+=53){
+        passed = checkBlocks(again.getSubStore(i), 53, 0) && passed;
+      }
+      for(int bn=1199; bn>=54; bn-=97){
+        passed = checkBlocks(again.getSubStore(0), bn, bn) && passed;
+      }
+      for(int bn : farBlocks){
+        passed = checkBlocks(again.getSubStore(numStores-1), bn, bn) && passed;
+      }
+
+      // truncating and deleting give blocks back, which get reused before
+      // any new ones, read as zeroes, and stay free across reopening
+      again.truncate(numStores-1, 54);
+      again.deleteSubStore(1);
+      int numFree = again.numFreeBlocks();
+      if(numFree < 54+3){
+        System.out.printf("Only %d blocks freed\n", numFree);
+        passed = false;
+      }
+      BlockStoreMultiplexor afterFree = new BlockStoreMultiplexor(wrappedStore);
+      passed = (afterFree.numFreeBlocks() == numFree) && passed;
+      passed = checkBlocks(afterFree.getSubStore(numStores-1), 53, 0) && passed;
+      passed = checkZero(afterFree.getSubStore(numStores-1), 600) && passed;
+      passed = checkZero(afterFree.getSubStore(1), 7) && passed;
+      afterFree.growSubStore(2, 100);
+      passed = checkZero(afterFree.getSubStore(2), 99) && passed;
+      if(afterFree.numFreeBlocks() >= numFree){
+        System.out.println("Freed blocks were not reused");
+        passed = false;
+      }
+      for(int i=0; i<numStores; i+=53){
+        if(i != 1){
+          passed = checkBlocks(afterFree.getSubStore(i), 53, 0) && passed;
+        }
+      }
+    }
+    System.out.println(passed ? "Done" : "FAILED");
+  }
+
+  private static boolean checkZero(BlockStore st, int bn)
+  throws DataIntegrityException {
+    byte[] rdBlock = new byte[st.blockSize()];
+    st.readBlock(bn, rdBlock, 0, 0, st.blockSize());
+    if(! Arrays.equals(rdBlock, new byte[st.blockSize()])){
+      System.out.printf("Block %d not zero\n", bn);
+      return false;
+    }
+    return true;
+  }
+
+  private static boolean checkBlocks(BlockStore st, int hi, int lo)
+  throws DataIntegrityException {
+    // check that blocks <hi> down to <lo> hold TestBlockStore.makeBlock's data
+    for(int bn=hi; bn>=lo; --bn){
+      byte[] checkBlock = TestBlockStore.makeBlock(st, bn);
+      byte[] rdBlock = new byte[st.blockSize()];
+      st.readBlock(bn, rdBlock, 0, 0, st.blockSize());
+      if(! Arrays.equals(rdBlock, checkBlock)){
+        System.out.printf("Reopen failure block %d\n", bn);
+        return false;
       }
     }
-    System.out.println("Done");
-  }	
-}
\ No newline at end of file
+    return true;
+  }
+}
@@ -0,0 +1,147 @@
+// Stress test for using one BlockStoreMultiplexor from many threads at once.
+// Every thread creates sub-stores and grows them (by writing far-apart
+// blocks, and in bulk), one of them truncates a store, and all of them
+// grow sub-store 0 together.  Afterwards the pointer structures are
+// checked, and every block is read back, both through the multiplexor that
+// was used and through a freshly opened one.
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import java.io.FileNotFoundException;
+
+
+public class TestBlockStoreMultiplexorConcurrent {
+  private static final int NumThreads = 8;
+  private static final int StoresPerThread = 16;
+  private static final int[] BlocksPerStore = { 0, 1, 2, 3, 5, 8, 13, 21, 34,
+    55, 89, 144, 233, 377, 610, 987, 1597 };
+  private static final int SharedBlocksPerThread = 160;
+
+  public static void main(String[] args) throws Exception {
+    FileBlockDevice wrappedStore = new FileBlockDevice("testConcurrentDevice.img");
+    wrappedStore.format();
+    final BlockStoreMultiplexor mux = new BlockStoreMultiplexor(wrappedStore);
+    mux.newSubStore().format();
+
+    final List<List<Integer>> owned = new ArrayList<List<Integer>>();
+    final List<Throwable> failures = new ArrayList<Throwable>();
+    Thread[] threads = new Thread[NumThreads];
+    for(int t=0; t<NumThreads; ++t){
+      final int tid = t;
+      final List<Integer> mine = new ArrayList<Integer>();
+      owned.add(mine);
+      threads[t] = new Thread() {
+        public void run() {
+          try {
+            work(mux, tid, mine);
+          }catch(Throwable x){
+            synchronized(failures){
+              failures.add(x);
+            }
+          }
+        }
+      };
+    }
+    for(Thread th : threads){
+      th.start();
+    }
+    for(Thread th : threads){
+      th.join();
+    }
+
+    boolean passed = failures.isEmpty();
+    for(Throwable x : failures){
+      System.out.println("Thread failed: " + x);
+    }
+    if(mux.numSubStores() != 1 + NumThreads*(StoresPerThread+1)){
+      System.out.printf("Wrong number of stores %d\n", mux.numSubStores());
+      passed = false;
+    }
+    if(! mux.checkStructure()){
+      System.out.println("Pointer structures are inconsistent");
+      passed = false;
+    }
+    passed = checkAll(mux, owned) && passed;
+
+    BlockStoreMultiplexor reopened = new BlockStoreMultiplexor(wrappedStore);
+    passed = reopened.checkStructure() && passed;
+    passed = checkAll(reopened, owned) && passed;
+    wrappedStore.close();
+
+    System.out.println(passed ? "OK" : "FAILED");
+  }
+
+  private static void work(BlockStoreMultiplexor mux, int tid, List<Integer> mine)
+  throws DataIntegrityException {
+    BlockStore shared = mux.getSubStore(0);
+    for(int s=0; s<StoresPerThread; ++s){
+      BlockStore st = mux.newSubStore();
+      st.format();
+      int idx = -1;
+      for(int i=0; i<mux.numSubStores() && idx == -1; ++i){
+        if(mux.getSubStore(i) == st){
+          idx = i;
+        }
+      }
+      mine.add(idx);
+      if(s % 2 == 1){
+        mux.growSubStore(idx, 1000);
+      }
+      for(int bn : BlocksPerStore){
+        write(st, idx, bn);
+      }
+
+      // interleave growth of the shared store
+      for(int i=s; i<SharedBlocksPerThread; i+=StoresPerThread){
+        write(shared, 0, i*NumThreads + tid);
+      }
+    }
+
+    // the last store loses its upper blocks, and its space gets reused
+    int last = mine.get(mine.size()-1);
+    mux.truncate(last, 100);
+    BlockStore st = mux.newSubStore();
+    st.format();
+  }
+
+  private static void write(BlockStore st, int idx, int bn)
+  throws DataIntegrityException {
+    byte[] wrBlock = TestBlockStore.makeBlock(st, idx*31 + bn);
+    st.writeBlock(bn, wrBlock, 0, 0, st.blockSize());
+  }
+
+  private static boolean check(BlockStore st, int idx, int bn, boolean zero)
+  throws DataIntegrityException {
+    byte[] expected = zero ? new byte[st.blockSize()]
+      : TestBlockStore.makeBlock(st, idx*31 + bn);
+    byte[] rdBlock = new byte[st.blockSize()];
+    st.readBlock(bn, rdBlock, 0, 0, st.blockSize());
+    if(! Arrays.equals(rdBlock, expected)){
+      System.out.printf("Store %d block %d is wrong\n", idx, bn);
+      return false;
+    }
+    return true;
+  }
+
+  private static boolean checkAll(BlockStoreMultiplexor mux,
+    List<List<Integer>> owned) throws DataIntegrityException {
+    boolean passed = true;
+    BlockStore shared = mux.getSubStore(0);
+    for(int bn=0; bn<SharedBlocksPerThread*NumThreads; ++bn){
+      passed = check(shared, 0, bn, false) && passed;
+    }
+    for(List<Integer> mine : owned){
+      for(int i=0; i<mine.size(); ++i){
+        int idx = mine.get(i);
+        boolean truncated = (i == mine.size()-1);
+        BlockStore st = mux.getSubStore(idx);
+        for(int bn : BlocksPerStore){
+          passed = check(st, idx, bn, truncated && bn >= 100) && passed;
+        }
+      }
+    }
+    return passed;
+  }
+}
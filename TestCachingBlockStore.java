@@ -0,0 +1,71 @@
+import java.util.Arrays;
+import java.util.Random;
+
+
+public class TestCachingBlockStore {
+	// Runs every eviction policy in both write modes: the standard
+	// BlockStore tests, then a random mix of partial reads and writes on a
+	// cache much smaller than the data (TestBlockStore.testCache), checked
+	// against a copy kept in memory and, after a flush, against the wrapped
+	// device itself.  Last, a cache between BlockStoreAuthEnc and a device.
+
+	private static final int   NumBlocks = 64;
+	private static final int   Capacity = 8;
+	private static final int   NumOps = 4000;
+	private static final int[] Policies = { CachingBlockStore.LRU,
+		CachingBlockStore.CLOCK, CachingBlockStore.TWO_Q };
+
+	public static void main(String[] args) throws Exception {
+		FileBlockDevice dev = new FileBlockDevice("testCachingDevice.img");
+
+		boolean passed = true;
+		for(int policy : Policies){
+			for(int mode=0; mode<2; ++mode){
+				boolean writeBack = (mode == 1);
+				passed = TestBlockStore.test(
+					new CachingBlockStore(dev, Capacity, policy, writeBack)) && passed;
+				passed = testRandom(dev, policy, writeBack) && passed;
+			}
+		}
+
+		// a write-back cache under BlockStoreAuthEnc
+		byte[] prgSeed = new byte[PRGen.KEY_SIZE_BYTES];
+		byte[] randBytes = TrueRandomness.get();
+		for(int i=0; i<TrueRandomness.NumBytes; ++i) {
+			prgSeed[i] = randBytes[i];
+		}
+		PRGen prg = new PRGen(prgSeed);
+		dev.format();
+		CachingBlockStore cache = new CachingBlockStore(dev, 256,
+			CachingBlockStore.CLOCK, true);
+		BlockStore bs = new BlockStoreAuthEnc(cache, prg);
+		passed = TestBlockStore.test(bs) && passed;
+		byte[] span = new byte[5*bs.blockSize() + 123];
+		prg.nextBytes(span);
+		new ArrayStore(bs).write(span, 0, 1000, span.length);
+		cache.flush();
+		byte[] spanCheck = new byte[span.length];
+		new ArrayStore(new BlockStoreAuthEnc(dev, prg)).read(spanCheck, 0, 1000,
+			span.length);
+		passed = Arrays.equals(span, spanCheck) && passed;
+		passed = (cache.hits() > cache.misses()) && passed;
+		dev.close();
+
+		if(passed){
+			System.out.println("OK");
+		}else{
+			System.out.println("FAILED");
+		}
+	}
+
+	private static boolean testRandom(BlockStore dev, int policy, boolean writeBack)
+		throws DataIntegrityException {
+
+		CachingBlockStore cache = new CachingBlockStore(dev, Capacity, policy,
+			writeBack);
+		boolean passed = TestBlockStore.testCache(cache, dev, NumBlocks, 6, 1, 
+			NumOps, new Random(policy));
+		passed = passed && (cache.hits() > 0);
+		return passed && (writeBack == (cache.writeBacks() > 0));
+	}
+}
@@ -0,0 +1,41 @@
+
+import java.io.FileNotFoundException;
+
+
+public class TestFileBlockDevice {
+	public static void main(String[] args) 
+		throws FileNotFoundException, DataIntegrityException {
+
+		BlockStore bs = new FileBlockDevice("testFileDevice.img");
+		boolean passed = TestBlockStore.test(bs);
+
+		// partial writes must only change the bytes they cover
+		byte[] block = TestBlockStore.makeBlock(bs, 7);
+		bs.writeBlock(3, block, 0, 0, bs.blockSize());
+		byte[] patch = { 1, 2, 3 };
+		bs.writeBlock(3, patch, 0, 100, patch.length);
+		byte[] rdBlock = new byte[bs.blockSize()];
+		bs.readBlock(3, rdBlock, 0, 0, bs.blockSize());
+		for(int i=0; i<bs.blockSize(); ++i){
+			byte expected = (i>=100 && i<103) ? patch[i-100] : block[i];
+			if(rdBlock[i] != expected){
+				passed = false;
+			}
+		}
+
+		// blocks far past the preallocated region grow the file
+		bs.writeBlock(100000, block, 0, 0, bs.blockSize());
+		bs.readBlock(100000, rdBlock, 0, 0, bs.blockSize());
+		for(int i=0; i<bs.blockSize(); ++i){
+			if(rdBlock[i] != block[i]){
+				passed = false;
+			}
+		}
+
+		if(passed){
+			System.out.println("OK");
+		}else{
+			System.out.println("FAILED");
+		}
+	}	
+}
@@ -0,0 +1,119 @@
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+
+public class TestMappedBlockDevice {
+	private static final int NumThreads = 8;
+	private static final int BlocksPerThread = 200;
+
+	public static void main(String[] args) 
+		throws FileNotFoundException, IOException, DataIntegrityException,
+		InterruptedException {
+
+		// use small segments so that the test crosses segment boundaries
+		MappedBlockDevice bs = new MappedBlockDevice("testMappedDevice.img", 
+			16*4096);
+		boolean passed = TestBlockStore.test(bs);
+
+		byte[] block = TestBlockStore.makeBlock(bs, 11);
+		bs.writeBlock(1000, block, 0, 0, bs.blockSize());
+		bs.flush();
+		bs.close();
+
+		// reopen with a different segment size; data must still be there
+		bs = new MappedBlockDevice("testMappedDevice.img", 64*4096);
+		byte[] rdBlock = new byte[bs.blockSize()];
+		bs.readBlock(1000, rdBlock, 0, 0, bs.blockSize());
+		for(int i=0; i<bs.blockSize(); ++i){
+			if(rdBlock[i] != block[i]){
+				passed = false;
+			}
+		}
+		bs.readBlock(5000, rdBlock, 0, 0, bs.blockSize());
+		for(int i=0; i<bs.blockSize(); ++i){
+			if(rdBlock[i] != 0){
+				passed = false;
+			}
+		}
+		bs.close();
+
+		// reads and writes from many threads at once, which between them map
+		// new segments, and read blocks that other threads are writing
+		bs = new MappedBlockDevice("testMappedDevice.img", 16*4096);
+		bs.format();
+		final MappedBlockDevice shared = bs;
+		final List<Throwable> failures = new ArrayList<Throwable>();
+		Thread[] threads = new Thread[NumThreads];
+		for(int t=0; t<NumThreads; ++t){
+			final int tid = t;
+			threads[t] = new Thread() {
+				public void run() {
+					try {
+						if(! work(shared, tid)){
+							throw new AssertionError("thread " + tid + " read back wrong data");
+						}
+					}catch(Throwable x){
+						synchronized(failures){
+							failures.add(x);
+						}
+					}
+				}
+			};
+		}
+		for(Thread th : threads){
+			th.start();
+		}
+		for(Thread th : threads){
+			th.join();
+		}
+		for(Throwable x : failures){
+			System.out.println("Thread failed: " + x);
+			passed = false;
+		}
+		for(int bn=0; bn<NumThreads*BlocksPerThread; ++bn){
+			bs.readBlock(bn, rdBlock, 0, 0, bs.blockSize());
+			passed = passed && Arrays.equals(rdBlock, TestBlockStore.makeBlock(bs, bn));
+		}
+		bs.close();
+
+		if(passed){
+			System.out.println("OK");
+		}else{
+			System.out.println("FAILED");
+		}
+	}	
+
+	private static boolean work(MappedBlockDevice bs, int tid) {
+		// Thread <tid> owns every NumThreads-th block, so neighbouring blocks
+		// (and every segment) are shared with the other threads.  It writes
+		// half of them through byte arrays and half through ByteBuffers.
+		boolean passed = true;
+		byte[] rdBlock = new byte[bs.blockSize()];
+		ByteBuffer bb = ByteBuffer.allocateDirect(bs.blockSize());
+		for(int i=0; i<BlocksPerThread; ++i){
+			int bn = i*NumThreads + tid;
+			byte[] block = TestBlockStore.makeBlock(bs, bn);
+			if(i % 2 == 0){
+				bs.writeBlock(bn, block, 0, 0, block.length);
+				bs.readBlock(bn, rdBlock, 0, 0, rdBlock.length);
+			}else{
+				bb.clear();
+				bb.put(block);
+				bb.flip();
+				bs.writeBlock(bn, bb, 0);
+				bb.clear();
+				bs.readBlock(bn, bb, 0);
+				bb.flip();
+				bb.get(rdBlock);
+			}
+			passed = passed && Arrays.equals(rdBlock, block);
+		}
+		return passed;
+	}
+}
@@ -0,0 +1,128 @@
+// Run clients against a NetworkServer over real sockets, on virtual threads.
+//     java TestNetworkServer pubKey privKey
+// Several clients work at once, each under its own account.  Before Java 21
+// the server falls back to a platform thread per client, and the test runs
+// on those instead, saying so.
+
+import java.util.concurrent.CompletableFuture;
+
+import java.io.IOException;
+
+
+public class TestNetworkServer {
+	private static final int NumClients = 8;
+
+	private static volatile boolean passed = true;
+
+	public static void main(String[] args) throws Exception {
+		String publicKeyFileName = args[0];
+		RSAKey privateKey = KeyHandler.readKeyFromFile(args[1]);
+
+		BlockStore device = new FileBlockDevice("testNetworkServer.img");
+		device.format();
+		final NetworkServer ns = new NetworkServer(0, privateKey, prg(0),
+			device, true);
+		if(! ns.usesVirtualThreads()){
+			System.out.println("no virtual threads before Java 21; "
+				+ "testing platform threads");
+		}
+		Thread acceptor = new Thread() {
+			public void run() {
+				try {
+					ns.serverLoop();
+				}catch(IOException x){
+					x.printStackTrace();
+				}
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+		int port = ns.getLocalPort();
+
+		Thread[] clients = new Thread[NumClients];
+		for(int i=0; i<NumClients; ++i){
+			clients[i] = new Client(i, port, publicKeyFileName);
+			clients[i].start();
+		}
+		for(Thread t : clients){
+			t.join();
+		}
+		ns.close();
+
+		if(passed){
+			System.out.println("OK");
+		}else{
+			System.out.println("FAILED");
+		}
+
+		// the server's threads for the clients would keep the JVM alive
+		System.exit(0);
+	}
+
+	private static PRGen prg(int seed) {
+		byte[] prgSeed = new byte[PRGen.KEY_SIZE_BYTES];
+		prgSeed[0] = (byte)seed;
+		prgSeed[1] = (byte)(seed >> 8);
+		return new PRGen(prgSeed);
+	}
+
+	private static class Client extends Thread {
+		private int    id;
+		private int    port;
+		private String publicKeyFileName;
+
+		Client(int id, int port, String publicKeyFileName) {
+			this.id = id;
+			this.port = port;
+			this.publicKeyFileName = publicKeyFileName;
+		}
+
+		public void run() {
+			try {
+				PRGen prg = prg(1000+id);
+				StorageClientSession session = new StorageClientSession(
+					"localhost", port, publicKeyFileName, prg);
+
+				byte[] ping = { 3, 1, 4, 1, 5, 9, (byte)id };
+				session.testPing(ping.length, 0, ping);
+
+				session.createAccount("user" + id, "password" + id);
+				session.authenticate("user" + id, "password" + id);
+
+				// several blocks, both in lock-step and pipelined, so that
+				// many operations share the store's pooled buffers
+				byte[] buf = new byte[50000];
+				byte[] buf2 = new byte[buf.length];
+				prg.nextBytes(buf);
+				session.write(buf.length, 1000*id + 17, 0, buf);
+				session.read(buf.length, 1000*id + 17, 0, buf2);
+				check(buf, buf2);
+
+				prg.nextBytes(buf);
+				CompletableFuture<?>[] futures = new CompletableFuture<?>[10];
+				for(int c=0; c<5; ++c){
+					futures[c] = session.writeAsync(10000, 1000*id + 17 + c*10000,
+						c*10000, buf);
+				}
+				for(int c=0; c<5; ++c){
+					futures[5+c] = session.readAsync(10000, 1000*id + 17 + c*10000,
+						c*10000, buf2);
+				}
+				CompletableFuture.allOf(futures).join();
+				check(buf, buf2);
+			}catch(Exception x){
+				x.printStackTrace();
+				passed = false;
+			}
+		}
+
+		private void check(byte[] expected, byte[] actual) {
+			for(int i=0; i<expected.length; ++i){
+				if(expected[i] != actual[i]){
+					passed = false;
+					return;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,152 @@
+// Run clients against a NioNetworkServer over real sockets.
+//     java TestNioNetworkServer pubKey privKey
+// Several clients work at once, each under its own account, while a pile of
+// idle connections sits open; the idle ones must not cost a thread each.
+// Each idle connection has sent just the header of a message of the largest
+// size allowed, which must not make the server set aside that much memory.
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+
+import java.io.IOException;
+
+
+public class TestNioNetworkServer {
+	private static final int NumClients = 8;
+	private static final int NumIdle = 200;
+
+	private static volatile boolean passed = true;
+
+	public static void main(String[] args) throws Exception {
+		String publicKeyFileName = args[0];
+		RSAKey privateKey = KeyHandler.readKeyFromFile(args[1]);
+
+		BlockStore device = new FileBlockDevice("testNioServer.img");
+		device.format();
+		final NioNetworkServer ns = new NioNetworkServer(0, privateKey,
+			prg(0), device, 2, 4);
+		Thread acceptor = new Thread() {
+			public void run() {
+				try {
+					ns.serverLoop();
+				}catch(IOException x){
+					x.printStackTrace();
+				}
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+		int port = ns.getLocalPort();
+
+		SocketChannel[] idle = new SocketChannel[NumIdle];
+		for(int i=0; i<NumIdle; ++i){
+			idle[i] = SocketChannel.open(new InetSocketAddress("localhost", port));
+			ByteBuffer header = ByteBuffer.allocate(4);
+			header.putInt(NioNetworkServer.MaxMessageBytes);
+			header.flip();
+			while(header.hasRemaining()){
+				idle[i].write(header);
+			}
+		}
+
+		Thread[] clients = new Thread[NumClients];
+		for(int i=0; i<NumClients; ++i){
+			clients[i] = new Client(i, port, publicKeyFileName);
+			clients[i].start();
+		}
+		for(Thread t : clients){
+			t.join();
+		}
+
+		// the idle connections are all still open, on a handful of threads
+		if(Thread.activeCount() > NumIdle/4){
+			passed = false;
+		}
+		for(SocketChannel sc : idle){
+			sc.close();
+		}
+		ns.close();
+
+		if(passed){
+			System.out.println("OK");
+		}else{
+			System.out.println("FAILED");
+		}
+	}
+
+	private static PRGen prg(int seed) {
+		byte[] prgSeed = new byte[PRGen.KEY_SIZE_BYTES];
+		prgSeed[0] = (byte)seed;
+		prgSeed[1] = (byte)(seed >> 8);
+		return new PRGen(prgSeed);
+	}
+
+	private static class Client extends Thread {
+		private int    id;
+		private int    port;
+		private String publicKeyFileName;
+
+		Client(int id, int port, String publicKeyFileName) {
+			this.id = id;
+			this.port = port;
+			this.publicKeyFileName = publicKeyFileName;
+		}
+
+		public void run() {
+			try {
+				PRGen prg = prg(1000+id);
+				StorageClientSession session = new StorageClientSession(
+					"localhost", port, publicKeyFileName, prg);
+
+				byte[] ping = { 2, 7, 1, 8, 2, 8, (byte)id };
+				session.testPing(ping.length, 0, ping);
+
+				session.createAccount("user" + id, "password" + id);
+				session.authenticate("user" + id, "password" + id);
+
+				// spans several blocks, so it is split over many messages'
+				// worth of socket reads
+				byte[] buf = new byte[50000];
+				byte[] buf2 = new byte[buf.length];
+				prg.nextBytes(buf);
+				session.write(buf.length, 1000*id + 17, 0, buf);
+				session.read(buf.length, 1000*id + 17, 0, buf2);
+				for(int i=0; i<buf.length; ++i){
+					if(buf[i] != buf2[i]){
+						passed = false;
+						break;
+					}
+				}
+
+				// the same, pipelined, in chunks
+				prg.nextBytes(buf);
+				CompletableFuture<?>[] futures = new CompletableFuture<?>[10];
+				for(int c=0; c<5; ++c){
+					futures[c] = session.writeAsync(10000, 1000*id + 17 + c*10000,
+						c*10000, buf);
+				}
+				for(int c=0; c<5; ++c){
+					futures[5+c] = session.readAsync(10000, 1000*id + 17 + c*10000,
+						c*10000, buf2);
+				}
+				CompletableFuture.allOf(futures).join();
+				for(int i=0; i<buf.length; ++i){
+					if(buf[i] != buf2[i]){
+						passed = false;
+						break;
+					}
+				}
+
+				Instrumentation.Stats[] stats = session.getStats();
+				if(stats.length != Instrumentation.NumOps){
+					passed = false;
+				}
+			}catch(Exception x){
+				x.printStackTrace();
+				passed = false;
+			}
+		}
+	}
+}
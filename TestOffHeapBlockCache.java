@@ -0,0 +1,48 @@
+import java.util.Random;
+
+
+public class TestOffHeapBlockCache {
+	// Runs the cache in both write modes: the standard BlockStore tests,
+	// then a random mix of partial reads and writes over many more blocks
+	// than the cache holds (so its index sees plenty of collisions and
+	// removals), checked against a copy kept in memory and, after a flush,
+	// against the wrapped device itself (TestBlockStore.testCache).
+
+	private static final int NumBlocks = 500;
+	private static final int Capacity = 37;
+	private static final int NumOps = 20000;
+
+	public static void main(String[] args) throws Exception {
+		FileBlockDevice dev = new FileBlockDevice("testOffHeapDevice.img");
+
+		boolean passed = true;
+		for(int mode=0; mode<2; ++mode){
+			boolean writeBack = (mode == 1);
+			passed = TestBlockStore.test(
+				new OffHeapBlockCache(dev, Capacity, writeBack)) && passed;
+			passed = testRandom(dev, writeBack) && passed;
+		}
+
+		OffHeapBlockCache big = new OffHeapBlockCache(dev, 1000, false);
+		passed = (big.offHeapBytes() == 1000L*dev.blockSize()) && passed;
+		passed = (big.heapBytes() < big.offHeapBytes() / 100) && passed;
+		dev.close();
+
+		if(passed){
+			System.out.println("OK");
+		}else{
+			System.out.println("FAILED");
+		}
+	}
+
+	private static boolean testRandom(BlockStore dev, boolean writeBack)
+		throws DataIntegrityException {
+
+		// the hot set fits, but its blocks are spread out
+		OffHeapBlockCache cache = new OffHeapBlockCache(dev, Capacity, writeBack);
+		boolean passed = TestBlockStore.testCache(cache, dev, NumBlocks, Capacity/2, 
+			7, NumOps, new Random(writeBack ? 1 : 2));
+		passed = passed && (cache.hits() > cache.misses());
+		return passed && (writeBack == (cache.writeBacks() > 0));
+	}
+}